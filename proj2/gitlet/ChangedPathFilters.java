@@ -0,0 +1,344 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static gitlet.Utils.*;
+
+/**
+ * Bloom filters of the paths changed by each commit relative to its first parent, kept in
+ * the append-only file `.gitlet/commit-bloom` next to the commit graph, so that a history
+ * limited to a path skips the commits that did not touch it without reading their trees.
+ * <p>
+ * A filter holds every changed file and every directory above it. It is sized for the
+ * false positive rate given when the filters are loaded, with -ln(rate) / ln(2)^2 bits and
+ * ln(2) times as many hash functions per path, derived by double hashing from a 64-bit
+ * FNV-1a hash of the path. A commit changing more than MAX_PATHS paths gets no bits, and
+ * is always reported as possibly changing a path.
+ * <p>
+ * The file holds a magic number and a format version followed by one record per commit:
+ * the length of its body, the body, holding the SHA1, the number of hash functions and the
+ * number and values of the 64-bit words, and a CRC-32 of the body. Loading stops at the
+ * first record that is torn by an interrupted append or does not match its checksum, and
+ * the next add replaces the file at once rather than appending after such a record.
+ *
+ * @author Yuansong Zhang
+ */
+class ChangedPathFilters {
+
+    private static final int MAGIC = 0x47424c4d; // "GBLM"
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * The size of the body of a record for a commit without bits.
+     */
+    private static final int MIN_BODY_SIZE = UID_LENGTH / 2 + 4;
+
+    static final int MAX_PATHS = 512;
+
+    /**
+     * The filter of a commit. A null BITS stands for a filter with every bit set.
+     */
+    private static class Filter {
+        final int hashCount;
+        final long[] bits;
+
+        Filter(int hashCount, long[] bits) {
+            this.hashCount = hashCount;
+            this.bits = bits;
+        }
+
+        boolean mightContain(String path) {
+            if (bits == null) {
+                return true;
+            }
+            long hash = fnv1a(path);
+            for (int i = 0; i < hashCount; i++) {
+                int bit = bit(hash, i, bits.length);
+                if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final File file;
+
+    private final double falsePositiveRate;
+
+    private final HashMap<String, Filter> filters = new HashMap<>();
+
+    /**
+     * The length of the header and the whole records of the file, after which add appends.
+     * Zero if the file does not exist or has no valid header.
+     */
+    private long validLength;
+
+    private int checked;
+
+    private int skipped;
+
+    private int falsePositives;
+
+    private ChangedPathFilters(File file, double falsePositiveRate) {
+        this.file = file;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    /**
+     * Load the filters saved in FILE, which may not exist. New filters are sized for the
+     * FALSEPOSITIVERATE, between 0 and 1 exclusive.
+     */
+    static ChangedPathFilters load(File file, double falsePositiveRate) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+            throw new IllegalArgumentException("bad false positive rate " + falsePositiveRate);
+        }
+        ChangedPathFilters result = new ChangedPathFilters(file, falsePositiveRate);
+        if (!file.isFile()) {
+            return result;
+        }
+        long length = file.length();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (length < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                // filters of another version are computed again when needed
+                return result;
+            }
+            long offset = HEADER_SIZE;
+            byte[] id = new byte[UID_LENGTH / 2];
+            while (offset + 8 <= length) {
+                int size = in.readInt();
+                if (size < MIN_BODY_SIZE || size > length - offset - 8) {
+                    break;
+                }
+                byte[] body = new byte[size];
+                in.readFully(body);
+                CRC32 crc = new CRC32();
+                crc.update(body);
+                if (in.readInt() != (int) crc.getValue()) {
+                    break;
+                }
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+                record.readFully(id);
+                int hashCount = record.readInt();
+                long[] bits = null;
+                if (hashCount != 0) {
+                    int words = record.readInt();
+                    if (words <= 0 || size != MIN_BODY_SIZE + 4 + 8L * words) {
+                        break;
+                    }
+                    bits = new long[words];
+                    for (int i = 0; i < words; i++) {
+                        bits[i] = record.readLong();
+                    }
+                } else if (size != MIN_BODY_SIZE) {
+                    break;
+                }
+                result.filters.put(PackFile.toHex(id), new Filter(hashCount, bits));
+                offset += 8 + size;
+            }
+            // the filters of a torn or corrupt record are computed again when needed
+            result.validLength = offset;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result;
+    }
+
+    int size() {
+        return filters.size();
+    }
+
+    boolean contains(String hash) {
+        return filters.containsKey(hash);
+    }
+
+    /**
+     * Return whether the commit HASH may have changed any of the files or directories
+     * PATHS. Returns true if the commit has no filter. Counts the commits ruled out.
+     */
+    boolean mightChange(String hash, Collection<String> paths) {
+        Filter filter = filters.get(hash);
+        checked++;
+        if (filter == null) {
+            return true;
+        }
+        for (String path : paths) {
+            if (filter.mightContain(path)) {
+                return true;
+            }
+        }
+        skipped++;
+        return false;
+    }
+
+    /**
+     * Count the commit HASH, which mightChange some paths but did not change them, as a
+     * false positive if it has a filter.
+     */
+    void falsePositive(String hash) {
+        if (filters.containsKey(hash)) {
+            falsePositives++;
+        }
+    }
+
+    /**
+     * Return the number of commits looked up by mightChange.
+     */
+    int checked() {
+        return checked;
+    }
+
+    /**
+     * Return the number of commits mightChange ruled out.
+     */
+    int skipped() {
+        return skipped;
+    }
+
+    /**
+     * Return the number of commits that mightChange a path but did not.
+     */
+    int falsePositives() {
+        return falsePositives;
+    }
+
+    /**
+     * Build the filter of the commit HASH, which changed PATHS, and append it to the file,
+     * unless the commit has a filter already. The whole file is replaced instead if it does
+     * not exist or ends with a torn or corrupt record.
+     */
+    void add(String hash, Collection<String> paths) {
+        if (filters.containsKey(hash)) {
+            return;
+        }
+        Filter filter = build(paths);
+        filters.put(hash, filter);
+        if (validLength == 0 || file.length() != validLength) {
+            save();
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeRecord(out, hash, filter);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try (OutputStream out = Files.newOutputStream(file.toPath(), StandardOpenOption.APPEND)) {
+            bytes.writeTo(out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        validLength += bytes.size();
+    }
+
+    /**
+     * Keep only the filters of the commits in HASHES and save them, e.g. after commits
+     * were deleted.
+     */
+    void retain(Set<String> hashes) {
+        filters.keySet().retainAll(hashes);
+        save();
+    }
+
+    /**
+     * Write all the filters to a new file that replaces the file at once.
+     */
+    private void save() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, Filter> item : filters.entrySet()) {
+                writeRecord(out, item.getKey(), item.getValue());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        writeContentsAtomically(file, bytes.toByteArray());
+        validLength = bytes.size();
+    }
+
+    private Filter build(Collection<String> paths) {
+        Set<String> keys = new LinkedHashSet<>();
+        for (String path : paths) {
+            keys.add(path);
+            for (int slash = path.lastIndexOf('/'); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+                keys.add(path.substring(0, slash));
+            }
+        }
+        if (keys.size() > MAX_PATHS) {
+            return new Filter(0, null);
+        }
+        double bitsPerPath = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        int hashCount = Math.max(1, (int) Math.round(bitsPerPath * Math.log(2)));
+        int words = Math.max(1, (int) Math.ceil(keys.size() * bitsPerPath / 64));
+        long[] bits = new long[words];
+        for (String key : keys) {
+            long hash = fnv1a(key);
+            for (int i = 0; i < hashCount; i++) {
+                int bit = bit(hash, i, words);
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+        return new Filter(hashCount, bits);
+    }
+
+    private static void writeRecord(DataOutputStream out, String hash, Filter filter) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream body = new DataOutputStream(bytes)) {
+            body.write(PackFile.toBytes(hash));
+            body.writeInt(filter.bits == null ? 0 : filter.hashCount);
+            if (filter.bits != null) {
+                body.writeInt(filter.bits.length);
+                for (long word : filter.bits) {
+                    body.writeLong(word);
+                }
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Return the bit of the hash function I for the path whose FNV-1a hash is HASH, in a
+     * filter of WORDS 64-bit words. The two halves of HASH are combined by double hashing,
+     * the second one made odd so that the functions never all pick the same bit.
+     */
+    private static int bit(long hash, int i, int words) {
+        long h1 = hash & 0xffffffffL;
+        long h2 = (hash >>> 32) | 1;
+        return (int) ((h1 + i * h2) % ((long) words * 64));
+    }
+
+    private static long fnv1a(String path) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : path.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
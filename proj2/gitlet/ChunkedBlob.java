@@ -0,0 +1,192 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static gitlet.Utils.*;
+
+/**
+ * A large blob saved as a manifest of chunks rather than as a single object.
+ * <p>
+ * The file is cut at content-defined boundaries found by a gear rolling hash (FastCDC),
+ * so an edit only changes the chunks around it, and each chunk is saved as an object
+ * named by its own SHA1, shared by every version of every file containing it. The
+ * manifest is saved under the SHA1 of the whole file, like any other blob, and holds
+ * a magic number, a format version, the size of the file and the SHA1 and size of each
+ * chunk in order.
+ * <p>
+ * A manifest is told apart from a file that happens to start with the same magic
+ * number by its SHA1: the contents of a plain blob always hash to the blob's SHA1.
+ *
+ * @author Yuansong Zhang
+ */
+class ChunkedBlob {
+
+    private static final int MAGIC = 0x474c434b; // "GLCK"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 4;
+
+    static final int MIN_SIZE = 4 * 1024;
+
+    static final int AVERAGE_SIZE = 16 * 1024;
+
+    static final int MAX_SIZE = 64 * 1024;
+
+    /**
+     * Masks of the rolling hash before and after AVERAGE_SIZE, with two more and two fewer
+     * bits than log2(AVERAGE_SIZE), which keeps the chunk sizes close to the average. The
+     * top bits are used since they depend on the last 64 bytes rather than the last few.
+     */
+    private static final long MASK_SMALL = -1L << (64 - 16);
+
+    private static final long MASK_LARGE = -1L << (64 - 12);
+
+    /**
+     * Random values of the gear hash for each byte, the same in every repository so that
+     * the same contents are always cut at the same boundaries.
+     */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6769746c6574L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * Cut the file SOURCE into chunks, save the chunks missing from STORE, and write the
+     * manifest of SOURCE to MANIFESTFILE. The file is streamed, so only one chunk is held
+     * on the heap.
+     */
+    static void write(ObjectStore store, File source, File manifestFile) {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        try (InputStream in = Files.newInputStream(source.toPath());
+             DataOutputStream out = new DataOutputStream(entries)) {
+            int count = 0;
+            long size = 0;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] chunk = new byte[MAX_SIZE];
+            int length = 0;
+            long hash = 0;
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    chunk[length++] = buffer[i];
+                    hash = (hash << 1) + GEAR[buffer[i] & 0xff];
+                    if (length < MIN_SIZE) {
+                        continue;
+                    }
+                    long mask = length < AVERAGE_SIZE ? MASK_SMALL : MASK_LARGE;
+                    if ((hash & mask) == 0 || length == MAX_SIZE) {
+                        writeChunk(store, out, chunk, length);
+                        count++;
+                        size += length;
+                        length = 0;
+                        hash = 0;
+                    }
+                }
+            }
+            if (length > 0) {
+                writeChunk(store, out, chunk, length);
+                count++;
+                size += length;
+            }
+            out.flush();
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_SIZE);
+            DataOutputStream headerOut = new DataOutputStream(header);
+            headerOut.writeInt(MAGIC);
+            headerOut.writeInt(VERSION);
+            headerOut.writeLong(size);
+            headerOut.writeInt(count);
+            header.write(entries.toByteArray());
+            LooseObject.write(manifestFile, header.toByteArray(), Repository.LOOSE_COMPRESSION_LEVEL);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void writeChunk(ObjectStore store, DataOutputStream out, byte[] chunk, int length)
+            throws IOException {
+        byte[] content = Arrays.copyOf(chunk, length);
+        String hash = sha1(content);
+        store.write(hash, content);
+        out.write(PackFile.toBytes(hash));
+        out.writeInt(length);
+    }
+
+    /**
+     * Return whether the first bytes HEADER start like a manifest. If they do, the whole
+     * object still has to be checked with isManifest.
+     */
+    static boolean hasMagic(byte[] header) {
+        return header.length >= 4 && ((header[0] & 0xff) << 24 | (header[1] & 0xff) << 16
+                | (header[2] & 0xff) << 8 | (header[3] & 0xff)) == MAGIC;
+    }
+
+    /**
+     * Return whether CONTENT, saved as the object HASH, is a manifest rather than the
+     * contents of a plain blob.
+     */
+    static boolean isManifest(byte[] content, String hash) {
+        return content.length >= HEADER_SIZE && hasMagic(content) && !sha1(content).equals(hash);
+    }
+
+    /**
+     * Return the SHA1s of the chunks listed by MANIFEST, in order.
+     */
+    static List<String> chunks(byte[] manifest) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(manifest))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IllegalArgumentException("bad chunk manifest");
+            }
+            in.readLong();
+            int count = in.readInt();
+            List<String> result = new ArrayList<>(count);
+            byte[] id = new byte[UID_LENGTH / 2];
+            for (int i = 0; i < count; i++) {
+                in.readFully(id);
+                in.readInt();
+                result.add(PackFile.toHex(id));
+            }
+            return result;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Return a stream over the file listed by MANIFEST, opening each chunk from STORE only
+     * when the previous one is exhausted.
+     */
+    static InputStream open(ObjectStore store, byte[] manifest) {
+        Iterator<String> chunks = chunks(manifest).iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return chunks.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                return store.open(chunks.next());
+            }
+        });
+    }
+}
@@ -2,12 +2,24 @@ package gitlet;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 import static gitlet.Utils.*;
@@ -32,12 +44,40 @@ public class CommandTest {
         Repository.add(filename);
         assertEquals(1, Repository.blobMap.size());
         File file = Repository.hashFilename(Repository.STAGING_DIR, sha1(content), "add");
-        assertEquals(content, readContentsAsString(file));
+        assertEquals(content, new String(LooseObject.read(file), StandardCharsets.UTF_8));
         filename = "swaewwaeg.unexisted";
         Repository.add(filename);
         assertEquals(1, Repository.blobMap.size());
     }
 
+    @Test
+    public void addManyTest() {
+        Repository.clear();
+        Repository.init();
+        String[] filenames = new String[100];
+        for (int i = 0; i < filenames.length; i++) {
+            filenames[i] = "many" + i + ".txt";
+            // every other pair of files shares the same contents
+            writeContents(join(Repository.CWD, filenames[i]), "content " + (i / 2));
+        }
+        Repository.add(filenames);
+        assertEquals(filenames.length, Repository.blobMap.size());
+        for (int i = 0; i < filenames.length; i++) {
+            String hash = sha1("content " + (i / 2));
+            assertEquals(hash, Repository.blobMap.get(filenames[i]));
+            assertTrue(Repository.hashFilename(Repository.STAGING_DIR, hash, "add").exists());
+        }
+
+        // restaging one of two files sharing a blob keeps the blob of the other one
+        writeContents(join(Repository.CWD, filenames[0]), "changed");
+        Repository.add(filenames);
+        assertEquals(sha1("changed"), Repository.blobMap.get(filenames[0]));
+        assertTrue(Repository.hashFilename(Repository.STAGING_DIR, sha1("content 0"), "add").exists());
+        for (String filename : filenames) {
+            join(Repository.CWD, filename).delete();
+        }
+    }
+
     @Test
     public void commitTest() {
         Repository.clear();
@@ -50,6 +90,611 @@ public class CommandTest {
         assertEquals(0, Repository.STAGING_DIR.list().length);
     }
 
+    @Test
+    public void commitFormatTest() {
+        Repository.clear();
+        Repository.init();
+        String filename = "file1.txt";
+        writeContents(join(Repository.CWD, filename), "file1");
+        Repository.add(filename);
+        Repository.commit("Add " + filename);
+        Commit added = Repository.currentHead;
+        Repository.rm(filename);
+        Repository.commit("Remove " + filename);
+        writeContents(join(Repository.CWD, filename), "file1");
+        Repository.add(filename);
+        Repository.commit("Add " + filename + " again");
+
+        Commit commit = Repository.readCommit(Repository.currentHead.hash);
+        assertEquals("Add " + filename + " again", commit.message);
+        assertEquals(Repository.currentHead.parentHash, commit.parentHash);
+        assertNull(commit.mergedParentHash);
+        // commits with the same files share the same tree
+        assertEquals(added.getTreeHash(), commit.getTreeHash());
+        assertEquals(sha1("file1"), commit.getBlobMap().get(filename));
+        assertNull(Repository.readCommit(sha1("no such commit")));
+
+        // a commit saved by Java serialization before this format is still read, and gc
+        // saves it again in this format
+        SerializedCommit serialized = new SerializedCommit();
+        serialized.message = "Serialized commit";
+        serialized.author = commit.author;
+        serialized.timestamp = commit.timestamp;
+        serialized.hash = sha1("serialized commit");
+        serialized.parentHash = commit.hash;
+        serialized.blobMap = new HashMap<>(commit.getBlobMap());
+        serialized.blobMap.put("file2.txt", sha1("file2"));
+        Repository.OBJECT_STORE.write(sha1("file2"), "file2".getBytes(StandardCharsets.UTF_8));
+        File file = join(Repository.COMMIT_DIR, serialized.hash);
+        writeContents(file, SerializedCommit.asCommit(serialize(serialized)));
+        Commit legacy = Commit.read(file, Repository.OBJECT_STORE);
+        assertTrue(legacy.isLegacy());
+        assertEquals("Serialized commit", legacy.message);
+        assertEquals(commit.hash, legacy.parentHash);
+        assertEquals(sha1("file2"), legacy.getBlobMap().get("file2.txt"));
+
+        writeContents(join(Repository.HEAEDS_DIR, "serialized"), serialized.hash);
+        Repository.gc();
+        Commit converted = Commit.read(file, Repository.OBJECT_STORE);
+        assertFalse(converted.isLegacy());
+        assertEquals(serialized.blobMap, converted.getBlobMap());
+        assertEquals(commit.hash, converted.parentHash);
+    }
+
+    /**
+     * The fields of a commit as saved by Java serialization before commits had their own format.
+     */
+    private static class SerializedCommit implements java.io.Serializable {
+        private static final long serialVersionUID = 1L;
+        String message;
+        String author;
+        String timestamp;
+        String hash;
+        String parentHash;
+        String mergedParentHash;
+        HashMap<String, String> blobMap;
+
+        /**
+         * Return the serialized BYTES of a SerializedCommit with the class renamed to the
+         * name the commits had then.
+         */
+        static byte[] asCommit(byte[] bytes) {
+            byte[] from = SerializedCommit.classNameBytes(SerializedCommit.class.getName());
+            byte[] to = SerializedCommit.classNameBytes(Commit.class.getName());
+            String text = new String(bytes, StandardCharsets.ISO_8859_1);
+            String renamed = text.replace(new String(from, StandardCharsets.ISO_8859_1),
+                    new String(to, StandardCharsets.ISO_8859_1));
+            return renamed.getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        private static byte[] classNameBytes(String name) {
+            byte[] result = new byte[name.length() + 2];
+            result[1] = (byte) name.length();
+            System.arraycopy(name.getBytes(StandardCharsets.ISO_8859_1), 0, result, 2, name.length());
+            return result;
+        }
+    }
+
+    @Test
+    public void treeTest() {
+        Repository.clear();
+        Repository.init();
+        String nested = "dir/file1.txt";
+        String filename = "file2.txt";
+        writeContents(join(Repository.CWD, nested), "file1");
+        writeContents(join(Repository.CWD, filename), "file2");
+        Repository.add(new String[]{nested, filename});
+        Repository.commit("Add files");
+        Commit first = Repository.currentHead;
+        Repository.branch("other");
+        writeContents(join(Repository.CWD, filename), "file2 changed");
+        Repository.add(filename);
+        Repository.commit("Change " + filename);
+        Commit second = Repository.currentHead;
+
+        assertEquals(sha1("file1"), second.getBlobMap().get(nested));
+        // the unchanged directory is shared, so only the changed file is reported
+        List<Tree.Change> changes = Tree.diff(Repository.OBJECT_STORE, first.getTreeHash(), second.getTreeHash());
+        assertEquals(1, changes.size());
+        assertEquals(filename, changes.get(0).path);
+        assertEquals(sha1("file2"), changes.get(0).oldHash);
+
+        Repository.checkoutBranch("other");
+        assertEquals("file2", readContentsAsString(join(Repository.CWD, filename)));
+        assertEquals("file1", readContentsAsString(join(Repository.CWD, nested)));
+        assertEquals(first.getBlobMap(), Repository.committedBlobMap);
+
+        // a directory replaced by a file of the same name in one change keeps the file
+        HashMap<String, String> replaced = new HashMap<>();
+        replaced.put(nested, null);
+        replaced.put("dir", sha1("now a file"));
+        String treeHash = Tree.update(Repository.OBJECT_STORE, first.getTreeHash(), replaced);
+        HashMap<String, String> blobMap = Tree.read(Repository.OBJECT_STORE, treeHash);
+        assertEquals(2, blobMap.size());
+        assertEquals(sha1("now a file"), blobMap.get("dir"));
+        assertEquals(sha1("file2"), blobMap.get(filename));
+        join(Repository.CWD, nested).delete();
+        join(Repository.CWD, "dir").delete();
+    }
+
+    @Test
+    public void workTreeTest() {
+        Repository.clear();
+        Repository.init();
+        String[] filenames = new String[20];
+        for (int i = 0; i < filenames.length; i++) {
+            filenames[i] = "tree" + i + ".txt";
+            writeContents(join(Repository.CWD, filenames[i]), "content " + i);
+        }
+        Repository.add(filenames);
+        Repository.commit("Add files");
+        Repository.branch("other");
+        Commit other = Repository.currentHead;
+
+        String nested = "newdir/file.txt";
+        writeContents(join(Repository.CWD, nested), "nested");
+        writeContents(join(Repository.CWD, filenames[0]), "changed");
+        writeContents(join(Repository.CWD, filenames[1]), "changed");
+        Repository.add(new String[]{nested, filenames[0], filenames[1]});
+        Repository.commit("Change files");
+        Commit main = Repository.currentHead;
+
+        // a working file already matching the target is not written again
+        List<Tree.Change> changes = Tree.diff(Repository.OBJECT_STORE, main.getTreeHash(), other.getTreeHash());
+        assertEquals(3, changes.size());
+        writeContents(join(Repository.CWD, filenames[1]), "content 1");
+        // written in the past, so that its stat data is not racy with the index
+        join(Repository.CWD, filenames[1]).setLastModified(System.currentTimeMillis() - 10000);
+        Repository.index().hashOf(join(Repository.CWD, filenames[1]), filenames[1]);
+        Repository.index().write();
+        WorkTree workTree = new WorkTree(Repository.CWD, Repository.OBJECT_STORE, Repository.index());
+        assertEquals(2, workTree.outdated(changes).size());
+
+        Repository.checkoutBranch("other");
+        for (int i = 0; i < filenames.length; i++) {
+            assertEquals("content " + i, readContentsAsString(join(Repository.CWD, filenames[i])));
+        }
+        assertFalse(join(Repository.CWD, "newdir").exists());
+        assertTrue(Repository.index().isUnchanged(join(Repository.CWD, filenames[0]), filenames[0]));
+        for (String filename : filenames) {
+            join(Repository.CWD, filename).delete();
+        }
+    }
+
+    @Test
+    public void commitCacheTest() {
+        Repository.clear();
+        Repository.init();
+        String filename = "file1.txt";
+        writeContents(join(Repository.CWD, filename), "file1");
+        Repository.add(filename);
+        Repository.commit("Add " + filename);
+        String hash = Repository.currentHead.hash;
+        // a commit just written is cached, so reading it does not decode its file again
+        assertSame(Repository.currentHead, Repository.readCommit(hash));
+        assertEquals(0, Repository.COMMIT_CACHE.misses());
+        assertEquals(1, Repository.COMMIT_CACHE.hits());
+
+        Repository.COMMIT_CACHE.clear();
+        Commit commit = Repository.readCommit(hash);
+        assertSame(commit, Repository.readCommit(hash));
+        assertEquals(1, Repository.COMMIT_CACHE.misses());
+        assertEquals(1, Repository.COMMIT_CACHE.hits());
+
+        CommitCache cache = new CommitCache(Repository.COMMIT_DIR, Repository.OBJECT_STORE, 1);
+        cache.get(hash);
+        cache.get(Repository.currentHead.parentHash);
+        assertEquals(1, cache.size());
+        assertNull(cache.get(sha1("no such commit")));
+    }
+
+    @Test
+    public void changedPathTest() {
+        Repository.clear();
+        Repository.init();
+        String top = "top.txt";
+        String nested = "dir/nested.txt";
+        for (int i = 0; i < 20; i++) {
+            String filename = i % 4 == 0 ? nested : top;
+            writeContents(join(Repository.CWD, filename), "version " + i);
+            Repository.add(filename);
+            Repository.commit("Commit " + i);
+        }
+
+        ChangedPathFilters filters = Repository.changedPathFilters();
+        String entries = output(() -> Repository.log(new String[]{"--stats", "--", nested}));
+        int checked = filters.checked();
+        int skipped = filters.skipped();
+        int falsePositives = filters.falsePositives();
+        String dirEntries = output(() -> Repository.log(new String[]{"-n", "2", "--", "dir/"}));
+        assertEquals(5, entries.split("===\n", -1).length - 1);
+        for (int i = 0; i < 20; i += 4) {
+            assertTrue(entries.contains("Commit " + i + "\n"));
+        }
+        // the 15 other commits and the initial commit are mostly ruled out by their filters
+        assertEquals(21, checked);
+        assertEquals(16, skipped + falsePositives);
+        assertTrue(skipped >= 14);
+        assertTrue(entries.contains("Checked 21 commits: " + skipped + " skipped"));
+        assertEquals(2, dirEntries.split("===\n", -1).length - 1);
+        assertTrue(dirEntries.contains("Commit 16\n") && dirEntries.contains("Commit 12\n"));
+
+        // the filters are kept by gc, and the missing ones are added
+        Repository.CHANGED_PATHS_FILE.delete();
+        Repository.refresh();
+        Repository.gc();
+        assertEquals(21, ChangedPathFilters.load(Repository.CHANGED_PATHS_FILE, 0.01).size());
+
+        // a record torn by an interrupted append is dropped, and not followed by the next one
+        byte[] saved = readContents(Repository.CHANGED_PATHS_FILE);
+        writeContents(Repository.CHANGED_PATHS_FILE, Arrays.copyOf(saved, saved.length - 3));
+        filters = ChangedPathFilters.load(Repository.CHANGED_PATHS_FILE, 0.01);
+        assertEquals(20, filters.size());
+        for (String hash : plainFilenamesIn(Repository.COMMIT_DIR)) {
+            filters.add(hash, Arrays.asList(top));
+        }
+        assertEquals(21, ChangedPathFilters.load(Repository.CHANGED_PATHS_FILE, 0.01).size());
+        // and a record whose checksum does not match ends the records
+        saved = readContents(Repository.CHANGED_PATHS_FILE);
+        saved[saved.length - 6] ^= 1;
+        writeContents(Repository.CHANGED_PATHS_FILE, saved);
+        assertEquals(20, ChangedPathFilters.load(Repository.CHANGED_PATHS_FILE, 0.01).size());
+        join(Repository.CWD, top).delete();
+        join(Repository.CWD, nested).delete();
+    }
+
+    @Test
+    public void bitmapTest() {
+        int interval = Repository.BITMAP_INTERVAL;
+        Repository.BITMAP_INTERVAL = 4;
+        try {
+            Repository.clear();
+            Repository.init();
+            String filename = "bitmap.txt";
+            for (int i = 0; i < 10; i++) {
+                writeContents(join(Repository.CWD, filename), "main " + i);
+                Repository.add(filename);
+                Repository.commit("Main " + i);
+            }
+            String fork = Repository.currentHead.hash;
+            Repository.branch("dev");
+            Repository.checkoutBranch("dev");
+            for (int i = 0; i < 3; i++) {
+                writeContents(join(Repository.CWD, filename), "dev " + i);
+                Repository.add(filename);
+                Repository.commit("Dev " + i);
+            }
+            String dev = Repository.currentHead.hash;
+            Repository.checkoutBranch("main");
+            for (int i = 10; i < 12; i++) {
+                writeContents(join(Repository.CWD, filename), "main " + i);
+                Repository.add(filename);
+                Repository.commit("Main " + i);
+            }
+            String main = Repository.currentHead.hash;
+            // the commits at positions 4, 8 and 12 got bitmaps when made
+            assertEquals(3, Repository.reachabilityBitmaps().size());
+
+            assertTrue(Repository.isAncestor(fork, dev));
+            assertTrue(Repository.isAncestor(fork, main));
+            assertTrue(Repository.isAncestor(main, main));
+            assertFalse(Repository.isAncestor(dev, main));
+            assertFalse(Repository.isAncestor(main, dev));
+
+            String devOnly = output(() -> Repository.revList(new String[]{"main..dev"}));
+            String all = output(() -> Repository.revList(new String[]{"dev"}));
+            String answer = output(() -> Repository.isAncestor(new String[]{fork.substring(0, 8), "dev"}));
+            String[] commits = devOnly.split("\n");
+            assertEquals(3, commits.length);
+            assertEquals(dev, commits[0]);
+            assertEquals(14, all.split("\n").length);
+            assertTrue(all.contains(fork + "\n"));
+            assertEquals("true\n", answer);
+
+            // gc gives the branch heads bitmaps, which the queries start from
+            Repository.gc();
+            ReachabilityBitmaps bitmaps = ReachabilityBitmaps.load(Repository.BITMAPS_FILE, Repository.commitGraph());
+            assertTrue(bitmaps.isAnchor(Repository.commitGraph().position(dev)));
+            assertTrue(bitmaps.isAnchor(Repository.commitGraph().position(main)));
+            assertTrue(bitmaps.isAncestor(Repository.commitGraph().position(fork),
+                    Repository.commitGraph().position(dev)));
+            assertEquals(0, bitmaps.walked());
+
+            Repository.merge("dev");
+            assertNotNull(Repository.currentHead.mergedParentHash);
+            join(Repository.CWD, filename).delete();
+        } finally {
+            Repository.BITMAP_INTERVAL = interval;
+        }
+    }
+
+    @Test
+    public void remoteTest() throws IOException {
+        Repository.clear();
+        Repository.init();
+        String filename = "remote.txt";
+        writeContents(join(Repository.CWD, filename), "version 0");
+        Repository.add(filename);
+        Repository.commit("Version 0");
+        String first = Repository.currentHead.hash;
+        // the remote starts as a copy of this repository
+        File remoteDir = join(Repository.CWD, "remote-repo");
+        deleteDirectory(remoteDir);
+        remoteDir.mkdirs();
+        Path source = Repository.GITLET_DIR.toPath();
+        try (Stream<Path> paths = Files.walk(source)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                Files.copy(path, join(remoteDir, ".gitlet").toPath().resolve(source.relativize(path)));
+            }
+        }
+        Repository.addRemote(new String[]{"origin", "remote-repo"});
+        Remote remote = new Remote(join(remoteDir, ".gitlet"));
+
+        for (int i = 1; i < 3; i++) {
+            writeContents(join(Repository.CWD, filename), "version " + i);
+            Repository.add(filename);
+            Repository.commit("Version " + i);
+        }
+        String last = Repository.currentHead.hash;
+        String refused = output(() -> Repository.push(new String[]{"origin", "main"}));
+        assertEquals("Cannot push to the checked out branch of the remote.\n", refused);
+
+        // only the two new commits and their blobs and trees are sent, as one pack
+        Repository.push(new String[]{"origin", "mirror"});
+        assertEquals(last, remote.readHead("mirror"));
+        assertEquals(1, remote.store.packs().size());
+        assertEquals(4, remote.store.packs().get(0).size());
+        assertEquals("version 2", new String(remote.store.read(remote.readCommit(last).getBlobMap().get(filename)),
+                StandardCharsets.UTF_8));
+        assertEquals(4, CommitGraph.load(join(remote.gitletDir, "commit-graph"), new CommitList(remote.commitDir)).size());
+
+        // the commits deleted here are fetched back, then merged by a fast-forward
+        Repository.reset(first);
+        Repository.gc();
+        assertFalse(join(Repository.COMMIT_DIR, last).exists());
+        Repository.pull(new String[]{"origin", "mirror"});
+        assertEquals(last, readContentsAsString(join(Repository.REMOTE_DIR, "origin", "mirror")));
+        assertEquals(last, Repository.currentHead.hash);
+        assertEquals(last, Repository.readHead("main"));
+        assertEquals("version 2", readContentsAsString(join(Repository.CWD, filename)));
+        assertTrue(Repository.commitGraph().contains(last));
+
+        Repository.reset(first);
+        assertEquals("Please pull down remote changes before pushing.\n",
+                output(() -> Repository.push(new String[]{"origin", "mirror"})));
+        Repository.rmRemote(new String[]{"origin"});
+        assertFalse(join(Repository.REMOTE_DIR, "origin").exists());
+        deleteDirectory(remoteDir);
+        join(Repository.CWD, filename).delete();
+    }
+
+    @Test
+    public void compressionTest() {
+        Repository.clear();
+        Repository.init();
+        String filename = "compressed.txt";
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            builder.append("static final int CONSTANT_").append(i).append(" = ").append(i).append(";\n");
+        }
+        String content = builder.toString();
+        writeContents(join(Repository.CWD, filename), content);
+        Repository.add(filename);
+        String hash = Repository.blobMap.get(filename);
+        assertEquals(sha1(content), hash);
+        File staged = Repository.hashFilename(Repository.STAGING_DIR, hash, "add");
+        assertTrue(staged.length() * 4 < content.length());
+        Repository.commit("Add " + filename);
+
+        // the staged file became the loose object, read back through the inflater
+        File loose = Repository.OBJECT_STORE.looseFile(hash);
+        assertTrue(loose.length() * 4 < content.length());
+        assertEquals(content, Repository.OBJECT_STORE.readAsString(hash));
+        assertEquals(content.length(), Repository.OBJECT_STORE.storedSize(hash));
+        writeContents(join(Repository.CWD, filename), "overwritten");
+        Repository.checkout(filename);
+        assertEquals(content, readContentsAsString(join(Repository.CWD, filename)));
+
+        // level 0 stores the contents after the header, and objects written before
+        // compression are still read as they are
+        int level = Repository.LOOSE_COMPRESSION_LEVEL;
+        Repository.LOOSE_COMPRESSION_LEVEL = 0;
+        try {
+            Repository.OBJECT_STORE.write(sha1("stored"), "stored".getBytes(StandardCharsets.UTF_8));
+        } finally {
+            Repository.LOOSE_COMPRESSION_LEVEL = level;
+        }
+        assertEquals("stored".length() + LooseObject.HEADER_SIZE,
+                Repository.OBJECT_STORE.looseFile(sha1("stored")).length());
+        assertEquals("stored", Repository.OBJECT_STORE.readAsString(sha1("stored")));
+        File legacy = Repository.OBJECT_STORE.looseFile(sha1("legacy"));
+        writeContents(legacy, "legacy");
+        assertEquals("legacy", Repository.OBJECT_STORE.readAsString(sha1("legacy")));
+        join(Repository.CWD, filename).delete();
+    }
+
+    @Test
+    public void statusScanTest() {
+        Repository.clear();
+        Repository.init();
+        String tracked = "scan/src/Tracked.java";
+        writeContents(join(Repository.CWD, "scan", "src", "Tracked.java"), "class Tracked {}");
+        writeContents(join(Repository.CWD, "scan", "debug.log"), "ignored");
+        Repository.add(tracked);
+        Repository.add("scan/debug.log");
+        Repository.commit("Add scan files");
+
+        writeContents(join(Repository.CWD, "scan", "src", "Tracked.java"), "class Tracked { int x; }");
+        join(Repository.CWD, "scan", "src", "Tracked.java").setLastModified(System.currentTimeMillis() - 10000);
+        writeContents(join(Repository.CWD, "scan", "src", "deep", "New.java"), "class New {}");
+        writeContents(join(Repository.CWD, "scan", "build", "Out.class"), "ignored");
+        writeContents(join(Repository.CWD, "scan", "trace.log"), "ignored");
+        writeContents(join(Repository.CWD, "scan", "keep.log"), "kept");
+        writeContents(Repository.IGNORE_FILE, "# build output\n*.log\n!keep.log\nscan/build/\n");
+
+        IgnoreRules rules = IgnoreRules.load(Repository.IGNORE_FILE);
+        assertTrue(rules.isIgnored("a/b/c.log", false));
+        assertFalse(rules.isIgnored("keep.log", false));
+        assertTrue(rules.isIgnored("scan/build", true));
+        assertFalse(rules.isIgnored("scan/build", false));
+        assertFalse(rules.isIgnored("other/scan/build", true));
+        assertTrue(IgnoreRules.parse("/out/**/*.o").isIgnored("out/x/y/z.o", false));
+        assertTrue(IgnoreRules.parse("/out/**/*.o").isIgnored("out/z.o", false));
+        assertFalse(IgnoreRules.parse("/out/**/*.o").isIgnored("src/out/z.o", false));
+        assertTrue(IgnoreRules.parse("file[0-9].txt").isIgnored("file7.txt", false));
+
+        String status = output(Repository::status);
+        String modified = status.substring(status.indexOf("=== Modifications"), status.indexOf("=== Untracked"));
+        String untracked = status.substring(status.indexOf("=== Untracked"));
+        assertTrue(modified.contains(tracked + " (modified)\n"));
+        // the committed log file is still compared although it is ignored
+        assertFalse(modified.contains("scan/debug.log"));
+        assertTrue(untracked.contains("scan/src/deep/New.java\n"));
+        assertTrue(untracked.contains("scan/keep.log\n"));
+        assertTrue(untracked.contains(".gitletignore\n"));
+        assertFalse(untracked.contains("trace.log"));
+        assertFalse(untracked.contains("Out.class"));
+        assertFalse(untracked.contains(tracked));
+        assertFalse(untracked.contains(".gitlet/"));
+
+        // the modified file was hashed once and recorded, so it is not read again
+        assertTrue(Repository.index().isUnchanged(join(Repository.CWD, "scan", "src", "Tracked.java"), tracked));
+        Repository.IGNORE_FILE.delete();
+        deleteDirectory(join(Repository.CWD, "scan"));
+    }
+
+    @Test
+    public void commitIdTest() {
+        Repository.clear();
+        Repository.init();
+        String filename = "file1.txt";
+        String[] hashes = new String[40];
+        int limit = CommitIdIndex.TAIL_LIMIT;
+        CommitIdIndex.TAIL_LIMIT = 16;
+        try {
+            for (int i = 0; i < hashes.length; i++) {
+                writeContents(join(Repository.CWD, filename), "version " + i);
+                Repository.add(filename);
+                Repository.commit("Commit " + i);
+                hashes[i] = Repository.currentHead.hash;
+            }
+        } finally {
+            CommitIdIndex.TAIL_LIMIT = limit;
+        }
+        assertEquals(hashes.length + 1, Repository.commitIdIndex().size());
+        // the ids are appended to the tail of the file, which was merged after every 16
+        byte[] bytes = readContents(Repository.COMMIT_IDS_FILE);
+        assertEquals(35, ByteBuffer.wrap(bytes).getInt(8 + 255 * 4));
+        assertEquals(8 + 256 * 4 + (hashes.length + 1) * 20, bytes.length);
+        CommitIdIndex loaded = CommitIdIndex.load(Repository.COMMIT_IDS_FILE, new CommitList(Repository.COMMIT_DIR));
+        assertFalse(loaded.isDirty());
+        assertEquals(hashes.length + 1, loaded.size());
+        assertEquals(Arrays.asList(hashes[39]), loaded.find(hashes[39].substring(0, 12), 2));
+        // an id torn by an interrupted append is recovered though the file is newer
+        writeContents(Repository.COMMIT_IDS_FILE, Arrays.copyOf(bytes, bytes.length - 3));
+        Repository.COMMIT_IDS_FILE.setLastModified(Repository.COMMIT_DIR.lastModified() + 60000);
+        loaded = CommitIdIndex.load(Repository.COMMIT_IDS_FILE, new CommitList(Repository.COMMIT_DIR));
+        assertTrue(loaded.isDirty());
+        assertEquals(hashes.length + 1, loaded.size());
+        loaded.save();
+        assertEquals(hashes.length + 1, ByteBuffer.wrap(readContents(Repository.COMMIT_IDS_FILE)).getInt(8 + 255 * 4));
+        for (String hash : hashes) {
+            assertEquals(hash, Repository.resolveCommitId(hash.substring(0, 8)));
+            assertEquals(hash, Repository.resolveCommitId(hash.toUpperCase().substring(0, 10)));
+        }
+        // a single digit is shared by several of the 41 commits
+        assertNull(Repository.resolveCommitId("zz"));
+        int[] counts = new int[16];
+        for (String hash : hashes) {
+            counts[Character.digit(hash.charAt(0), 16)]++;
+        }
+        for (int digit = 0; digit < 16; digit++) {
+            if (counts[digit] > 1) {
+                assertNull(Repository.resolveCommitId(Integer.toHexString(digit)));
+                break;
+            }
+        }
+
+        // the index is built from the commit directory when it is missing, and not saved
+        // by loading it
+        Repository.COMMIT_IDS_FILE.delete();
+        CommitIdIndex index = CommitIdIndex.load(Repository.COMMIT_IDS_FILE, new CommitList(Repository.COMMIT_DIR));
+        assertEquals(hashes.length + 1, index.size());
+        assertEquals(Arrays.asList(hashes[7]), index.find(hashes[7].substring(0, 12), 2));
+        assertTrue(index.isDirty());
+        assertFalse(Repository.COMMIT_IDS_FILE.exists());
+        index.save();
+        assertFalse(index.isDirty());
+        assertEquals(Arrays.asList(hashes[7]), index.find(hashes[7].substring(0, 12), 2));
+
+        // and when it misses a commit, as after a crash between a commit and its insertion
+        byte[] saved = readContents(Repository.COMMIT_IDS_FILE);
+        writeContents(join(Repository.CWD, filename), "version " + hashes.length);
+        Repository.add(filename);
+        Repository.commit("Commit " + hashes.length);
+        String last = Repository.currentHead.hash;
+        writeContents(Repository.COMMIT_IDS_FILE, saved);
+        Repository.COMMIT_IDS_FILE.setLastModified(Repository.COMMIT_DIR.lastModified() - 60000);
+        index = CommitIdIndex.load(Repository.COMMIT_IDS_FILE, new CommitList(Repository.COMMIT_DIR));
+        assertEquals(hashes.length + 2, index.size());
+        assertEquals(Arrays.asList(last), index.find(last.substring(0, 12), 2));
+
+        // many ids are merged in order in one rewrite, skipping those indexed already
+        List<String> batch = new ArrayList<>(Arrays.asList(last, hashes[3]));
+        Random random = new Random(23);
+        for (int i = 0; i < 50; i++) {
+            byte[] id = new byte[UID_LENGTH / 2];
+            random.nextBytes(id);
+            batch.add(PackFile.toHex(id));
+        }
+        batch.add(batch.get(2));
+        index.addAll(batch);
+        assertEquals(hashes.length + 52, index.size());
+        for (String hash : batch) {
+            assertEquals(Arrays.asList(hash), index.find(hash, 2));
+        }
+        assertEquals(Arrays.asList(hashes[7]), index.find(hashes[7].substring(0, 12), 2));
+        assertEquals(8 + 256 * 4 + (hashes.length + 52) * 20, Repository.COMMIT_IDS_FILE.length());
+        CommitIdIndex.build(Repository.COMMIT_IDS_FILE, new CommitList(Repository.COMMIT_DIR)).save();
+
+        Repository.reset(hashes[0].substring(0, 7));
+        assertEquals(hashes[0], Repository.currentHead.hash);
+        assertEquals("version 0", readContentsAsString(join(Repository.CWD, filename)));
+    }
+
+    @Test
+    public void journalTest() {
+        Repository.clear();
+        Repository.init();
+        File head = join(Repository.HEAEDS_DIR, "main");
+        File staged = join(Repository.GITLET_DIR, "staged.txt");
+        File moved = join(Repository.GITLET_DIR, "moved", "staged.txt");
+        writeContents(staged, "staged");
+
+        // a journal synced but not applied is applied by the next command
+        Journal journal = new Journal(Repository.JOURNAL_FILE, Repository.CWD);
+        journal.write(head, sha1("new head"));
+        journal.move(staged, moved);
+        journal.save();
+        assertNotEquals(sha1("new head"), readContentsAsString(head));
+        assertTrue(Journal.recover(Repository.JOURNAL_FILE, Repository.CWD));
+        assertEquals(sha1("new head"), readContentsAsString(head));
+        assertEquals("staged", readContentsAsString(moved));
+        assertFalse(staged.exists());
+        assertFalse(Repository.JOURNAL_FILE.exists());
+
+        // a torn journal is dropped without touching anything
+        journal = new Journal(Repository.JOURNAL_FILE, Repository.CWD);
+        journal.write(head, sha1("torn head"));
+        journal.delete(moved);
+        byte[] content = journal.save();
+        writeContents(Repository.JOURNAL_FILE, Arrays.copyOf(content, content.length - 3));
+        assertFalse(Journal.recover(Repository.JOURNAL_FILE, Repository.CWD));
+        assertEquals(sha1("new head"), readContentsAsString(head));
+        assertTrue(moved.exists());
+        assertFalse(Repository.JOURNAL_FILE.exists());
+    }
+
     @Test
     public void rmTest() {
         Repository.clear();
@@ -84,6 +729,37 @@ public class CommandTest {
         assertTrue(join(Repository.CWD, filename).exists());
     }
 
+    @Test
+    public void stagingMarkerTest() {
+        Repository.clear();
+        Repository.init();
+        String filename = "file1.txt";
+        File file = join(Repository.CWD, filename);
+        writeContents(file, "file1");
+        Repository.add(filename);
+        Repository.commit("Add " + filename);
+        String hash = sha1("file1");
+
+        // a removal is staged with an empty marker rather than a copy of the blob
+        Repository.rm(filename);
+        File marker = Repository.hashFilename(Repository.STAGING_DIR, hash, "remove");
+        assertTrue(marker.exists());
+        assertEquals(0, marker.length());
+        Repository.commit("Remove " + filename);
+
+        // restaging a saved blob only marks it, and committing keeps the saved object
+        writeContents(file, "file1");
+        Repository.add(filename);
+        marker = Repository.hashFilename(Repository.STAGING_DIR, hash, "add");
+        assertEquals(0, marker.length());
+        Repository.commit("Add " + filename + " again");
+        assertEquals("file1", Repository.OBJECT_STORE.readAsString(hash));
+        writeContents(file, "overwritten");
+        Repository.checkout(filename);
+        assertEquals("file1", readContentsAsString(file));
+        file.delete();
+    }
+
     @Test
     public void logTest() {
         Repository.clear();
@@ -109,6 +785,31 @@ public class CommandTest {
         System.out.println("XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX");
     }
 
+    @Test
+    public void logLimitTest() {
+        Repository.clear();
+        Repository.init();
+        String filename = "file1.txt";
+        for (int i = 0; i < 3; i++) {
+            writeContents(join(Repository.CWD, filename), "version " + i);
+            Repository.add(filename);
+            Repository.commit("Commit " + i);
+        }
+        String twoEntries = output(() -> Repository.log(new String[]{"-n", "2"}));
+        String sinceEntries = output(() -> Repository.log(new String[]{"--since", "2000-01-01"}));
+        String oneEntry = output(() -> Repository.globalLog(new String[]{"-n", "1"}));
+        String error = output(() -> Repository.log(new String[]{"-n"}));
+
+        assertEquals(2, twoEntries.split("===\n", -1).length - 1);
+        assertTrue(twoEntries.contains("Commit 2") && twoEntries.contains("Commit 1"));
+        // the initial commit is older than the --since date
+        assertEquals(3, sinceEntries.split("===\n", -1).length - 1);
+        assertFalse(sinceEntries.contains("initial commit"));
+        assertEquals(1, oneEntry.split("===\n", -1).length - 1);
+        assertTrue(oneEntry.contains("Commit 2"));
+        assertEquals("Incorrect operands.", error.trim());
+    }
+
     @Test
     public void globalLogTest() {
         Repository.clear();
@@ -155,6 +856,48 @@ public class CommandTest {
         Repository.find("Add " + filename);
     }
 
+    @Test
+    public void messageIndexTest() {
+        Repository.clear();
+        Repository.init();
+        String[] messages = {"Add file1.txt", "Fix file1.txt", "Add file2.txt"};
+        String[] hashes = new String[messages.length];
+        for (int i = 0; i < messages.length; i++) {
+            String filename = "file" + i + ".txt";
+            writeContents(join(Repository.CWD, filename), messages[i]);
+            Repository.add(filename);
+            Repository.commit(messages[i]);
+            hashes[i] = Repository.currentHead.hash;
+            join(Repository.CWD, filename).delete();
+        }
+        MessageIndex index = Repository.messageIndex();
+        assertEquals(Arrays.asList(hashes[1]), index.find("Fix file1.txt"));
+        assertEquals(2, index.findPrefix("Add ").size());
+        assertEquals(2, index.findSubstring("file1").size());
+        assertEquals(4, index.findSubstring("i").size());
+        assertTrue(index.findSubstring("file3").isEmpty());
+
+        // the appended file is read back, and rebuilt once it is lost
+        MessageIndex loaded = MessageIndex.load(Repository.MESSAGE_INDEX_FILE, new CommitList(Repository.COMMIT_DIR));
+        assertEquals(index.findSubstring("file"), loaded.findSubstring("file"));
+        Repository.MESSAGE_INDEX_FILE.delete();
+        loaded = MessageIndex.load(Repository.MESSAGE_INDEX_FILE, new CommitList(Repository.COMMIT_DIR));
+        assertEquals(4, loaded.size());
+        assertEquals(Arrays.asList(hashes[0]), loaded.find("Add file1.txt"));
+
+        // a record torn by an interrupted append is recovered though the file was modified
+        // after the commit directory
+        loaded.save();
+        byte[] saved = readContents(Repository.MESSAGE_INDEX_FILE);
+        writeContents(Repository.MESSAGE_INDEX_FILE, Arrays.copyOf(saved, saved.length - 3));
+        Repository.MESSAGE_INDEX_FILE.setLastModified(Repository.COMMIT_DIR.lastModified() + 60000);
+        loaded = MessageIndex.load(Repository.MESSAGE_INDEX_FILE, new CommitList(Repository.COMMIT_DIR));
+        assertEquals(4, loaded.size());
+        assertTrue(loaded.isDirty());
+        loaded.save();
+        assertArrayEquals(saved, readContents(Repository.MESSAGE_INDEX_FILE));
+    }
+
     @Test
     public void statusTest() {
         Repository.clear();
@@ -190,6 +933,47 @@ public class CommandTest {
         System.out.println("XXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXXX");
     }
 
+    @Test
+    public void indexTest() {
+        Repository.clear();
+        Repository.init();
+        String filename = "file1.txt";
+        writeContents(join(Repository.CWD, filename), "file1");
+        Repository.add(filename);
+        Repository.commit("Add " + filename);
+        String filename2 = "file2.txt";
+        writeContents(join(Repository.CWD, filename2), "file2");
+        Repository.add(filename2);
+
+        // the staged and committed blobs survive a new process
+        Repository.blobMap.clear();
+        Repository.committedBlobMap.clear();
+        Repository.load();
+        assertEquals(sha1("file2"), Repository.blobMap.get(filename2));
+        assertEquals(sha1("file1"), Repository.committedBlobMap.get(filename));
+        assertEquals("main", Repository.currentBranch);
+
+        Index index = Index.read(Repository.INDEX_FILE);
+        assertEquals(Index.STAGED_ADD, index.get(filename2).stage);
+        assertTrue(index.isUnchanged(join(Repository.CWD, filename), filename));
+        writeContents(join(Repository.CWD, filename), "file1 modified");
+        assertFalse(index.isUnchanged(join(Repository.CWD, filename), filename));
+        assertEquals(sha1("file1 modified"), index.hashOf(join(Repository.CWD, filename), filename));
+
+        // a file modified at or after the time of the index file, by the clock of the file
+        // system, is smudged when the index is saved and hashed again later
+        File racy = join(Repository.CWD, filename);
+        assertTrue(racy.setLastModified(System.currentTimeMillis() + 60000));
+        index.hashOf(racy, filename);
+        index.write();
+        assertNull(index.get(filename).statHash);
+        assertFalse(Index.read(Repository.INDEX_FILE).isUnchanged(racy, filename));
+        assertTrue(racy.setLastModified(System.currentTimeMillis() - 60000));
+        index.hashOf(racy, filename);
+        index.write();
+        assertTrue(Index.read(Repository.INDEX_FILE).isUnchanged(racy, filename));
+    }
+
     @Test
     public void checkoutTest() {
         Repository.clear();
@@ -413,6 +1197,416 @@ public class CommandTest {
         assertEquals(filename4, readContentsAsString(join(Repository.CWD, filename4)));
     }
 
+    @Test
+    public void lineMergeTest() {
+        // the hunks of a diff turn the old lines into the new lines
+        Random random = new Random(16);
+        for (int round = 0; round < 50; round++) {
+            List<String> a = new ArrayList<>();
+            List<String> b = new ArrayList<>();
+            for (int i = random.nextInt(60); i > 0; i--) {
+                a.add(random.nextInt(8) + "\n");
+            }
+            for (int i = random.nextInt(60); i > 0; i--) {
+                b.add(random.nextInt(8) + "\n");
+            }
+            // the last line may have no terminator, which makes it differ from a terminated one
+            for (List<String> lines : Arrays.asList(a, b)) {
+                if (!lines.isEmpty() && random.nextBoolean()) {
+                    lines.set(lines.size() - 1, lines.get(lines.size() - 1).trim());
+                }
+            }
+            List<String> patched = new ArrayList<>();
+            int position = 0;
+            for (Diff.Hunk hunk : Diff.diff(a, b)) {
+                patched.addAll(a.subList(position, hunk.aStart));
+                patched.addAll(b.subList(hunk.bStart, hunk.bEnd));
+                position = hunk.aEnd;
+            }
+            patched.addAll(a.subList(position, a.size()));
+            assertEquals(b, patched);
+        }
+        assertEquals(1, Diff.diff(Diff.lines("a\nb\nc\n".getBytes()), Diff.lines("a\nB\nc\n".getBytes())).size());
+        List<Diff.Hunk> hunks = Diff.diff(Diff.lines("a\nb".getBytes()), Diff.lines("a\nb\nc\n".getBytes()));
+        assertEquals(1, hunks.size());
+        assertEquals(1, hunks.get(0).aStart);
+        assertEquals(1, hunks.get(0).bStart);
+        assertEquals(3, hunks.get(0).bEnd);
+
+        Repository.clear();
+        Repository.init();
+        String filename = "lines.txt";
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            builder.append("line ").append(i).append('\n');
+        }
+        String base = builder.toString();
+        writeContents(join(Repository.CWD, filename), base);
+        Repository.add(filename);
+        Repository.commit("Add " + filename);
+        Repository.branch("dev");
+
+        // edits to different lines on both branches are merged without conflict
+        writeContents(join(Repository.CWD, filename), base.replace("line 10\n", "main 10\n"));
+        Repository.add(filename);
+        Repository.commit("Modify line 10");
+        Repository.checkoutBranch("dev");
+        writeContents(join(Repository.CWD, filename), base.replace("line 90\n", "dev 90\n"));
+        Repository.add(filename);
+        Repository.commit("Modify line 90");
+        Repository.checkoutBranch("main");
+        Repository.merge("dev");
+        String merged = base.replace("line 10\n", "main 10\n").replace("line 90\n", "dev 90\n");
+        assertEquals(merged, readContentsAsString(join(Repository.CWD, filename)));
+        assertNotNull(Repository.currentHead.mergedParentHash);
+
+        // edits to the same line are a conflict around that line only
+        writeContents(join(Repository.CWD, filename), merged.replace("line 50\n", "main 50\n"));
+        Repository.add(filename);
+        Repository.commit("Modify line 50 on main");
+        Repository.checkoutBranch("dev");
+        writeContents(join(Repository.CWD, filename), merged.replace("line 50\n", "dev 50\n"));
+        Repository.add(filename);
+        Repository.commit("Modify line 50 on dev");
+        Repository.checkoutBranch("main");
+        Repository.merge("dev");
+        assertEquals(merged.replace("line 50\n", "<<<<<<< HEAD\nmain 50\n=======\ndev 50\n>>>>>>>\n"),
+                readContentsAsString(join(Repository.CWD, filename)));
+        join(Repository.CWD, filename).delete();
+    }
+
+    @Test
+    public void diffTest() {
+        Repository.clear();
+        Repository.init();
+        String filename = "diff.txt";
+        String other = "other.txt";
+        StringBuilder builder = new StringBuilder();
+        for (int i = 1; i <= 20; i++) {
+            builder.append("line ").append(i).append('\n');
+        }
+        String base = builder.toString();
+        writeContents(join(Repository.CWD, filename), base);
+        writeContents(join(Repository.CWD, other), "unchanged\n");
+        Repository.add(new String[]{filename, other});
+        Repository.commit("Add files");
+        String first = Repository.currentHead.hash;
+        writeContents(join(Repository.CWD, filename), base.replace("line 10\n", "line ten\n"));
+
+        // the working file against the staging area
+        String expected = "diff --git a/diff.txt b/diff.txt\n"
+                + "--- a/diff.txt\n"
+                + "+++ b/diff.txt\n"
+                + "@@ -7,7 +7,7 @@\n"
+                + " line 7\n line 8\n line 9\n-line 10\n+line ten\n line 11\n line 12\n line 13\n";
+        assertEquals(expected, output(() -> Repository.diff(new String[0])));
+
+        // nothing left to show once the change is staged, but still against the commit
+        Repository.add(filename);
+        assertEquals("", output(() -> Repository.diff(new String[0])));
+        assertEquals(expected, output(() -> Repository.diff(new String[]{first.substring(0, 8)})));
+
+        // two commits, limited to a path
+        Repository.rm(other);
+        Repository.commit("Modify " + filename);
+        String hash = Repository.currentHead.hash;
+        assertEquals("diff --git a/other.txt b/other.txt\n--- a/other.txt\n+++ /dev/null\n"
+                + "@@ -1 +0,0 @@\n-unchanged\n", output(() -> Repository.diff(new String[]{first, hash, "--", other})));
+        join(Repository.CWD, filename).delete();
+    }
+
+    @Test
+    public void lockTest() {
+        Repository.clear();
+        Repository.init();
+        Repository.lock();
+        Repository.unlock();
+        RepositoryLock lock = RepositoryLock.tryAcquire(Repository.LOCK_FILE);
+        assertNotNull(lock);
+        lock.close();
+
+        // a reader does not save an index that was saved by a writer since it was read
+        String filename = "locked.txt";
+        writeContents(join(Repository.CWD, filename), "locked");
+        Index stale = Index.read(Repository.INDEX_FILE);
+        assertTrue(stale.isCurrent());
+        Repository.lock();
+        try {
+            Repository.add(filename);
+        } finally {
+            Repository.unlock();
+        }
+        assertFalse(stale.isCurrent());
+        assertTrue(Index.read(Repository.INDEX_FILE).isCurrent());
+        join(Repository.CWD, filename).delete();
+    }
+
+    @Test
+    public void daemonTest() throws InterruptedException, IOException {
+        Repository.clear();
+        Repository.init();
+        assertFalse(Daemon.forward(new String[]{"status"}));
+
+        Thread daemon = new Thread(() -> Daemon.serve(Repository.DAEMON_FILE));
+        daemon.start();
+        for (int i = 0; i < 100 && !Repository.DAEMON_FILE.exists(); i++) {
+            Thread.sleep(20);
+        }
+        // a client that sends nothing, or a wrong token and a huge argument count, is
+        // dropped without stalling the daemon
+        int port = Integer.parseInt(readContentsAsString(Repository.DAEMON_FILE).split("\n")[0]);
+        int timeout = Daemon.REQUEST_TIMEOUT;
+        Daemon.REQUEST_TIMEOUT = 200;
+        Socket silent = new Socket(InetAddress.getLoopbackAddress(), port);
+        try (Socket stray = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            stray.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(stray.getOutputStream());
+            out.writeInt(0x4744454d);
+            out.writeInt(2);
+            out.write(new byte[32]);
+            out.writeUTF(Repository.CWD.getPath());
+            out.writeInt(Integer.MAX_VALUE);
+            out.flush();
+            assertEquals(-1, stray.getInputStream().read());
+            output(() -> assertTrue(Daemon.forward(new String[]{"status"})));
+        } finally {
+            silent.close();
+            Daemon.REQUEST_TIMEOUT = timeout;
+        }
+
+        String filename = "daemon.txt";
+        writeContents(join(Repository.CWD, filename), "served");
+        assertTrue(Daemon.forward(new String[]{"add", filename}));
+        assertTrue(Daemon.forward(new String[]{"commit", "Served by the daemon"}));
+        String log = output(() -> assertTrue(Daemon.forward(new String[]{"log", "-n", "1"})));
+        assertTrue(log, log.contains("Served by the daemon"));
+        assertTrue(Daemon.forward(new String[]{"daemon", "stop"}));
+        daemon.join(5000);
+        assertFalse(daemon.isAlive());
+        assertFalse(Repository.DAEMON_FILE.exists());
+        join(Repository.CWD, filename).delete();
+    }
+
+    @Test
+    public void gcTest() {
+        Repository.clear();
+        Repository.init();
+        String filename = "file1.txt";
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            builder.append("line ").append(i).append('\n');
+        }
+        String content = builder.toString();
+        writeContents(join(Repository.CWD, filename), content);
+        Repository.add(filename);
+        Repository.commit("Add " + filename);
+        String commitHash = Repository.currentHead.hash;
+
+        writeContents(join(Repository.CWD, filename), content + "one more line\n");
+        Repository.add(filename);
+        Repository.commit("Modify " + filename);
+        String hash = Repository.committedBlobMap.get(filename);
+        File file = Repository.hashFilename(Repository.OBJECTS_DIR, hash, null);
+        assertTrue(file.exists());
+
+        Repository.gc();
+        assertFalse(file.exists());
+        assertEquals(1, Repository.OBJECT_STORE.packs().size());
+        assertTrue(Repository.OBJECT_STORE.contains(hash));
+        // a missing object does not open the packs again while the pack directory is unchanged
+        List<PackFile> packs = Repository.OBJECT_STORE.packs();
+        assertFalse(Repository.OBJECT_STORE.contains(sha1("not an object")));
+        assertSame(packs, Repository.OBJECT_STORE.packs());
+        // but a pack written by another process is found
+        ObjectStore other = new ObjectStore(Repository.OBJECTS_DIR);
+        other.write(sha1("packed elsewhere"), "packed elsewhere".getBytes(StandardCharsets.UTF_8));
+        other.repack();
+        assertTrue(Repository.OBJECT_STORE.contains(sha1("packed elsewhere")));
+        assertTrue(Repository.OBJECT_STORE.contains(hash));
+
+        Repository.checkout(commitHash, filename);
+        assertEquals(content, readContentsAsString(join(Repository.CWD, filename)));
+        Repository.checkout(filename);
+        assertEquals(content + "one more line\n", readContentsAsString(join(Repository.CWD, filename)));
+    }
+
+    @Test
+    public void gcPruneTest() {
+        Repository.clear();
+        Repository.init();
+        String filename = "kept.txt";
+        writeContents(join(Repository.CWD, filename), "kept");
+        Repository.add(filename);
+        Repository.commit("Add " + filename);
+        String keptHash = Repository.committedBlobMap.get(filename);
+
+        // a commit only reachable from a deleted branch
+        Repository.branch("dropped");
+        Repository.checkoutBranch("dropped");
+        String dropped = "dropped.txt";
+        writeContents(join(Repository.CWD, dropped), "dropped");
+        Repository.add(dropped);
+        Repository.commit("Add " + dropped);
+        String droppedCommit = Repository.currentHead.hash;
+        String droppedHash = Repository.committedBlobMap.get(dropped);
+        Repository.checkoutBranch("main");
+        Repository.rmBranch("dropped");
+
+        // a blob replaced in the staging area, and one still staged
+        String staged = "staged.txt";
+        writeContents(join(Repository.CWD, staged), "first");
+        Repository.add(staged);
+        String replacedHash = Repository.blobMap.get(staged);
+        writeContents(join(Repository.CWD, staged), "second");
+        Repository.add(staged);
+        String stagedHash = Repository.blobMap.get(staged);
+
+        String removed = output(Repository::gc);
+        assertTrue(removed, removed.startsWith("Removed 1 commits and 2 objects, reclaimed "));
+        assertFalse(join(Repository.COMMIT_DIR, droppedCommit).exists());
+        assertFalse(Repository.OBJECT_STORE.contains(droppedHash));
+        assertTrue(Repository.OBJECT_STORE.contains(keptHash));
+        assertFalse(Repository.hashFilename(Repository.STAGING_DIR, replacedHash, "add").exists());
+        assertTrue(Repository.hashFilename(Repository.STAGING_DIR, stagedHash, "add").exists());
+        assertEquals(2, Repository.commitGraph().size());
+        assertTrue(Repository.messageIndex().find("Add " + dropped).isEmpty());
+        // the commit indexes were saved again without the removed commit
+        CommitGraph graph = CommitGraph.load(Repository.COMMIT_GRAPH_FILE, new CommitList(Repository.COMMIT_DIR));
+        assertEquals(2, graph.size());
+        assertFalse(graph.isDirty());
+        assertFalse(MessageIndex.load(Repository.MESSAGE_INDEX_FILE, new CommitList(Repository.COMMIT_DIR)).isDirty());
+        CommitIdIndex ids = CommitIdIndex.load(Repository.COMMIT_IDS_FILE, new CommitList(Repository.COMMIT_DIR));
+        assertFalse(ids.isDirty());
+        assertTrue(ids.find(droppedCommit, 1).isEmpty());
+
+        Repository.commit("Add " + staged);
+        assertEquals("second", Repository.OBJECT_STORE.readAsString(stagedHash));
+        for (String name : new String[]{filename, staged}) {
+            join(Repository.CWD, name).delete();
+        }
+    }
+
+    @Test
+    public void commitGraphTest() {
+        Repository.clear();
+        Repository.init();
+        String filename = "file1.txt";
+        writeContents(join(Repository.CWD, filename), "file1");
+        Repository.add(filename);
+        Repository.commit("Add " + filename);
+        String splitHash = Repository.currentHead.hash;
+        Repository.branch("dev");
+
+        writeContents(join(Repository.CWD, filename), "main");
+        Repository.add(filename);
+        Repository.commit("Modify " + filename + " in main");
+        String mainHash = Repository.currentHead.hash;
+
+        Repository.checkoutBranch("dev");
+        writeContents(join(Repository.CWD, filename), "dev");
+        Repository.add(filename);
+        Repository.commit("Modify " + filename + " in dev");
+        String devHash = Repository.currentHead.hash;
+
+        CommitGraph graph = Repository.commitGraph();
+        assertEquals(splitHash, graph.mergeBase(mainHash, devHash));
+        assertEquals(splitHash, graph.mergeBase(devHash, splitHash));
+        assertEquals(3, graph.generation(graph.position(devHash)));
+
+        // the graph read back from disk is the same as the one built by the commits
+        graph = CommitGraph.load(Repository.COMMIT_GRAPH_FILE, new CommitList(Repository.COMMIT_DIR));
+        assertEquals(4, graph.size());
+        assertEquals(splitHash, graph.mergeBase(mainHash, devHash));
+        assertEquals(graph.position(splitHash), graph.parent(graph.position(mainHash)));
+
+        // a file torn by a crash is rebuilt from the commits instead of failing, in memory
+        // only until it is saved by a process holding the writer lock
+        byte[] saved = readContents(Repository.COMMIT_GRAPH_FILE);
+        writeContents(Repository.COMMIT_GRAPH_FILE, Arrays.copyOf(saved, saved.length - 10));
+        graph = CommitGraph.load(Repository.COMMIT_GRAPH_FILE, new CommitList(Repository.COMMIT_DIR));
+        assertEquals(4, graph.size());
+        assertEquals(splitHash, graph.mergeBase(mainHash, devHash));
+        assertTrue(graph.isDirty());
+        assertEquals(saved.length - 10, Repository.COMMIT_GRAPH_FILE.length());
+        graph.save();
+        assertEquals(saved.length, Repository.COMMIT_GRAPH_FILE.length());
+
+        // a whole file saved before the last commit was written is rebuilt, while one saved
+        // after it is trusted without listing the commit directory
+        byte[] older = Arrays.copyOf(saved, 12 + 3 * 40);
+        ByteBuffer.wrap(older).putInt(8, 3);
+        writeContents(Repository.COMMIT_GRAPH_FILE, older);
+        long written = Repository.COMMIT_DIR.lastModified();
+        Repository.COMMIT_GRAPH_FILE.setLastModified(written - 60000);
+        graph = CommitGraph.load(Repository.COMMIT_GRAPH_FILE, new CommitList(Repository.COMMIT_DIR));
+        assertEquals(4, graph.size());
+        assertTrue(graph.isDirty());
+        Repository.COMMIT_GRAPH_FILE.setLastModified(written + 60000);
+        graph = CommitGraph.load(Repository.COMMIT_GRAPH_FILE, new CommitList(Repository.COMMIT_DIR));
+        assertEquals(3, graph.size());
+        assertFalse(graph.isDirty());
+        graph = CommitGraph.build(Repository.COMMIT_GRAPH_FILE, new CommitList(Repository.COMMIT_DIR));
+        graph.save();
+    }
+
+    @Test
+    public void largeFileTest() {
+        Repository.clear();
+        Repository.init();
+        String filename = "large.bin";
+        byte[] content = new byte[3 * Utils.BUFFER_SIZE + 17];
+        new Random(61).nextBytes(content);
+        File file = join(Repository.CWD, filename);
+        writeContents(file, content);
+        assertEquals(sha1(content), sha1(file));
+
+        Repository.add(filename);
+        Repository.commit("Add " + filename);
+        Repository.gc();
+        writeContents(file, "overwritten");
+        Repository.checkout(filename);
+        assertArrayEquals(content, readContents(file));
+        file.delete();
+    }
+
+    @Test
+    public void chunkedFileTest() {
+        Repository.clear();
+        Repository.init();
+        long threshold = Repository.CHUNK_THRESHOLD;
+        Repository.CHUNK_THRESHOLD = 64 * 1024;
+        try {
+            String filename = "chunked.bin";
+            byte[] content = new byte[1024 * 1024];
+            new Random(62).nextBytes(content);
+            File file = join(Repository.CWD, filename);
+            writeContents(file, content);
+            Repository.add(filename);
+            Repository.commit("Add " + filename);
+            String first = Repository.currentHead.hash;
+            int objects = Repository.OBJECT_STORE.looseIds().size();
+
+            // a one-byte edit only adds the chunks around it and a new manifest
+            byte[] edited = content.clone();
+            edited[content.length / 2] ^= 1;
+            writeContents(file, edited);
+            Repository.add(filename);
+            Repository.commit("Edit " + filename);
+            int added = Repository.OBJECT_STORE.looseIds().size() - objects;
+            assertTrue("added " + added + " objects", added <= 6);
+            assertArrayEquals(edited, Repository.OBJECT_STORE.read(sha1(edited)));
+
+            Repository.checkout(first, filename);
+            assertArrayEquals(content, readContents(file));
+            Repository.gc();
+            Repository.checkout(Repository.currentHead.hash, filename);
+            assertArrayEquals(edited, readContents(file));
+            file.delete();
+        } finally {
+            Repository.CHUNK_THRESHOLD = threshold;
+        }
+    }
+
     @Test
     public void integrationTest() {
 //        // gitlet init section
@@ -426,6 +1620,21 @@ public class CommandTest {
         commitSection();
     }
 
+    /**
+     * Run COMMAND and return what it printed to System.out.
+     */
+    private static String output(Runnable command) {
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(bytes));
+        try {
+            command.run();
+        } finally {
+            System.setOut(stdout);
+        }
+        return bytes.toString();
+    }
+
     private static void initSection() {
         String[] args = new String[]{"init"};
         Main.main(args);
@@ -444,14 +1653,14 @@ public class CommandTest {
         Main.main(args);
         String hash = sha1(content);
         File file = Repository.hashFilename(Repository.STAGING_DIR, hash, "add");
-        assertEquals(content, readContentsAsString(file));
+        assertEquals(content, new String(LooseObject.read(file), StandardCharsets.UTF_8));
 
         content = "overwrite file1\n";
         writeContents(join(Repository.CWD, filename), content);
         Main.main(args);
         hash = sha1(content);
         file = Repository.hashFilename(Repository.STAGING_DIR, hash, "add");
-        assertEquals(content, readContentsAsString(file));
+        assertEquals(content, new String(LooseObject.read(file), StandardCharsets.UTF_8));
 
         args = new String[]{"commit", "add test"};
         Main.main(args);
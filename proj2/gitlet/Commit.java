@@ -1,14 +1,54 @@
 package gitlet;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static gitlet.Utils.*;
 
 /**
  * Represents a gitlet commit object.
+ * <p>
+ * A commit is saved in a compact binary format: a magic number and a format version,
+ * followed by the message, author, timestamp, SHA1s of the parents and the SHA1 of the
+ * tree object listing its files. The file map is not part of the commit file, so commits
+ * sharing the same snapshot share the same tree, and reading a commit for `log` does not
+ * materialize its files.
+ * <p>
+ * Commits saved by Java serialization, before this format, are still read. Such a commit
+ * keeps its file map in memory, writes its tree the first time the tree is needed, and
+ * is saved again in this format by gc.
  *
  * @author Yuansong Zhang
  */
-public class Commit implements Serializable {
+public class Commit {
+
+    private static final int MAGIC = 0x474c434d; // "GLCM"
+
+    private static final int VERSION = 1;
+
+    /**
+     * The first bytes of a file written by Java serialization.
+     */
+    private static final int SERIALIZED_MAGIC = 0xaced0005;
+
+    /**
+     * The classes a commit saved by Java serialization is made of.
+     */
+    private static final Set<String> SERIALIZED_CLASSES = Set.of(
+            Legacy.class.getName(), HashMap.class.getName(), Map.Entry[].class.getName(), String.class.getName());
 
     /**
      * The message of this Commit.
@@ -41,18 +81,203 @@ public class Commit implements Serializable {
     public final String mergedParentHash;
 
     /**
-     * This is blob map from a filename (key) to SHA1 code (value) of the file
+     * SHA1 of the tree object of this Commit, or null until the tree is written.
+     */
+    private String treeHash;
+
+    /**
+     * This is blob map from a filename (key) to SHA1 code (value) of the file,
+     * or null until it is read from the tree.
+     */
+    private HashMap<String, String> blobMap;
+
+    /**
+     * The object store holding the tree of this Commit.
      */
-    public final HashMap<String, String> blobMap;
+    private final ObjectStore store;
+
+    /**
+     * Whether this Commit was read from a file saved by Java serialization.
+     */
+    private boolean legacy;
+
+    /**
+     * The fields of a commit saved by Java serialization, whose class was named Commit.
+     */
+    private static class Legacy implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private String message;
+        private String author;
+        private String timestamp;
+        private String hash;
+        private String parentHash;
+        private String mergedParentHash;
+        private HashMap<String, String> blobMap;
+    }
 
     public Commit(String message, String author, String timestamp, String hash, String parentHash,
                   String mergedParentHash, HashMap<String, String> blobMap) {
+        this(message, author, timestamp, hash, parentHash, mergedParentHash, null, Repository.OBJECT_STORE);
+        this.blobMap = blobMap == null ? new HashMap<>() : new HashMap<>(blobMap);
+    }
+
+    /**
+     * A Commit whose snapshot is the tree TREEHASH, which is already saved in the object store.
+     */
+    Commit(String message, String author, String timestamp, String hash, String parentHash,
+           String mergedParentHash, String treeHash) {
+        this(message, author, timestamp, hash, parentHash, mergedParentHash, treeHash, Repository.OBJECT_STORE);
+    }
+
+    private Commit(String message, String author, String timestamp, String hash, String parentHash,
+                   String mergedParentHash, String treeHash, ObjectStore store) {
         this.message = message;
         this.author = author;
         this.timestamp = timestamp;
         this.hash = hash;
         this.parentHash = parentHash;
         this.mergedParentHash = mergedParentHash;
-        this.blobMap = blobMap;
+        this.treeHash = treeHash;
+        this.store = store;
+    }
+
+    /**
+     * Return the blob map of this Commit, reading its tree on first use.
+     */
+    public HashMap<String, String> getBlobMap() {
+        if (blobMap == null) {
+            blobMap = Tree.read(store, treeHash);
+        }
+        return blobMap;
+    }
+
+    /**
+     * Return the SHA1 of the tree of this Commit, writing the tree if needed.
+     */
+    public String getTreeHash() {
+        if (treeHash == null) {
+            treeHash = Tree.write(store, blobMap);
+        }
+        return treeHash;
+    }
+
+    /**
+     * Return whether this Commit was read from a file saved by Java serialization, which
+     * should be saved again in the current format.
+     */
+    boolean isLegacy() {
+        return legacy;
+    }
+
+    /**
+     * Write this Commit to FILE, together with its tree.
+     */
+    void write(File file) {
+        writeContents(file, encode());
+    }
+
+    /**
+     * Return the contents of the file of this Commit, writing its tree if needed.
+     */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, hash);
+            writeString(out, message);
+            writeString(out, author);
+            writeString(out, timestamp);
+            writeString(out, parentHash);
+            writeString(out, mergedParentHash);
+            writeString(out, getTreeHash());
+        } catch (IOException excp) {
+            throw error("Internal error serializing commit.");
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Return the Commit saved in FILE whose tree is in STORE, or null if FILE does not exist.
+     * Only the commit itself is decoded; the tree is read when the blob map is first used.
+     */
+    static Commit read(File file, ObjectStore store) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+            int magic = in.readInt();
+            if (magic == SERIALIZED_MAGIC) {
+                return Commit.readSerialized(file, store);
+            }
+            if (magic != MAGIC) {
+                throw new IllegalArgumentException("not a commit: " + file);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("unsupported commit version " + version + ": " + file);
+            }
+            String hash = readString(in);
+            String message = readString(in);
+            String author = readString(in);
+            String timestamp = readString(in);
+            String parentHash = readString(in);
+            String mergedParentHash = readString(in);
+            String treeHash = readString(in);
+            return new Commit(message, author, timestamp, hash, parentHash, mergedParentHash, treeHash, store);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Return the Commit saved by Java serialization in FILE. The class of the stream is
+     * named Commit, so it is read into a Legacy, which has the same fields, and only the
+     * classes of these fields are accepted.
+     */
+    private static Commit readSerialized(File file, ObjectStore store) {
+        try (ObjectInputStream in = new ObjectInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+            @Override
+            protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+                ObjectStreamClass descriptor = super.readClassDescriptor();
+                if (descriptor.getName().equals(Commit.class.getName())) {
+                    return ObjectStreamClass.lookup(Legacy.class);
+                }
+                return descriptor;
+            }
+        }) {
+            in.setObjectInputFilter(info -> info.serialClass() == null
+                    || SERIALIZED_CLASSES.contains(info.serialClass().getName())
+                    ? ObjectInputFilter.Status.UNDECIDED : ObjectInputFilter.Status.REJECTED);
+            Legacy fields = (Legacy) in.readObject();
+            Commit commit = new Commit(fields.message, fields.author, fields.timestamp, fields.hash,
+                    fields.parentHash, fields.mergedParentHash, null, store);
+            commit.blobMap = fields.blobMap == null ? new HashMap<>() : new HashMap<>(fields.blobMap);
+            commit.legacy = true;
+            return commit;
+        } catch (IOException | ClassNotFoundException | ClassCastException excp) {
+            throw new IllegalArgumentException("not a commit: " + file);
+        }
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 }
@@ -0,0 +1,82 @@
+package gitlet;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/**
+ * A bounded cache of the commits read from a commit directory, evicting the least
+ * recently used commit once it holds more than its capacity. Commits are immutable
+ * once written, so a cached commit never goes stale.
+ *
+ * @author Yuansong Zhang
+ */
+class CommitCache {
+
+    private final File commitDir;
+
+    private final ObjectStore store;
+
+    private final LinkedHashMap<String, Commit> commits;
+
+    private long hits;
+
+    private long misses;
+
+    CommitCache(File commitDir, ObjectStore store, int capacity) {
+        this.commitDir = commitDir;
+        this.store = store;
+        this.commits = new LinkedHashMap<String, Commit>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Commit> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Return the commit HASH, reading it from the commit directory unless it is cached,
+     * or null if it does not exist. Missing commits are not cached, since they may be
+     * written later.
+     */
+    synchronized Commit get(String hash) {
+        Commit commit = commits.get(hash);
+        if (commit != null) {
+            hits++;
+            return commit;
+        }
+        misses++;
+        commit = Commit.read(join(commitDir, hash), store);
+        if (commit != null) {
+            commits.put(hash, commit);
+        }
+        return commit;
+    }
+
+    /**
+     * Cache COMMIT, which was just written.
+     */
+    synchronized void put(Commit commit) {
+        commits.put(commit.hash, commit);
+    }
+
+    synchronized void clear() {
+        commits.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    synchronized int size() {
+        return commits.size();
+    }
+
+    synchronized long hits() {
+        return hits;
+    }
+
+    synchronized long misses() {
+        return misses;
+    }
+}
@@ -0,0 +1,365 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static gitlet.Utils.*;
+
+/**
+ * The commit graph of a repository kept in a compact binary file, so that walking
+ * the history does not need to deserialize commits.
+ * <p>
+ * The file holds a header (magic, version, count) followed by one fixed-size record per
+ * commit: the SHA1, the positions of the parent and merged parent (-1 if absent), the
+ * generation number and the commit time in seconds. Parents always come before their
+ * children, so a record is appended on each commit.
+ * <p>
+ * A graph that misses commits is rebuilt in memory when loaded, and only saved by a
+ * process holding the writer lock, so that a reader never rewrites the file a writer is
+ * appending to.
+ *
+ * @author Yuansong Zhang
+ */
+class CommitGraph {
+
+    private static final int MAGIC = 0x47434752; // "GCGR"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 12;
+
+    private static final int RECORD_SIZE = UID_LENGTH / 2 + 4 + 4 + 4 + 8;
+
+    private static final int NONE = -1;
+
+    private final File file;
+
+    private final File commitDir;
+
+    private final ArrayList<String> hashes = new ArrayList<>();
+
+    private int[] parents = new int[16];
+
+    private int[] mergedParents = new int[16];
+
+    private int[] generations = new int[16];
+
+    private long[] timestamps = new long[16];
+
+    private final HashMap<String, Integer> positions = new HashMap<>();
+
+    /**
+     * Whether the graph has commits that the commit-graph file does not have.
+     */
+    private boolean dirty;
+
+    private CommitGraph(File file, File commitDir) {
+        this.file = file;
+        this.commitDir = commitDir;
+    }
+
+    /**
+     * Load the commit graph saved in FILE, or rebuild it in memory from the COMMITS if FILE
+     * does not exist, is out of date or is corrupt. COMMITS are only listed if FILE may be
+     * out of date.
+     */
+    static CommitGraph load(File file, CommitList commits) {
+        CommitGraph graph = new CommitGraph(file, commits.dir());
+        boolean whole = file.isFile() && graph.read();
+        if (!whole) {
+            // a file torn by a crash is rebuilt from scratch rather than trusted in part
+            graph = new CommitGraph(file, commits.dir());
+        }
+        if ((!whole || commits.changedSince(file)) && commits.hashes().size() != graph.size()) {
+            graph.rebuild(commits.hashes());
+        }
+        return graph;
+    }
+
+    /**
+     * Build the graph of the COMMITS from scratch, ignoring the commit-graph file FILE,
+     * without saving it.
+     */
+    static CommitGraph build(File file, CommitList commits) {
+        CommitGraph graph = new CommitGraph(file, commits.dir());
+        graph.rebuild(commits.hashes());
+        graph.dirty = true;
+        return graph;
+    }
+
+    /**
+     * Read the records of the commit-graph file, and return whether it is whole and valid.
+     */
+    private boolean read() {
+        long records = (file.length() - HEADER_SIZE) / RECORD_SIZE;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (file.length() < HEADER_SIZE || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            int count = in.readInt();
+            if (count < 0 || count > records) {
+                return false;
+            }
+            byte[] id = new byte[UID_LENGTH / 2];
+            for (int i = 0; i < count; i++) {
+                in.readFully(id);
+                int parent = in.readInt();
+                int mergedParent = in.readInt();
+                int generation = in.readInt();
+                long timestamp = in.readLong();
+                if (parent >= i || mergedParent >= i || parent < NONE || mergedParent < NONE) {
+                    return false;
+                }
+                put(PackFile.toHex(id), parent, mergedParent, generation, timestamp);
+            }
+        } catch (EOFException excp) {
+            return false;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return true;
+    }
+
+    int size() {
+        return hashes.size();
+    }
+
+    /**
+     * Return whether the graph was rebuilt since it was loaded or saved, so that it should
+     * be saved by a process holding the writer lock.
+     */
+    boolean isDirty() {
+        return dirty;
+    }
+
+    boolean contains(String hash) {
+        return positions.containsKey(hash);
+    }
+
+    /**
+     * Return the position of the commit HASH, or -1 if it is not in the graph.
+     */
+    int position(String hash) {
+        Integer position = positions.get(hash);
+        return position == null ? NONE : position;
+    }
+
+    String hash(int position) {
+        return hashes.get(position);
+    }
+
+    int parent(int position) {
+        return parents[position];
+    }
+
+    int mergedParent(int position) {
+        return mergedParents[position];
+    }
+
+    int generation(int position) {
+        return generations[position];
+    }
+
+    long timestamp(int position) {
+        return timestamps[position];
+    }
+
+    /**
+     * Append the commit HASH whose parents are PARENTHASH and MERGEDPARENTHASH (either may
+     * be null) and whose timestamp is TIMESTAMP, and save it to the commit-graph file.
+     */
+    void add(String hash, String parentHash, String mergedParentHash, String timestamp) {
+        if (positions.containsKey(hash)) {
+            return;
+        }
+        if ((parentHash != null && !contains(parentHash))
+                || (mergedParentHash != null && !contains(mergedParentHash))) {
+            rebuild(plainFilenamesIn(commitDir));
+            save();
+            return;
+        }
+        long seconds = convertStringToDate(timestamp).getTime() / 1000;
+        int position = put(hash, parentHash, mergedParentHash, seconds);
+        if (dirty) {
+            save();
+        } else {
+            append(position);
+        }
+    }
+
+    /**
+     * Return the SHA1 of the latest common ancestor of the commits A and B, or null if
+     * they have none.
+     * <p>
+     * Both sides are walked together, newest generation first, painting each commit with
+     * the sides it is reachable from. Since every ancestor of a commit has a smaller
+     * generation number, the first commit popped that is painted by both sides is a common
+     * ancestor that is not an ancestor of any other common ancestor. Merged parents are
+     * followed too, so criss-cross merges are handled.
+     */
+    String mergeBase(String a, String b) {
+        int first = position(a);
+        int second = position(b);
+        if (first == NONE || second == NONE) {
+            return null;
+        }
+        final int fromFirst = 1;
+        final int fromSecond = 2;
+        byte[] flags = new byte[size()];
+        boolean[] queued = new boolean[size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((x, y) -> {
+            int cmp = Integer.compare(generations[y], generations[x]);
+            return cmp != 0 ? cmp : Long.compare(timestamps[y], timestamps[x]);
+        });
+        flags[first] |= fromFirst;
+        flags[second] |= fromSecond;
+        queue.add(first);
+        queued[first] = true;
+        if (!queued[second]) {
+            queue.add(second);
+            queued[second] = true;
+        }
+        while (!queue.isEmpty()) {
+            int position = queue.poll();
+            if (flags[position] == (fromFirst | fromSecond)) {
+                return hashes.get(position);
+            }
+            for (int parent : new int[]{parents[position], mergedParents[position]}) {
+                if (parent == NONE) {
+                    continue;
+                }
+                flags[parent] |= flags[position];
+                if (!queued[parent]) {
+                    queue.add(parent);
+                    queued[parent] = true;
+                }
+            }
+        }
+        return null;
+    }
+
+    private int put(String hash, String parentHash, String mergedParentHash, long timestamp) {
+        int parent = parentHash == null ? NONE : position(parentHash);
+        int mergedParent = mergedParentHash == null ? NONE : position(mergedParentHash);
+        int generation = 1;
+        if (parent != NONE) {
+            generation = Math.max(generation, generations[parent] + 1);
+        }
+        if (mergedParent != NONE) {
+            generation = Math.max(generation, generations[mergedParent] + 1);
+        }
+        return put(hash, parent, mergedParent, generation, timestamp);
+    }
+
+    private int put(String hash, int parent, int mergedParent, int generation, long timestamp) {
+        int position = hashes.size();
+        if (position == parents.length) {
+            int capacity = position * 2;
+            parents = Arrays.copyOf(parents, capacity);
+            mergedParents = Arrays.copyOf(mergedParents, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+        }
+        hashes.add(hash);
+        parents[position] = parent;
+        mergedParents[position] = mergedParent;
+        generations[position] = generation;
+        timestamps[position] = timestamp;
+        positions.put(hash, position);
+        return position;
+    }
+
+    private void append(int position) {
+        if (!file.isFile() || file.length() != HEADER_SIZE + (long) position * RECORD_SIZE) {
+            save();
+            return;
+        }
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.seek(file.length());
+            out.write(PackFile.toBytes(hashes.get(position)));
+            out.writeInt(parents[position]);
+            out.writeInt(mergedParents[position]);
+            out.writeInt(generations[position]);
+            out.writeLong(timestamps[position]);
+            out.seek(8);
+            out.writeInt(size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Write the whole graph to a new file that replaces the commit-graph file at once, so
+     * that a crash or a concurrent reader never sees it half written. Only a process
+     * holding the writer lock may save the graph.
+     */
+    void save() {
+        file.getParentFile().mkdirs();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + size() * RECORD_SIZE);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size());
+            for (int i = 0; i < size(); i++) {
+                out.write(PackFile.toBytes(hashes.get(i)));
+                out.writeInt(parents[i]);
+                out.writeInt(mergedParents[i]);
+                out.writeInt(generations[i]);
+                out.writeLong(timestamps[i]);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        writeContentsAtomically(file, bytes.toByteArray());
+        dirty = false;
+    }
+
+    /**
+     * Add the commits of COMMITS missing from the graph, reading them from the commit
+     * directory parents first. The graph is not saved.
+     */
+    private void rebuild(List<String> commits) {
+        for (String start : commits) {
+            Deque<Commit> stack = new ArrayDeque<>();
+            if (!contains(start)) {
+                stack.push(Commit.read(join(commitDir, start), null));
+            }
+            while (!stack.isEmpty()) {
+                Commit commit = stack.peek();
+                boolean ready = true;
+                for (String parentHash : new String[]{commit.parentHash, commit.mergedParentHash}) {
+                    if (parentHash != null && !contains(parentHash) && join(commitDir, parentHash).exists()) {
+                        stack.push(Commit.read(join(commitDir, parentHash), null));
+                        ready = false;
+                    }
+                }
+                if (!ready) {
+                    continue;
+                }
+                stack.pop();
+                if (contains(commit.hash)) {
+                    continue;
+                }
+                Date date = convertStringToDate(commit.timestamp);
+                put(commit.hash, commit.parentHash, commit.mergedParentHash, date.getTime() / 1000);
+                dirty = true;
+            }
+        }
+    }
+}
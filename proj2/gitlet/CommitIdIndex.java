@@ -0,0 +1,367 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * The sorted SHA1s of all commits of a repository kept in the file `.gitlet/commit-ids`,
+ * so that an abbreviated commit id is resolved by a binary search rather than by listing
+ * the commit directory.
+ * <p>
+ * The file holds a magic number and a format version, a fanout table whose entry N is the
+ * number of commits whose first byte is at most N, then the sorted SHA1s as bytes, like the
+ * index of a pack file. It is memory-mapped. The SHA1 of each new commit is appended to
+ * an unsorted tail of at most TAIL_LIMIT SHA1s, kept sorted in memory, and the tail is
+ * merged into the sorted SHA1s in one rewrite once it is full, so that a commit does not
+ * copy the whole file. A file that does not list as many commits as the commit directory,
+ * as after a crash between a commit and its insertion, is rebuilt in memory when loaded,
+ * and only saved by a process holding the writer lock.
+ *
+ * @author Yuansong Zhang
+ */
+class CommitIdIndex {
+
+    private static final int MAGIC = 0x47434944; // "GCID"
+
+    private static final int VERSION = 1;
+
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    private static final int FANOUT_OFFSET = 8;
+
+    private static final int IDS_OFFSET = FANOUT_OFFSET + 256 * 4;
+
+    /**
+     * The number of SHA1s appended to the tail of the file before they are merged.
+     */
+    static int TAIL_LIMIT = 256;
+
+    private final File file;
+
+    private ByteBuffer buffer;
+
+    /**
+     * The number of sorted SHA1s in BUFFER, not counting the tail.
+     */
+    private int count;
+
+    /**
+     * The SHA1s of the tail of the file, in order.
+     */
+    private List<String> tail = new ArrayList<>();
+
+    /**
+     * Whether the index was rebuilt in memory and differs from the index file.
+     */
+    private boolean dirty;
+
+    private CommitIdIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Open the commit id index saved in FILE, or build it in memory from the COMMITS if FILE
+     * does not exist, is corrupt or does not have as many commits as COMMITS. COMMITS are
+     * only listed if FILE may be out of date.
+     */
+    static CommitIdIndex load(File file, CommitList commits) {
+        CommitIdIndex index = new CommitIdIndex(file);
+        if (!file.isFile() || !index.map()
+                || (commits.changedSince(file) && index.count != commits.hashes().size())) {
+            index.fill(commits.hashes());
+        }
+        return index;
+    }
+
+    /**
+     * Build the index of the COMMITS from scratch, ignoring the index file FILE, without
+     * saving it.
+     */
+    static CommitIdIndex build(File file, CommitList commits) {
+        CommitIdIndex index = new CommitIdIndex(file);
+        index.fill(commits.hashes());
+        return index;
+    }
+
+    int size() {
+        return count + tail.size();
+    }
+
+    /**
+     * Return whether the index was rebuilt since it was loaded or saved, so that it should
+     * be saved by a process holding the writer lock.
+     */
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Return the SHA1s of the commits starting with the hexadecimal PREFIX in order, but at
+     * most LIMIT of them. Returns an empty list if PREFIX is empty or not hexadecimal.
+     */
+    List<String> find(String prefix, int limit) {
+        List<String> result = new ArrayList<>();
+        prefix = prefix.toLowerCase();
+        if (prefix.isEmpty() || prefix.length() > UID_LENGTH || !prefix.matches("[0-9a-f]+")) {
+            return result;
+        }
+        // the range of first bytes the prefix may stand for
+        int firstByte;
+        int lastByte;
+        if (prefix.length() == 1) {
+            firstByte = Character.digit(prefix.charAt(0), 16) << 4;
+            lastByte = firstByte + 15;
+        } else {
+            firstByte = Integer.parseInt(prefix.substring(0, 2), 16);
+            lastByte = firstByte;
+        }
+        int low = firstByte == 0 ? 0 : fanout(firstByte - 1);
+        int high = fanout(lastByte);
+        for (int i = lowerBound(low, high, prefix); i < high && result.size() < limit; i++) {
+            if (compare(i, prefix) != 0) {
+                break;
+            }
+            result.add(hash(i));
+        }
+        boolean inTail = false;
+        for (String hash : tail) {
+            if (hash.startsWith(prefix)) {
+                result.add(hash);
+                inTail = true;
+            }
+        }
+        if (inTail) {
+            result.sort(null);
+            result.subList(Math.min(limit, result.size()), result.size()).clear();
+        }
+        return result;
+    }
+
+    /**
+     * Insert the commit HASH into the index and save it, unless it is indexed already.
+     * HASH is appended to the tail of the file, and the tail merged once it is full. The
+     * whole index is saved instead if it was rebuilt.
+     */
+    void add(String hash) {
+        List<String> existing = find(hash, 1);
+        if (!existing.isEmpty()) {
+            return;
+        }
+        if (dirty) {
+            List<String> hashes = hashes();
+            hashes.add(hash);
+            fill(hashes);
+            save();
+            return;
+        }
+        if (tail.size() >= TAIL_LIMIT) {
+            addAll(Collections.singletonList(hash));
+            return;
+        }
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            writeFully(out, ByteBuffer.wrap(PackFile.toBytes(hash)));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        int position = Collections.binarySearch(tail, hash);
+        tail.add(-position - 1, hash);
+    }
+
+    /**
+     * Insert the commits HASHES that are not indexed yet into the index and save it once,
+     * merging them and the tail in order with the sorted SHA1s, rather than rewriting the
+     * index for each of them.
+     */
+    void addAll(Collection<String> hashes) {
+        TreeSet<String> added = new TreeSet<>();
+        for (String hash : hashes) {
+            if (find(hash, 1).isEmpty()) {
+                added.add(hash);
+            }
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+        added.addAll(tail);
+        int total = count + added.size();
+        ByteBuffer bytes = ByteBuffer.allocate(IDS_OFFSET + total * ID_LENGTH);
+        bytes.position(IDS_OFFSET);
+        int position = 0;
+        for (String hash : added) {
+            int end = lowerBound(position, count, hash);
+            copyIds(position, end, bytes);
+            bytes.put(PackFile.toBytes(hash));
+            position = end;
+        }
+        copyIds(position, count, bytes);
+        int[] fanout = new int[256];
+        for (int i = 0; i < total; i++) {
+            fanout[bytes.get(IDS_OFFSET + i * ID_LENGTH) & 0xff]++;
+        }
+        bytes.position(0);
+        bytes.putInt(MAGIC);
+        bytes.putInt(VERSION);
+        int sum = 0;
+        for (int i = 0; i < 256; i++) {
+            sum += fanout[i];
+            bytes.putInt(sum);
+        }
+        buffer = bytes;
+        count = total;
+        tail = new ArrayList<>();
+        save();
+    }
+
+    /**
+     * Copy the indexed SHA1s from position FROM to position TO, exclusive, to BYTES.
+     */
+    private void copyIds(int from, int to, ByteBuffer bytes) {
+        ByteBuffer ids = buffer.duplicate();
+        ids.limit(IDS_OFFSET + to * ID_LENGTH).position(IDS_OFFSET + from * ID_LENGTH);
+        bytes.put(ids);
+    }
+
+    /**
+     * Write the index to a new file that replaces the index file at once, with the tail
+     * merged. Only a process holding the writer lock may save the index.
+     */
+    void save() {
+        if (!tail.isEmpty()) {
+            fill(hashes());
+        }
+        byte[] bytes = new byte[IDS_OFFSET + count * ID_LENGTH];
+        buffer.duplicate().position(0).get(bytes);
+        writeContentsAtomically(file, bytes);
+        map();
+        dirty = false;
+    }
+
+    /**
+     * Return all the indexed SHA1s, the sorted ones followed by the tail.
+     */
+    private List<String> hashes() {
+        List<String> result = new ArrayList<>(size() + 1);
+        for (int i = 0; i < count; i++) {
+            result.add(hash(i));
+        }
+        result.addAll(tail);
+        return result;
+    }
+
+    /**
+     * Index the commits HASHES in memory only, without saving the index.
+     */
+    private void fill(List<String> hashes) {
+        List<String> sorted = new ArrayList<>(hashes);
+        sorted.sort(null);
+        int[] fanout = new int[256];
+        for (String hash : sorted) {
+            fanout[Integer.parseInt(hash.substring(0, 2), 16)]++;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(IDS_OFFSET + sorted.size() * ID_LENGTH);
+        bytes.putInt(MAGIC);
+        bytes.putInt(VERSION);
+        int total = 0;
+        for (int i = 0; i < 256; i++) {
+            total += fanout[i];
+            bytes.putInt(total);
+        }
+        for (String hash : sorted) {
+            bytes.put(PackFile.toBytes(hash));
+        }
+        buffer = bytes;
+        count = sorted.size();
+        tail = new ArrayList<>();
+        dirty = true;
+    }
+
+    /**
+     * Map the index file, and return whether it is whole and valid.
+     */
+    private boolean map() {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (buffer.capacity() < IDS_OFFSET || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            return false;
+        }
+        count = fanout(255);
+        long tailOffset = IDS_OFFSET + (long) count * ID_LENGTH;
+        // a tail record torn by an interrupted append makes the file invalid
+        if (count < 0 || buffer.capacity() < tailOffset || (buffer.capacity() - tailOffset) % ID_LENGTH != 0) {
+            return false;
+        }
+        tail = new ArrayList<>();
+        for (int offset = (int) tailOffset; offset < buffer.capacity(); offset += ID_LENGTH) {
+            tail.add(hashAt(offset));
+        }
+        tail.sort(null);
+        return true;
+    }
+
+    private int fanout(int firstByte) {
+        return buffer.getInt(FANOUT_OFFSET + firstByte * 4);
+    }
+
+    private String hash(int position) {
+        return hashAt(IDS_OFFSET + position * ID_LENGTH);
+    }
+
+    private String hashAt(int offset) {
+        byte[] id = new byte[ID_LENGTH];
+        for (int i = 0; i < ID_LENGTH; i++) {
+            id[i] = buffer.get(offset + i);
+        }
+        return PackFile.toHex(id);
+    }
+
+    /**
+     * Return the first position between LOW and HIGH whose SHA1 is not smaller than PREFIX.
+     */
+    private int lowerBound(int low, int high, String prefix) {
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(mid, prefix) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compare the SHA1 at POSITION, cut to the length of the hexadecimal PREFIX, with PREFIX.
+     */
+    private int compare(int position, String prefix) {
+        int offset = IDS_OFFSET + position * ID_LENGTH;
+        for (int i = 0; i < prefix.length(); i++) {
+            int b = buffer.get(offset + i / 2) & 0xff;
+            int digit = i % 2 == 0 ? b >>> 4 : b & 0xf;
+            int cmp = Integer.compare(digit, Character.digit(prefix.charAt(i), 16));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    private static void writeFully(FileChannel out, ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+}
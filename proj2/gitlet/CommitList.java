@@ -0,0 +1,61 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/**
+ * The commits of a commit directory, listed at most once however many of the commit
+ * indexes are loaded from it.
+ * <p>
+ * A commit is always written to the directory before it is added to the indexes, so an
+ * index file modified after the directory lists all its commits, and the directory is
+ * only listed to check an index saved before the last commit was written.
+ *
+ * @author Yuansong Zhang
+ */
+class CommitList {
+
+    private final File commitDir;
+
+    private List<String> hashes;
+
+    CommitList(File commitDir) {
+        this.commitDir = commitDir;
+    }
+
+    File dir() {
+        return commitDir;
+    }
+
+    /**
+     * Return the SHA1s of the commits in the directory, listing it on first use.
+     */
+    List<String> hashes() {
+        if (hashes == null) {
+            hashes = plainFilenamesIn(commitDir);
+            if (hashes == null) {
+                hashes = new ArrayList<>();
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Return whether a commit may have been written to the directory since the index file
+     * FILE was last modified, so that the directory must be listed to check it. Times that
+     * are equal count as changed, since the clock may not tell the writes apart.
+     */
+    boolean changedSince(File file) {
+        try {
+            return Files.getLastModifiedTime(commitDir.toPath())
+                    .compareTo(Files.getLastModifiedTime(file.toPath())) >= 0;
+        } catch (IOException excp) {
+            return true;
+        }
+    }
+}
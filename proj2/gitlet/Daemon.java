@@ -0,0 +1,235 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import static gitlet.Utils.*;
+
+/**
+ * A long-running process serving the commands of one repository, so that the commit
+ * cache, the commit graph, the indexes and the opened packs stay in memory between
+ * commands instead of being read again by every `gitlet` process.
+ * <p>
+ * `gitlet daemon` listens on a port of the loopback interface, written to the file
+ * `.gitlet/daemon` together with a random token; Unix domain sockets need Java 16, so a
+ * loopback socket only accepting clients that read the token stands in for one. A client
+ * sends the token, its working directory and the arguments of its command; the daemon
+ * answers with one byte accepting the command, the client confirms it with one byte, and
+ * the daemon sends the output of the command until it closes the connection. A client that
+ * cannot connect, or whose command is not accepted within ACCEPT_TIMEOUT milliseconds, as
+ * while the daemon runs a long command of another client, gives up the connection and runs
+ * the command in its own process instead; as the daemon only runs a command once confirmed,
+ * it is never run twice. Commands are run one at a time, and take the writer lock like any
+ * other process. A client that does not send its whole request within REQUEST_TIMEOUT
+ * milliseconds is dropped, and nothing is read past a wrong token, so that a stray client
+ * neither stalls the daemon nor makes it allocate memory. `gitlet daemon stop` stops the daemon, which
+ * also stops by itself when idle for IDLE_TIMEOUT milliseconds.
+ *
+ * @author Yuansong Zhang
+ */
+class Daemon {
+
+    private static final int MAGIC = 0x4744454d; // "GDEM"
+
+    private static final int VERSION = 2;
+
+    private static final byte ACCEPTED = 1;
+
+    private static final byte CONFIRMED = 1;
+
+    private static final int MAX_ARGS = 1024;
+
+    private static final String STOP = "stop";
+
+    static int IDLE_TIMEOUT = 30 * 60 * 1000;
+
+    static int REQUEST_TIMEOUT = 5000;
+
+    private static final int CONNECT_TIMEOUT = 500;
+
+    private static final int ACCEPT_TIMEOUT = 2000;
+
+    private Daemon() {
+    }
+
+    /**
+     * `gitlet daemon` command: serve the repository in the current directory until stopped,
+     * or stop the running daemon if ARGS is `stop`.
+     */
+    static void daemon(String[] args) {
+        if (args.length == 1 && args[0].equals(STOP)) {
+            if (!Daemon.forward(new String[]{"daemon", STOP})) {
+                System.out.println("No daemon is running.");
+            }
+            return;
+        }
+        if (args.length != 0) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        Daemon.serve(Repository.DAEMON_FILE);
+    }
+
+    /**
+     * Listen for commands and run them until stopped, advertising the port and the token
+     * in DAEMONFILE.
+     */
+    static void serve(File daemonFile) {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        String token = PackFile.toHex(bytes);
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            server.setSoTimeout(IDLE_TIMEOUT);
+            writeContentsAtomically(daemonFile, server.getLocalPort() + "\n" + token + "\n");
+            try {
+                boolean running = true;
+                while (running) {
+                    Socket socket;
+                    try {
+                        socket = server.accept();
+                    } catch (SocketTimeoutException excp) {
+                        break;
+                    }
+                    try (socket) {
+                        socket.setSoTimeout(REQUEST_TIMEOUT);
+                        running = Daemon.handle(socket, token);
+                    } catch (IOException excp) {
+                        // the client went away or was too slow; keep serving the others
+                    }
+                }
+            } finally {
+                // another daemon may have been started since and advertised itself
+                if (daemonFile.isFile() && readContentsAsString(daemonFile).endsWith(token + "\n")) {
+                    daemonFile.delete();
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Run the command sent on SOCKET if the client sent TOKEN, works in the directory of
+     * the repository and confirms the command once accepted. Returns false if the daemon
+     * was asked to stop.
+     */
+    private static boolean handle(Socket socket, String token) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+            return true;
+        }
+        byte[] expected = token.getBytes(StandardCharsets.UTF_8);
+        byte[] clientToken = new byte[expected.length];
+        in.readFully(clientToken);
+        if (!MessageDigest.isEqual(clientToken, expected)) {
+            return true;
+        }
+        String directory = in.readUTF();
+        int count = in.readInt();
+        if (!directory.equals(Repository.CWD.getPath()) || count <= 0 || count > MAX_ARGS) {
+            return true;
+        }
+        String[] args = new String[count];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+        out.write(ACCEPTED);
+        out.flush();
+        // a client that gave up waiting runs the command itself and never confirms it
+        if (in.read() != CONFIRMED) {
+            return true;
+        }
+        socket.setSoTimeout(0);
+        if (args[0].equals("daemon")) {
+            return !(args.length == 2 && args[1].equals(STOP));
+        }
+
+        PrintStream stdout = System.out;
+        PrintStream commandOut = new PrintStream(out, false, "UTF-8");
+        System.setOut(commandOut);
+        boolean failed = true;
+        try {
+            Repository.refresh();
+            Main.execute(args);
+            failed = false;
+        } catch (RuntimeException excp) {
+            commandOut.println(excp.getMessage());
+        } finally {
+            System.setOut(stdout);
+            Repository.keepWarm(failed);
+            commandOut.flush();
+        }
+        return true;
+    }
+
+    /**
+     * Send the command ARGS to the daemon of the repository in the current directory and
+     * copy its output to the standard output. Returns false, without running the command,
+     * if no daemon accepted it.
+     */
+    static boolean forward(String[] args) {
+        File daemonFile = Repository.DAEMON_FILE;
+        if (!daemonFile.isFile()) {
+            return false;
+        }
+        int port;
+        String token;
+        try {
+            String[] lines = readContentsAsString(daemonFile).split("\n");
+            port = Integer.parseInt(lines[0]);
+            token = lines[1];
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException excp) {
+            return false;
+        }
+        PrintStream stdout = System.out;
+        boolean accepted = false;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+            socket.setSoTimeout(ACCEPT_TIMEOUT);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(token.getBytes(StandardCharsets.UTF_8));
+            out.writeUTF(Repository.CWD.getPath());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+            out.flush();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            if (in.read() != ACCEPTED) {
+                return false;
+            }
+            // from here on the daemon runs the command, however long it takes
+            out.write(CONFIRMED);
+            out.flush();
+            accepted = true;
+            socket.setSoTimeout(0);
+            copyStream(in, stdout);
+            stdout.flush();
+            return true;
+        } catch (IOException excp) {
+            if (accepted) {
+                // the command may have run already, so it is not run again
+                stdout.println("Lost connection to the daemon: " + excp.getMessage());
+            }
+            return accepted;
+        }
+    }
+}
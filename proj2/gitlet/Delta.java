@@ -0,0 +1,158 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Binary delta encoding used by pack files, in the spirit of git's copy/insert deltas.
+ * A delta is the target length followed by a sequence of instructions, each being either
+ * a copy of a range of the base or an insertion of literal bytes.
+ *
+ * @author Yuansong Zhang
+ */
+class Delta {
+
+    /**
+     * Size of the blocks of the base that are indexed for matching.
+     */
+    private static final int BLOCK = 16;
+
+    /**
+     * Instruction tag copying a range of the base.
+     */
+    private static final int COPY = 0;
+
+    /**
+     * Instruction tag inserting literal bytes.
+     */
+    private static final int INSERT = 1;
+
+    /**
+     * The longest literal run of a single insert instruction.
+     */
+    private static final int MAX_INSERT = 1 << 16;
+
+    /**
+     * Return a delta turning BASE into TARGET, or null if no delta smaller than
+     * MAXSIZE bytes exists.
+     */
+    static byte[] create(byte[] base, byte[] target, int maxSize) {
+        if (base.length < BLOCK || target.length < BLOCK) {
+            return null;
+        }
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hashBlock(base, i), i);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarInt(out, target.length);
+        int literalStart = 0;
+        int i = 0;
+        while (i + BLOCK <= target.length) {
+            Integer baseOffset = blocks.get(hashBlock(target, i));
+            if (baseOffset == null || !regionMatches(base, baseOffset, target, i, BLOCK)) {
+                i++;
+                continue;
+            }
+            // extend the match backwards over pending literals and forwards as far as possible
+            int start = baseOffset;
+            while (start > 0 && i > literalStart && base[start - 1] == target[i - 1]) {
+                start--;
+                i--;
+            }
+            int length = 0;
+            while (start + length < base.length && i + length < target.length
+                    && base[start + length] == target[i + length]) {
+                length++;
+            }
+            writeInsert(out, target, literalStart, i);
+            out.write(COPY);
+            writeVarInt(out, start);
+            writeVarInt(out, length);
+            i += length;
+            literalStart = i;
+            if (out.size() >= maxSize) {
+                return null;
+            }
+        }
+        writeInsert(out, target, literalStart, target.length);
+        if (out.size() >= maxSize) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Return the result of applying DELTA to BASE.
+     */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        int length = readVarInt(delta, pos);
+        byte[] result = new byte[length];
+        int written = 0;
+        while (pos[0] < delta.length) {
+            int tag = delta[pos[0]++];
+            if (tag == COPY) {
+                int offset = readVarInt(delta, pos);
+                int size = readVarInt(delta, pos);
+                System.arraycopy(base, offset, result, written, size);
+                written += size;
+            } else if (tag == INSERT) {
+                int size = readVarInt(delta, pos);
+                System.arraycopy(delta, pos[0], result, written, size);
+                pos[0] += size;
+                written += size;
+            } else {
+                throw new IllegalArgumentException("corrupt delta instruction " + tag);
+            }
+        }
+        if (written != length) {
+            throw new IllegalArgumentException("corrupt delta: expected " + length + " bytes but got " + written);
+        }
+        return result;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        while (from < to) {
+            int size = Math.min(to - from, MAX_INSERT);
+            out.write(INSERT);
+            writeVarInt(out, size);
+            out.write(target, from, size);
+            from += size;
+        }
+    }
+
+    private static int hashBlock(byte[] data, int offset) {
+        int hash = 0;
+        for (int i = offset; i < offset + BLOCK; i++) {
+            hash = hash * 31 + data[i];
+        }
+        return hash;
+    }
+
+    private static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        return Arrays.equals(a, aOffset, aOffset + length, b, bOffset, bOffset + length);
+    }
+
+    private static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(byte[] data, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[pos[0]++] & 0xff;
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,525 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * The differences between two versions of a file, line by line.
+ * <p>
+ * The shortest edit script is found by the linear-space variant of Myers' algorithm: the
+ * middle snake of the edit graph is searched from both ends at once, then the two halves
+ * on either side of it are compared recursively. Lines are replaced by integer ids before
+ * the comparison, so the working memory is two arrays of diagonals rather than a table of
+ * every edit path, and the common prefix and suffix of each range are skipped first.
+ * <p>
+ * Both versions are held whole as bytes, possibly mapped from a file, with the offset of
+ * every line. The common prefix
+ * and suffix of the two versions are found on the bytes, and only the lines between them
+ * are given ids, by a table of ints that compares lines as bytes, so no line is decoded.
+ * Beyond the two versions, the memory used is an int per line plus a few ints per line
+ * of the region between the common prefix and suffix.
+ * <p>
+ * The differences are written as a unified diff, each hunk with up to CONTEXT unchanged
+ * lines around it, hunks closer than twice that being joined.
+ *
+ * @author Yuansong Zhang
+ */
+class Diff {
+
+    static final int CONTEXT = 3;
+
+    /**
+     * The number of leading bytes looked at to tell whether a file is binary.
+     */
+    static final int BINARY_PREFIX = 8000;
+
+    private static final String NO_NEWLINE = "\\ No newline at end of file\n";
+
+    /**
+     * A range of lines that differ: the lines [ASTART, AEND) of the old version were
+     * replaced by the lines [BSTART, BEND) of the new version. Either range may be empty.
+     */
+    static class Hunk {
+        final int aStart;
+        final int aEnd;
+        final int bStart;
+        final int bEnd;
+
+        Hunk(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    private final int[] a;
+
+    private final int[] b;
+
+    /**
+     * Receives each hunk once it can no longer be extended, in order.
+     */
+    private final Consumer<Hunk> sink;
+
+    /**
+     * The last hunk found, which a hunk found next may still extend.
+     */
+    private Hunk pending;
+
+    private Diff(int[] a, int[] b, Consumer<Hunk> sink) {
+        this.a = a;
+        this.b = b;
+        this.sink = sink;
+    }
+
+    /**
+     * The lines of a file, each with its line terminator, as a view of the contents of the
+     * file, which may be a buffer mapped from the file: only the offsets of the lines are
+     * kept, and a line is decoded when it is read. The bytes are decoded as ISO-8859-1 so
+     * that they are written back unchanged whatever their encoding.
+     */
+    private static class Lines extends AbstractList<String> {
+        private final ByteBuffer content;
+        private final int length;
+        private final int[] starts;
+
+        Lines(ByteBuffer content) {
+            this.content = content.slice();
+            length = this.content.limit();
+            int count = 0;
+            for (int i = 0; i < length; i++) {
+                if (this.content.get(i) == '\n') {
+                    count++;
+                }
+            }
+            boolean unterminated = length > 0 && this.content.get(length - 1) != '\n';
+            starts = new int[count + (unterminated ? 1 : 0) + 1];
+            int line = 1;
+            for (int i = 0; i < length; i++) {
+                if (this.content.get(i) == '\n') {
+                    starts[line++] = i + 1;
+                }
+            }
+            starts[starts.length - 1] = length;
+        }
+
+        @Override
+        public String get(int index) {
+            byte[] bytes = new byte[starts[index + 1] - starts[index]];
+            content.duplicate().position(starts[index]).get(bytes);
+            return new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+
+        int hash(int index) {
+            int hash = 1;
+            for (int i = starts[index]; i < starts[index + 1]; i++) {
+                hash = 31 * hash + content.get(i);
+            }
+            return hash ^ (hash >>> 16);
+        }
+
+        boolean lineEquals(int index, Lines other, int otherIndex) {
+            int start = starts[index];
+            int otherStart = other.starts[otherIndex];
+            int size = starts[index + 1] - start;
+            if (size != other.starts[otherIndex + 1] - otherStart) {
+                return false;
+            }
+            for (int i = 0; i < size; i++) {
+                if (content.get(start + i) != other.content.get(otherStart + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Return the number of leading lines this and OTHER have in common, found by
+         * comparing their bytes.
+         */
+        int commonPrefix(Lines other) {
+            int mismatch = content.mismatch(other.content);
+            if (mismatch < 0) {
+                return size();
+            }
+            // the lines ending at or before the first differing byte, with a terminator,
+            // since a shorter unterminated line differs from the longer one
+            int count = upperBound(mismatch) - 1;
+            if (count > 0 && content.get(starts[count] - 1) != '\n') {
+                count--;
+            }
+            return count;
+        }
+
+        /**
+         * Return the number of trailing lines this and OTHER have in common, not counting
+         * their first PREFIX lines, found by comparing their bytes.
+         */
+        int commonSuffix(Lines other, int prefix) {
+            int limit = Math.min(length - starts[prefix], other.length - other.starts[prefix]);
+            int common = 0;
+            while (common < limit
+                    && content.get(length - 1 - common) == other.content.get(other.length - 1 - common)) {
+                common++;
+            }
+            // the lines whose preceding terminator is in common, so they start a line in both
+            int first = Math.min(upperBound(length - common), size());
+            return Math.min(size() - first, Math.min(size(), other.size()) - prefix);
+        }
+
+        /**
+         * Return the index of the first line starting after OFFSET, where the line after the
+         * last one starts at the end of the contents.
+         */
+        private int upperBound(int offset) {
+            int low = 0;
+            int high = starts.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= offset) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        @Override
+        public int size() {
+            return starts.length - 1;
+        }
+    }
+
+    /**
+     * Return the lines of CONTENT, each with its line terminator.
+     */
+    static List<String> lines(byte[] content) {
+        return new Lines(ByteBuffer.wrap(content));
+    }
+
+    /**
+     * Return the lines of the remaining bytes of CONTENT, each with its line terminator,
+     * as a view of CONTENT.
+     */
+    static List<String> lines(ByteBuffer content) {
+        return new Lines(content);
+    }
+
+    /**
+     * Return LINES, each with its line terminator, as a view of their bytes.
+     */
+    private static Lines asLines(List<String> lines) {
+        if (lines instanceof Lines) {
+            return (Lines) lines;
+        }
+        StringBuilder content = new StringBuilder();
+        for (String line : lines) {
+            content.append(line);
+        }
+        return new Lines(ByteBuffer.wrap(content.toString().getBytes(StandardCharsets.ISO_8859_1)));
+    }
+
+    /**
+     * Return whether CONTENT looks like a binary file, that is, has a NUL byte in its
+     * first BINARY_PREFIX bytes, in which case it is not compared line by line.
+     */
+    static boolean isBinary(byte[] content) {
+        for (int i = 0; i < content.length && i < BINARY_PREFIX; i++) {
+            if (content[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return whether the contents read from IN look like a binary file, reading only their
+     * first BINARY_PREFIX bytes.
+     */
+    static boolean isBinary(InputStream in) throws IOException {
+        return Diff.isBinary(in.readNBytes(BINARY_PREFIX));
+    }
+
+    /**
+     * Return the ranges of lines that differ between A and B, in order.
+     */
+    static List<Hunk> diff(List<String> a, List<String> b) {
+        List<Hunk> result = new ArrayList<>();
+        Diff.diff(Diff.asLines(a), Diff.asLines(b), result::add);
+        return result;
+    }
+
+    /**
+     * Pass the ranges of lines that differ between A and B to SINK in order, each once it
+     * is found and can no longer be extended.
+     */
+    private static void diff(Lines a, Lines b, Consumer<Hunk> sink) {
+        int prefix = a.commonPrefix(b);
+        int suffix = a.commonSuffix(b, prefix);
+        int aEnd = a.size() - suffix;
+        int bEnd = b.size() - suffix;
+        LineIds ids = new LineIds(aEnd - prefix + bEnd - prefix);
+        Diff diff = new Diff(ids.intern(a, prefix, aEnd), ids.intern(b, prefix, bEnd), hunk -> sink.accept(
+                new Hunk(hunk.aStart + prefix, hunk.aEnd + prefix, hunk.bStart + prefix, hunk.bEnd + prefix)));
+        diff.compare(0, diff.a.length, 0, diff.b.length);
+        if (diff.pending != null) {
+            diff.sink.accept(diff.pending);
+        }
+    }
+
+    /**
+     * Write the unified diff turning the lines A of the file OLDNAME into the lines B of the
+     * file NEWNAME to OUT. The hunks are written while they are found, each group of hunks
+     * sharing their context as soon as the next hunk is too far to join it, so that only
+     * the group being formatted is kept.
+     */
+    static void writeUnified(OutputStream out, String oldName, String newName, List<String> a,
+                             List<String> b) throws IOException {
+        out.write(("--- " + oldName + "\n+++ " + newName + "\n").getBytes(StandardCharsets.UTF_8));
+        UnifiedWriter writer = new UnifiedWriter(out, a, b);
+        try {
+            Diff.diff(Diff.asLines(a), Diff.asLines(b), writer);
+            writer.flush();
+        } catch (UncheckedIOException excp) {
+            throw excp.getCause();
+        }
+    }
+
+    /**
+     * Writes the hunks it receives in order as a unified diff, joining the hunks closer
+     * than twice CONTEXT lines into one group with their context.
+     */
+    private static class UnifiedWriter implements Consumer<Hunk> {
+        private final OutputStream out;
+        private final List<String> a;
+        private final List<String> b;
+        private final List<Hunk> group = new ArrayList<>();
+
+        UnifiedWriter(OutputStream out, List<String> a, List<String> b) {
+            this.out = out;
+            this.a = a;
+            this.b = b;
+        }
+
+        @Override
+        public void accept(Hunk hunk) {
+            if (!group.isEmpty() && hunk.aStart - group.get(group.size() - 1).aEnd > 2 * CONTEXT) {
+                flush();
+            }
+            group.add(hunk);
+        }
+
+        /**
+         * Write the group of hunks received so far.
+         */
+        void flush() {
+            if (group.isEmpty()) {
+                return;
+            }
+            Hunk first = group.get(0);
+            Hunk last = group.get(group.size() - 1);
+            int aStart = Math.max(0, first.aStart - CONTEXT);
+            int aEnd = Math.min(a.size(), last.aEnd + CONTEXT);
+            int bStart = first.bStart - (first.aStart - aStart);
+            int bEnd = last.bEnd + (aEnd - last.aEnd);
+            String header = "@@ -" + range(aStart, aEnd) + " +" + range(bStart, bEnd) + " @@\n";
+            try {
+                out.write(header.getBytes(StandardCharsets.UTF_8));
+                int position = aStart;
+                for (Hunk hunk : group) {
+                    writeLines(out, ' ', a, position, hunk.aStart);
+                    writeLines(out, '-', a, hunk.aStart, hunk.aEnd);
+                    writeLines(out, '+', b, hunk.bStart, hunk.bEnd);
+                    position = hunk.aEnd;
+                }
+                writeLines(out, ' ', a, position, aEnd);
+            } catch (IOException excp) {
+                throw new UncheckedIOException(excp);
+            }
+            group.clear();
+        }
+    }
+
+    /**
+     * Return the range of lines [START, END) as written in a hunk header, counted from 1.
+     */
+    private static String range(int start, int end) {
+        if (end - start == 1) {
+            return String.valueOf(start + 1);
+        }
+        return (end == start ? start : start + 1) + "," + (end - start);
+    }
+
+    private static void writeLines(OutputStream out, char prefix, List<String> lines, int from, int to)
+            throws IOException {
+        for (int i = from; i < to; i++) {
+            String line = lines.get(i);
+            out.write(prefix);
+            out.write(line.getBytes(StandardCharsets.ISO_8859_1));
+            if (!line.endsWith("\n")) {
+                out.write('\n');
+                out.write(NO_NEWLINE.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * The ids of distinct lines, by an open addressing table whose entries point back to
+     * the first line with each id, so that lines are compared as bytes in place.
+     */
+    private static class LineIds {
+        private final int[] slots;
+        private final Lines[] sources;
+        private final int[] indexes;
+        private final int[] hashes;
+        private int size;
+
+        /**
+         * A table for at most CAPACITY distinct lines.
+         */
+        LineIds(int capacity) {
+            slots = new int[Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1];
+            sources = new Lines[capacity];
+            indexes = new int[capacity];
+            hashes = new int[capacity];
+        }
+
+        /**
+         * Return the ids of the lines [FROM, TO) of LINES.
+         */
+        int[] intern(Lines lines, int from, int to) {
+            int[] result = new int[to - from];
+            for (int i = from; i < to; i++) {
+                result[i - from] = id(lines, i);
+            }
+            return result;
+        }
+
+        private int id(Lines lines, int index) {
+            int hash = lines.hash(index);
+            int mask = slots.length - 1;
+            for (int slot = hash & mask; true; slot = (slot + 1) & mask) {
+                int id = slots[slot] - 1;
+                if (id < 0) {
+                    sources[size] = lines;
+                    indexes[size] = index;
+                    hashes[size] = hash;
+                    slots[slot] = ++size;
+                    return size - 1;
+                }
+                if (hashes[id] == hash && sources[id].lineEquals(indexes[id], lines, index)) {
+                    return id;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add the hunks turning the lines [ALO, AHI) of A into the lines [BLO, BHI) of B.
+     */
+    private void compare(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo++;
+            bLo++;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi--;
+            bHi--;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            if (aLo < aHi || bLo < bHi) {
+                addHunk(aLo, aHi, bLo, bHi);
+            }
+            return;
+        }
+        int[] snake = middleSnake(aLo, aHi, bLo, bHi);
+        compare(aLo, snake[0], bLo, snake[1]);
+        compare(snake[2], aHi, snake[3], bHi);
+    }
+
+    /**
+     * Return the start and end points {x, y, u, v} of the middle snake of the shortest
+     * edit path from (ALO, BLO) to (AHI, BHI). Both ranges are non-empty and their first
+     * and last lines differ, so the path has at least two edits and each half is shorter.
+     */
+    private int[] middleSnake(int aLo, int aHi, int bLo, int bHi) {
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int max = (n + m + 1) / 2;
+        int offset = max + 1;
+        // the furthest x reached on each diagonal k = x - y, forward from the start and
+        // backward from the end, the backward one counted from the end
+        int[] forward = new int[2 * max + 3];
+        int[] backward = new int[2 * max + 3];
+        for (int d = 0; d <= max; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])) {
+                    x = forward[offset + k + 1];
+                } else {
+                    x = forward[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                int c = delta - k;
+                if (odd && c >= -(d - 1) && c <= d - 1 && x + backward[offset + c] >= n) {
+                    return new int[]{aLo + startX, bLo + startY, aLo + x, bLo + y};
+                }
+            }
+            for (int c = -d; c <= d; c += 2) {
+                int x;
+                if (c == -d || (c != d && backward[offset + c - 1] < backward[offset + c + 1])) {
+                    x = backward[offset + c + 1];
+                } else {
+                    x = backward[offset + c - 1] + 1;
+                }
+                int y = x - c;
+                int startX = x;
+                int startY = y;
+                while (x < n && y < m && a[aHi - 1 - x] == b[bHi - 1 - y]) {
+                    x++;
+                    y++;
+                }
+                backward[offset + c] = x;
+                int k = delta - c;
+                if (!odd && k >= -d && k <= d && x + forward[offset + k] >= n) {
+                    return new int[]{aHi - x, bHi - y, aHi - startX, bHi - startY};
+                }
+            }
+        }
+        throw new IllegalStateException("no middle snake");
+    }
+
+    /**
+     * Add the hunk [ASTART, AEND) to [BSTART, BEND), joining it to the pending hunk if they
+     * are adjacent, and otherwise passing the pending hunk to the sink.
+     */
+    private void addHunk(int aStart, int aEnd, int bStart, int bEnd) {
+        if (pending != null && pending.aEnd == aStart && pending.bEnd == bStart) {
+            pending = new Hunk(pending.aStart, aEnd, pending.bStart, bEnd);
+            return;
+        }
+        if (pending != null) {
+            sink.accept(pending);
+        }
+        pending = new Hunk(aStart, aEnd, bStart, bEnd);
+    }
+}
@@ -0,0 +1,133 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * A three-way merge of two versions of a file that both changed since a common base.
+ * <p>
+ * Each version is compared with the base by Diff. The hunks of both sides are walked in
+ * the order of the base; a hunk that neither overlaps nor touches a hunk of the other side
+ * is taken as it is, and overlapping hunks are grouped into one region. A region changed
+ * in the same way on both sides is taken once, otherwise it is a conflict and only that
+ * region is written between conflict markers.
+ *
+ * @author Yuansong Zhang
+ */
+class Diff3 {
+
+    private static final byte[] OURS = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] THEIRS = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    private Diff3() {
+    }
+
+    /**
+     * Merge the changes from BASE to OURS and from BASE to THEIRS, and write the result
+     * to OUT. Returns the number of conflicting regions written with markers.
+     */
+    static int merge(List<String> base, List<String> ours, List<String> theirs, OutputStream out)
+            throws IOException {
+        List<Diff.Hunk> oursHunks = Diff.diff(base, ours);
+        List<Diff.Hunk> theirsHunks = Diff.diff(base, theirs);
+        int conflicts = 0;
+        int position = 0;
+        int i = 0;
+        int j = 0;
+        while (i < oursHunks.size() || j < theirsHunks.size()) {
+            // the region of the base covered by the next group of overlapping hunks
+            int firstOurs = i;
+            int firstTheirs = j;
+            int lo;
+            if (j == theirsHunks.size()
+                    || (i < oursHunks.size() && oursHunks.get(i).aStart <= theirsHunks.get(j).aStart)) {
+                lo = oursHunks.get(i).aStart;
+            } else {
+                lo = theirsHunks.get(j).aStart;
+            }
+            int hi = lo;
+            while (true) {
+                if (i < oursHunks.size() && oursHunks.get(i).aStart <= hi) {
+                    hi = Math.max(hi, oursHunks.get(i++).aEnd);
+                } else if (j < theirsHunks.size() && theirsHunks.get(j).aStart <= hi) {
+                    hi = Math.max(hi, theirsHunks.get(j++).aEnd);
+                } else {
+                    break;
+                }
+            }
+
+            write(out, base, position, lo);
+            position = hi;
+            if (firstTheirs == j) {
+                writeSide(out, ours, oursHunks, firstOurs, i, lo, hi);
+            } else if (firstOurs == i) {
+                writeSide(out, theirs, theirsHunks, firstTheirs, j, lo, hi);
+            } else {
+                int oursStart = start(oursHunks.get(firstOurs), lo);
+                int oursEnd = end(oursHunks.get(i - 1), hi);
+                int theirsStart = start(theirsHunks.get(firstTheirs), lo);
+                int theirsEnd = end(theirsHunks.get(j - 1), hi);
+                if (ours.subList(oursStart, oursEnd).equals(theirs.subList(theirsStart, theirsEnd))) {
+                    write(out, ours, oursStart, oursEnd);
+                } else {
+                    out.write(OURS);
+                    writeTerminated(out, ours, oursStart, oursEnd);
+                    out.write(SEPARATOR);
+                    writeTerminated(out, theirs, theirsStart, theirsEnd);
+                    out.write(THEIRS);
+                    conflicts++;
+                }
+            }
+        }
+        write(out, base, position, base.size());
+        return conflicts;
+    }
+
+    /**
+     * Write the lines of SIDE standing for the lines [LO, HI) of the base, given the hunks
+     * [FROM, TO) of SIDE covering them.
+     */
+    private static void writeSide(OutputStream out, List<String> side, List<Diff.Hunk> hunks,
+                                  int from, int to, int lo, int hi) throws IOException {
+        write(out, side, start(hunks.get(from), lo), end(hunks.get(to - 1), hi));
+    }
+
+    /**
+     * Return the line of a side matching the line LO of the base, which is at or before
+     * the first HUNK of the region.
+     */
+    private static int start(Diff.Hunk hunk, int lo) {
+        return hunk.bStart - (hunk.aStart - lo);
+    }
+
+    /**
+     * Return the line of a side matching the line HI of the base, which is at or after
+     * the last HUNK of the region.
+     */
+    private static int end(Diff.Hunk hunk, int hi) {
+        return hunk.bEnd + (hi - hunk.aEnd);
+    }
+
+    private static void write(OutputStream out, List<String> lines, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            out.write(lines.get(i).getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    /**
+     * Write the lines [FROM, TO) of LINES, ending the last one with a line terminator so
+     * that the marker after it starts on its own line.
+     */
+    private static void writeTerminated(OutputStream out, List<String> lines, int from, int to)
+            throws IOException {
+        write(out, lines, from, to);
+        if (to > from && !lines.get(to - 1).endsWith("\n")) {
+            out.write('\n');
+        }
+    }
+}
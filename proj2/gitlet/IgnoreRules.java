@@ -0,0 +1,150 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import static gitlet.Utils.*;
+
+/**
+ * The patterns of a `.gitletignore` file, naming the working files that status does not
+ * list as untracked, compiled once into regular expressions.
+ * <p>
+ * Each line is a glob pattern: `*` and `?` match any characters but `/`, `[...]` a class
+ * of characters and `**` any number of directories. A pattern without a `/` but a trailing
+ * one matches a name at any depth, otherwise it matches paths from the root of the working
+ * directory. A trailing `/` matches directories only, and a leading `!` includes again what
+ * an earlier pattern ignored. Blank lines and lines starting with `#` are skipped, and the
+ * last pattern matching a path decides. As the files of an ignored directory are never
+ * listed, they cannot be included again.
+ *
+ * @author Yuansong Zhang
+ */
+class IgnoreRules {
+
+    private static class Rule {
+        final Pattern pattern;
+        final boolean negated;
+        final boolean directoryOnly;
+
+        Rule(Pattern pattern, boolean negated, boolean directoryOnly) {
+            this.pattern = pattern;
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+        }
+    }
+
+    private final List<Rule> rules = new ArrayList<>();
+
+    private IgnoreRules() {
+    }
+
+    /**
+     * Return the rules of the ignore file FILE, or no rule if it does not exist.
+     */
+    static IgnoreRules load(File file) {
+        IgnoreRules result = new IgnoreRules();
+        if (file.isFile()) {
+            for (String line : readContentsAsString(file).split("\n")) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the rules of the patterns LINES.
+     */
+    static IgnoreRules parse(String... lines) {
+        IgnoreRules result = new IgnoreRules();
+        for (String line : lines) {
+            result.add(line);
+        }
+        return result;
+    }
+
+    private void add(String line) {
+        String pattern = line.strip();
+        if (pattern.isEmpty() || pattern.startsWith("#")) {
+            return;
+        }
+        boolean negated = pattern.startsWith("!");
+        if (negated) {
+            pattern = pattern.substring(1);
+        } else if (pattern.startsWith("\\#") || pattern.startsWith("\\!")) {
+            pattern = pattern.substring(1);
+        }
+        boolean directoryOnly = pattern.endsWith("/");
+        while (pattern.endsWith("/")) {
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        if (pattern.isEmpty()) {
+            return;
+        }
+        boolean anchored = pattern.contains("/");
+        if (pattern.startsWith("/")) {
+            pattern = pattern.substring(1);
+        }
+        String regex = (anchored ? "" : "(?:.*/)?") + IgnoreRules.toRegex(pattern);
+        rules.add(new Rule(Pattern.compile(regex), negated, directoryOnly));
+    }
+
+    /**
+     * Return the regular expression matching the same paths as the glob PATTERN.
+     */
+    private static String toRegex(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            if (pattern.startsWith("**/", i)) {
+                regex.append("(?:.*/)?");
+                i += 3;
+            } else if (pattern.startsWith("**", i)) {
+                regex.append(".*");
+                i += 2;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+                i++;
+            } else if (c == '?') {
+                regex.append("[^/]");
+                i++;
+            } else if (c == '[' && pattern.indexOf(']', i + 2) > 0) {
+                int end = pattern.indexOf(']', i + 2);
+                String members = pattern.substring(i + 1, end);
+                if (members.startsWith("!")) {
+                    members = "^" + members.substring(1);
+                }
+                regex.append('[').append(members.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                i = end + 1;
+            } else if (c == '\\' && i + 1 < pattern.length()) {
+                regex.append(Pattern.quote(String.valueOf(pattern.charAt(i + 1))));
+                i += 2;
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+                i++;
+            }
+        }
+        return regex.toString();
+    }
+
+    boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * Return whether PATH, relative to the working directory with `/` separators, is
+     * ignored. DIRECTORY tells whether it is a directory.
+     */
+    boolean isIgnored(String path, boolean directory) {
+        boolean result = false;
+        for (Rule rule : rules) {
+            if ((directory || !rule.directoryOnly) && result == rule.negated
+                    && rule.pattern.matcher(path).matches()) {
+                result = !rule.negated;
+            }
+        }
+        return result;
+    }
+}
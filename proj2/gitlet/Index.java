@@ -0,0 +1,329 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/**
+ * The index (dircache) of a repository saved in the binary file `.gitlet/index`.
+ * <p>
+ * For every tracked or staged file it records the SHA1 in the current commit, the staged
+ * SHA1 and whether it is staged for addition or removal, together with the size, the
+ * modification time and the inode of the working file when it was last hashed. A working
+ * file whose stat data has not changed since does not need to be read and hashed again.
+ * <p>
+ * A working file modified in the same clock tick as the index file was written could have
+ * changed again after it was hashed without its stat data changing. As working files may
+ * be on a file system whose clock and timestamp precision differ from those of the JVM,
+ * the modification time of the index file itself is the cutoff: the stat data of a file
+ * modified at or after it is not trusted, and is dropped, or smudged, when the index is
+ * saved, so that the file is hashed again by the next command.
+ *
+ * @author Yuansong Zhang
+ */
+class Index {
+
+    private static final int MAGIC = 0x47444952; // "GDIR"
+
+    private static final int VERSION = 2;
+
+    static final byte NOT_STAGED = 0;
+
+    static final byte STAGED_ADD = 1;
+
+    static final byte STAGED_REMOVE = 2;
+
+    /**
+     * An index entry of a single file.
+     */
+    static class Entry {
+        final String path;
+
+        /**
+         * SHA1 of the file in the current commit, or null if not tracked.
+         */
+        String committedHash;
+
+        /**
+         * SHA1 of the staged version of the file, or null if not staged.
+         */
+        String stagedHash;
+
+        byte stage = NOT_STAGED;
+
+        /**
+         * SHA1 of the working file when its stat data below was recorded, or null.
+         */
+        String statHash;
+
+        long size;
+
+        long mtime;
+
+        long inode;
+
+        Entry(String path) {
+            this.path = path;
+        }
+    }
+
+    private final File file;
+
+    /**
+     * The modification time in nanoseconds of the index file when it was read or last
+     * saved. A working file modified at that time or later could have changed again within
+     * the same clock tick, so its stat data is not trusted.
+     */
+    private long racyCutoff;
+
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    /**
+     * Whether stat data was refreshed since the index was read.
+     */
+    private boolean dirty;
+
+    /**
+     * The stat data of the index file when it was read or last saved, or null if it did
+     * not exist.
+     */
+    private long[] stat;
+
+    private Index(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the index saved in FILE, or return an empty index if FILE does not exist.
+     */
+    static Index read(File file) {
+        Index index = new Index(file);
+        if (!file.isFile()) {
+            return index;
+        }
+        index.stat = Index.stat(file);
+        index.racyCutoff = index.stat[1];
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            int version = in.readInt() == MAGIC ? in.readInt() : -1;
+            if (version != VERSION && version != 1) {
+                throw new IllegalArgumentException("bad index " + file);
+            }
+            if (version == 1) {
+                // the write time of the JVM clock, replaced by the time of the index file
+                in.readLong();
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry(in.readUTF());
+                entry.stage = in.readByte();
+                entry.committedHash = readHash(in);
+                entry.stagedHash = readHash(in);
+                entry.statHash = readHash(in);
+                entry.size = in.readLong();
+                entry.mtime = in.readLong();
+                entry.inode = in.readLong();
+                if (entry.statHash != null && index.isRacy(entry)) {
+                    // smudged, so that it is not trusted once a later save moves the cutoff
+                    entry.statHash = null;
+                }
+                index.entries.put(entry.path, entry);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return index;
+    }
+
+    /**
+     * Save this index to its file.
+     */
+    void write() {
+        writeContentsAtomically(file, encode());
+        saved();
+    }
+
+    /**
+     * Take the modification time of the index file, just saved with the contents returned by
+     * encode, as the racy cutoff. The stat data of the working files modified at or after it
+     * is smudged and the index saved again, which only happens for files modified in the
+     * same clock tick as the index was written.
+     */
+    void saved() {
+        stat = Index.stat(file);
+        racyCutoff = stat[1];
+        boolean smudged = false;
+        for (Entry entry : entries.values()) {
+            if (entry.statHash != null && isRacy(entry)) {
+                entry.statHash = null;
+                smudged = true;
+            }
+        }
+        if (smudged) {
+            // the smudged entries are hashed again, whatever the time of the file saved again
+            writeContentsAtomically(file, encode());
+            stat = Index.stat(file);
+            racyCutoff = stat[1];
+        }
+    }
+
+    /**
+     * Return whether the index file is still the one this index was read from or last
+     * saved to, that is, no other process saved it since.
+     */
+    boolean isCurrent() {
+        if (!file.isFile()) {
+            return stat == null;
+        }
+        return stat != null && Arrays.equals(stat, Index.stat(file));
+    }
+
+    /**
+     * Return the contents of the index file of this index, to be saved by the caller,
+     * e.g. through a journal.
+     */
+    byte[] encode() {
+        // drop entries that neither are tracked nor staged
+        entries.values().removeIf(entry -> entry.committedHash == null && entry.stage == NOT_STAGED);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                out.writeUTF(entry.path);
+                out.writeByte(entry.stage);
+                writeHash(out, entry.committedHash);
+                writeHash(out, entry.stagedHash);
+                writeHash(out, entry.statHash);
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeLong(entry.inode);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        dirty = false;
+        return bytes.toByteArray();
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    Map<String, Entry> entries() {
+        return entries;
+    }
+
+    Entry get(String path) {
+        return entries.get(path);
+    }
+
+    /**
+     * Return the entry of PATH, creating it if necessary.
+     */
+    Entry entry(String path) {
+        return entries.computeIfAbsent(path, Entry::new);
+    }
+
+    /**
+     * Return the SHA1 of the contents of the working file FILE whose path in the repository
+     * is PATH. The file is only read and hashed if its stat data differs from the one recorded
+     * in the index, in which case the recorded stat data is updated.
+     */
+    String hashOf(File workingFile, String path) {
+        long[] stat = stat(workingFile);
+        String hash = cachedHash(path, stat);
+        if (hash == null) {
+            hash = sha1(workingFile);
+            record(path, hash, stat);
+        }
+        return hash;
+    }
+
+    /**
+     * Return the SHA1 recorded for PATH if the working file still has the stat data STAT,
+     * or null if it has to be hashed again. This does not modify the index, so it may be
+     * called from several threads at once.
+     */
+    String cachedHash(String path, long[] stat) {
+        Entry entry = entries.get(path);
+        if (entry == null || entry.statHash == null || isRacy(entry)) {
+            return null;
+        }
+        if (entry.size == stat[0] && entry.mtime == stat[1] && entry.inode == stat[2]) {
+            return entry.statHash;
+        }
+        return null;
+    }
+
+    /**
+     * Record that the working file PATH with the stat data STAT has the SHA1 HASH.
+     */
+    void record(String path, String hash, long[] stat) {
+        Entry entry = entry(path);
+        if (hash.equals(entry.statHash) && entry.size == stat[0] && entry.mtime == stat[1]
+                && entry.inode == stat[2]) {
+            return;
+        }
+        entry.statHash = hash;
+        entry.size = stat[0];
+        entry.mtime = stat[1];
+        entry.inode = stat[2];
+        dirty = true;
+    }
+
+    /**
+     * Return whether the working file FILE at PATH is known to be unchanged since it was
+     * last hashed, without reading it.
+     */
+    boolean isUnchanged(File workingFile, String path) {
+        return cachedHash(path, stat(workingFile)) != null;
+    }
+
+    private boolean isRacy(Entry entry) {
+        return entry.mtime >= racyCutoff;
+    }
+
+    /**
+     * Return the size, the modification time in nanoseconds and the inode of FILE.
+     * The inode is 0 on file systems that do not expose it.
+     */
+    static long[] stat(File file) {
+        Path path = file.toPath();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            long inode = 0;
+            try {
+                Object value = Files.getAttribute(path, "unix:ino");
+                inode = ((Number) value).longValue();
+            } catch (UnsupportedOperationException | IllegalArgumentException excp) {
+                inode = 0;
+            }
+            return new long[]{attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), inode};
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static String readHash(DataInputStream in) throws IOException {
+        String hash = in.readUTF();
+        return hash.isEmpty() ? null : hash;
+    }
+
+    private static void writeHash(DataOutputStream out, String hash) throws IOException {
+        out.writeUTF(hash == null ? "" : hash);
+    }
+}
@@ -0,0 +1,278 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import static gitlet.Utils.*;
+
+/**
+ * A write-ahead journal batching the file writes, renames and deletions of a command,
+ * so that they are applied all together or not at all.
+ * <p>
+ * The operations are recorded in memory, then saved to the journal file with a CRC32 and
+ * synced once. Only then are they applied, each write through a temporary file renamed
+ * over its target. The written and moved files and then the directories whose entries
+ * changed are synced, and only once they are durable is the journal file deleted, so that
+ * a power loss never leaves the journal gone but its effects lost. If the process dies in
+ * between, the next command finds a complete journal and applies it again; every operation
+ * can be applied twice with the same result. A journal torn before it was synced is ignored,
+ * leaving the repository as it was before the command.
+ * <p>
+ * The journal file holds a magic number and a format version, the operations, an end
+ * marker and the CRC32 of everything before it. Paths are relative to the root directory.
+ *
+ * @author Yuansong Zhang
+ */
+class Journal {
+
+    private static final int MAGIC = 0x474a4e4c; // "GJNL"
+
+    private static final int VERSION = 1;
+
+    private static final byte END = 0;
+
+    private static final byte WRITE = 1;
+
+    private static final byte MOVE = 2;
+
+    private static final byte DELETE = 3;
+
+    private final File file;
+
+    private final File root;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    /**
+     * A new journal saved to FILE, whose paths are relative to ROOT.
+     */
+    Journal(File file, File root) {
+        this.file = file;
+        this.root = root;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Record that the file TARGET is to be replaced by CONTENT.
+     */
+    void write(File target, byte[] content) {
+        try {
+            out.writeByte(WRITE);
+            Commit.writeString(out, relativePath(target));
+            out.writeInt(content.length);
+            out.write(content);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    void write(File target, String content) {
+        write(target, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Record that the file SOURCE is to be renamed to TARGET, replacing it.
+     */
+    void move(File source, File target) {
+        try {
+            out.writeByte(MOVE);
+            Commit.writeString(out, relativePath(source));
+            Commit.writeString(out, relativePath(target));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Record that the file or directory TARGET is to be deleted.
+     */
+    void delete(File target) {
+        try {
+            out.writeByte(DELETE);
+            Commit.writeString(out, relativePath(target));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Save the recorded operations to the journal file with a single sync, apply them and
+     * sync their files and directories, then delete the journal file.
+     */
+    void commit() {
+        byte[] content = save();
+        apply(content, root);
+        file.delete();
+    }
+
+    /**
+     * Save the recorded operations to the journal file and sync it, without applying them.
+     * Returns the contents of the journal file.
+     */
+    byte[] save() {
+        try {
+            out.writeByte(END);
+            out.flush();
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        byte[] content = bytes.toByteArray();
+        file.getParentFile().mkdirs();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        // the new entry of the journal file must be durable too
+        Journal.syncDirectory(file.getParentFile().toPath());
+        return content;
+    }
+
+    /**
+     * Apply again the journal left in FILE by a command that did not finish, whose paths
+     * are relative to ROOT, and delete it. Returns whether a complete journal was applied.
+     */
+    static boolean recover(File file, File root) {
+        if (!file.isFile()) {
+            return false;
+        }
+        byte[] content = readContents(file);
+        boolean complete = isComplete(content);
+        if (complete) {
+            apply(content, root);
+        }
+        file.delete();
+        return complete;
+    }
+
+    private static boolean isComplete(byte[] content) {
+        if (content.length < 8 + 1 + 8) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || content[content.length - 9] != END) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length - 8);
+        return crc.getValue() == buffer.getLong(content.length - 8);
+    }
+
+    /**
+     * Apply the operations of the journal CONTENT, whose paths are relative to ROOT, and
+     * sync them.
+     */
+    private static void apply(byte[] content, File root) {
+        Set<Path> directories = new LinkedHashSet<>();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(content))) {
+            in.readInt();
+            in.readInt();
+            while (true) {
+                byte op = in.readByte();
+                if (op == END) {
+                    break;
+                }
+                File target = new File(root, Commit.readString(in));
+                if (op == WRITE) {
+                    byte[] data = new byte[in.readInt()];
+                    in.readFully(data);
+                    File temp = new File(target.getPath() + ".tmp");
+                    try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE,
+                            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        ByteBuffer buffer = ByteBuffer.wrap(data);
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer);
+                        }
+                        channel.force(true);
+                    }
+                    Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    directories.add(target.getParentFile().toPath());
+                } else if (op == MOVE) {
+                    File source = target;
+                    target = new File(root, Commit.readString(in));
+                    // the rename may have been applied already
+                    if (source.exists()) {
+                        target.getParentFile().mkdirs();
+                        Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.ATOMIC_MOVE);
+                    }
+                    // the moved file was written before the journal, and may not be synced yet
+                    if (target.isFile()) {
+                        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.READ)) {
+                            channel.force(true);
+                        }
+                    }
+                    directories.add(source.getParentFile().toPath());
+                    directories.add(target.getParentFile().toPath());
+                    // a new directory needs its own entry in its parent synced as well
+                    directories.add(target.getParentFile().getParentFile().toPath());
+                } else if (op == DELETE) {
+                    if (target.isDirectory()) {
+                        deleteDirectory(target);
+                    } else {
+                        target.delete();
+                    }
+                    directories.add(target.getParentFile().toPath());
+                } else {
+                    throw new IllegalArgumentException("bad journal operation " + op);
+                }
+            }
+        } catch (EOFException excp) {
+            throw new IllegalArgumentException("truncated journal");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        for (Path directory : directories) {
+            Journal.syncDirectory(directory);
+        }
+    }
+
+    /**
+     * Sync the entries of DIRECTORY, so that the files created, renamed or deleted in it
+     * are durable. Does nothing if it does not exist, or on systems that cannot sync a
+     * directory.
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            // e.g. Windows does not open directories; their entries are synced with the files
+        }
+    }
+
+    private String relativePath(File target) {
+        return root.toPath().relativize(target.toPath()).toString();
+    }
+}
@@ -0,0 +1,148 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * The format of the files of loose objects, in the object store and in the staging area,
+ * whose contents are compressed with zlib so that they take less space on disk and in the
+ * page cache. An object keeps the SHA1 of its contents, not of its file.
+ * <p>
+ * A file holds a magic number, the encoding of the contents and their size in bytes,
+ * followed by the contents, deflated or, at compression level 0, stored as they are. The
+ * store does not know whether an object is a blob, a tree or a manifest, so the encoding is
+ * the only type in the header. Files without the magic number are objects written before
+ * loose objects were compressed, and are read as they are.
+ *
+ * @author Yuansong Zhang
+ */
+class LooseObject {
+
+    private static final int MAGIC = 0x474c4f42; // "GLOB"
+
+    static final byte STORED = 0;
+
+    static final byte DEFLATED = 1;
+
+    static final int HEADER_SIZE = 4 + 1 + 8;
+
+    private LooseObject() {
+    }
+
+    /**
+     * Write CONTENT to FILE, compressed at LEVEL, from 0 to 9.
+     */
+    static void write(File file, byte[] content, int level) {
+        LooseObject.write(file, new ByteArrayInputStream(content), content.length, level);
+    }
+
+    /**
+     * Write the contents of the file SOURCE to FILE, compressed at LEVEL, without loading
+     * them on the heap.
+     */
+    static void write(File file, File source, int level) {
+        try {
+            LooseObject.write(file, Files.newInputStream(source.toPath()), source.length(), level);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Write the SIZE bytes read from IN, which is closed, to FILE, compressed at LEVEL.
+     */
+    private static void write(File file, InputStream in, long size, int level) {
+        if (!file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        Deflater deflater = new Deflater(level);
+        try (InputStream source = in;
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(file.toPath()), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeByte(level == Deflater.NO_COMPRESSION ? STORED : DEFLATED);
+            out.writeLong(size);
+            if (level == Deflater.NO_COMPRESSION) {
+                copyStream(source, out);
+            } else {
+                // the deflater is given explicitly to set the level, so it is ended below
+                DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+                copyStream(source, deflated);
+                deflated.finish();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Return a stream over the contents of the object saved in FILE, inflated as they are
+     * read, which the caller must close.
+     */
+    static InputStream open(File file) {
+        try {
+            BufferedInputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()), BUFFER_SIZE);
+            in.mark(HEADER_SIZE);
+            DataInputStream header = new DataInputStream(in);
+            if (file.length() < HEADER_SIZE || header.readInt() != MAGIC) {
+                in.reset();
+                return in;
+            }
+            byte encoding = header.readByte();
+            header.readLong();
+            if (encoding == STORED) {
+                return in;
+            }
+            if (encoding != DEFLATED) {
+                in.close();
+                throw new IllegalArgumentException("bad loose object " + file);
+            }
+            return new InflaterInputStream(in);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Return the contents of the object saved in FILE.
+     */
+    static byte[] read(File file) {
+        try (InputStream in = LooseObject.open(file)) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Return the size in bytes of the contents of the object saved in FILE.
+     */
+    static long size(File file) {
+        if (file.length() < HEADER_SIZE) {
+            return file.length();
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+            if (in.readInt() != MAGIC) {
+                return file.length();
+            }
+            in.readByte();
+            return in.readLong();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
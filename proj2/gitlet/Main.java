@@ -19,10 +19,67 @@ public class Main {
             return;
         }
         String firstArg = args[0];
+        if (firstArg.equals("init")) {
+            Repository.init();
+            return;
+        }
+        if (!Repository.GITLET_DIR.exists()) {
+            System.out.println("Not in an initialized Gitlet directory.");
+            return;
+        }
+        if (firstArg.equals("daemon")) {
+            Daemon.daemon(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        // a running daemon serves the command with its caches warm
+        if (!Daemon.forward(args)) {
+            execute(args);
+        }
+    }
+
+    /**
+     * Run the command ARGS on the repository in the current directory, which exists,
+     * taking the writer lock if the command modifies the repository.
+     */
+    static void execute(String[] args) {
+        String firstArg = args[0];
+        if (isReadOnly(firstArg)) {
+            Repository.load();
+            run(firstArg, args);
+            return;
+        }
+        // commands modifying the repository run one at a time
+        Repository.lock();
+        try {
+            Repository.load();
+            run(firstArg, args);
+        } finally {
+            Repository.unlock();
+        }
+    }
+
+    /**
+     * Return whether the command COMMAND only reads the repository, so that it runs
+     * without taking the writer lock. `push` only modifies the remote, which it locks.
+     */
+    static boolean isReadOnly(String command) {
+        switch (command) {
+            case "log":
+            case "global-log":
+            case "find":
+            case "status":
+            case "diff":
+            case "is-ancestor":
+            case "rev-list":
+            case "push":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void run(String firstArg, String[] args) {
         switch (firstArg) {
-            case "init":
-                Repository.init();
-                break;
             case "add":
                 Repository.add(Arrays.copyOfRange(args, 1, args.length));
                 break;
@@ -33,17 +90,20 @@ public class Main {
                 Repository.rm(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "log":
-                Repository.log();
+                Repository.log(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "global-log":
-                Repository.globalLog();
+                Repository.globalLog(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "find":
-                Repository.find(args[1]);
+                Repository.find(Arrays.copyOfRange(args, 1, args.length));
                 break;
             case "status":
                 Repository.status();
                 break;
+            case "diff":
+                Repository.diff(Arrays.copyOfRange(args, 1, args.length));
+                break;
             case "checkout":
                 Repository.checkout(Arrays.copyOfRange(args, 1, args.length));
                 break;
@@ -59,6 +119,30 @@ public class Main {
             case "merge":
                 Repository.merge(args[1]);
                 break;
+            case "is-ancestor":
+                Repository.isAncestor(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "rev-list":
+                Repository.revList(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "add-remote":
+                Repository.addRemote(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "rm-remote":
+                Repository.rmRemote(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "fetch":
+                Repository.fetch(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "push":
+                Repository.push(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "pull":
+                Repository.pull(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "gc":
+                Repository.gc();
+                break;
         }
     }
 }
@@ -0,0 +1,264 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * An inverted index from commit messages to the SHA1s of the commits, kept in the
+ * append-only file `.gitlet/message-index` so that `find` does not read any commit.
+ * <p>
+ * The file holds a magic number and a format version followed by one record per commit:
+ * its SHA1 and its message. Messages are kept sorted in memory for exact and prefix
+ * lookups, and every trigram of a message points to the message for substring lookups.
+ * <p>
+ * An index that misses commits is rebuilt in memory when loaded, and only saved by a
+ * process holding the writer lock, so that a reader never rewrites the file a writer is
+ * appending to.
+ *
+ * @author Yuansong Zhang
+ */
+class MessageIndex {
+
+    private static final int MAGIC = 0x474d5347; // "GMSG"
+
+    private static final int VERSION = 1;
+
+    private static final int GRAM = 3;
+
+    private final File file;
+
+    /**
+     * The SHA1s of all indexed commits.
+     */
+    private final HashSet<String> ids = new HashSet<>();
+
+    /**
+     * The SHA1s of the commits of each message, in the order they were added.
+     */
+    private final TreeMap<String, List<String>> commits = new TreeMap<>();
+
+    /**
+     * The messages containing each trigram.
+     */
+    private final HashMap<String, Set<String>> grams = new HashMap<>();
+
+    /**
+     * Whether the index has commits that the index file does not have.
+     */
+    private boolean dirty;
+
+    private MessageIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Load the message index saved in FILE, or rebuild it in memory from the COMMITS if FILE
+     * does not exist or is out of date. COMMITS are only listed if FILE may be out of date.
+     */
+    static MessageIndex load(File file, CommitList commits) {
+        MessageIndex index = new MessageIndex(file);
+        boolean whole = false;
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+                if (file.length() < 8 || in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    // a file torn or corrupt is rebuilt from the commits below
+                    throw new EOFException();
+                }
+                byte[] id = new byte[UID_LENGTH / 2];
+                while (true) {
+                    in.mark(1);
+                    if (in.read() < 0) {
+                        whole = true;
+                        break;
+                    }
+                    in.reset();
+                    String message;
+                    try {
+                        in.readFully(id);
+                        message = Commit.readString(in);
+                    } catch (EOFException excp) {
+                        // a record torn by an interrupted append is recovered by the rebuild below
+                        break;
+                    }
+                    index.put(PackFile.toHex(id), message);
+                }
+            } catch (EOFException excp) {
+                index = new MessageIndex(file);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        if ((!whole || commits.changedSince(file)) && commits.hashes().size() != index.size()) {
+            index.rebuild(commits.hashes(), commits.dir());
+        }
+        return index;
+    }
+
+    /**
+     * Build the index of the COMMITS from scratch, ignoring the index file FILE, without
+     * saving it.
+     */
+    static MessageIndex build(File file, CommitList commits) {
+        MessageIndex index = new MessageIndex(file);
+        index.rebuild(commits.hashes(), commits.dir());
+        return index;
+    }
+
+    int size() {
+        return ids.size();
+    }
+
+    /**
+     * Return whether the index was rebuilt since it was loaded or saved, so that it should
+     * be saved by a process holding the writer lock.
+     */
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Append the commit HASH with MESSAGE and save it to the index file, unless it is
+     * indexed already. The whole index is saved instead if it was rebuilt.
+     */
+    void add(String hash, String message) {
+        if (ids.contains(hash)) {
+            return;
+        }
+        if (dirty) {
+            put(hash, message);
+            save();
+            return;
+        }
+        boolean exists = file.isFile();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+            if (!exists) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            out.write(PackFile.toBytes(hash));
+            Commit.writeString(out, message);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        put(hash, message);
+    }
+
+    /**
+     * Return the SHA1s of the commits whose message is MESSAGE.
+     */
+    List<String> find(String message) {
+        List<String> result = commits.get(message);
+        return result == null ? new ArrayList<>() : new ArrayList<>(result);
+    }
+
+    /**
+     * Return the SHA1s of the commits whose message starts with PREFIX.
+     */
+    List<String> findPrefix(String prefix) {
+        List<String> result = new ArrayList<>();
+        for (Map.Entry<String, List<String>> item : commits.tailMap(prefix, true).entrySet()) {
+            if (!item.getKey().startsWith(prefix)) {
+                break;
+            }
+            result.addAll(item.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Return the SHA1s of the commits whose message contains TEXT. Only the messages
+     * sharing every trigram of TEXT are compared.
+     */
+    List<String> findSubstring(String text) {
+        Set<String> candidates = null;
+        if (text.length() >= GRAM) {
+            for (int i = 0; i + GRAM <= text.length(); i++) {
+                Set<String> messages = grams.get(text.substring(i, i + GRAM));
+                if (messages == null) {
+                    return new ArrayList<>();
+                }
+                if (candidates == null || messages.size() < candidates.size()) {
+                    candidates = messages;
+                }
+            }
+        } else {
+            candidates = commits.keySet();
+        }
+        List<String> result = new ArrayList<>();
+        for (String message : new TreeSet<>(candidates)) {
+            if (message.contains(text)) {
+                result.addAll(commits.get(message));
+            }
+        }
+        return result;
+    }
+
+    private void put(String hash, String message) {
+        if (!ids.add(hash)) {
+            return;
+        }
+        List<String> hashes = commits.computeIfAbsent(message, key -> new ArrayList<>());
+        if (hashes.isEmpty()) {
+            for (int i = 0; i + GRAM <= message.length(); i++) {
+                grams.computeIfAbsent(message.substring(i, i + GRAM), key -> new HashSet<>()).add(message);
+            }
+        }
+        hashes.add(hash);
+    }
+
+    /**
+     * Index again the commits HASHES of COMMITDIR, reading their messages. The index is
+     * not saved.
+     */
+    private void rebuild(List<String> hashes, File commitDir) {
+        ids.clear();
+        commits.clear();
+        grams.clear();
+        for (String hash : hashes) {
+            put(hash, Commit.read(join(commitDir, hash), null).message);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Write the whole index to a new file that replaces the index file at once. Only a
+     * process holding the writer lock may save the index.
+     */
+    void save() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, List<String>> item : commits.entrySet()) {
+                for (String hash : item.getValue()) {
+                    out.write(PackFile.toBytes(hash));
+                    Commit.writeString(out, item.getKey());
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        writeContentsAtomically(file, bytes.toByteArray());
+        dirty = false;
+    }
+}
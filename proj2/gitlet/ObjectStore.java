@@ -0,0 +1,382 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/**
+ * The object database of a repository. An object is either a loose file `xx/yyyy...`
+ * named by its SHA1, or an entry of one of the pack files in the `pack` directory.
+ * Readers do not need to know where an object lives.
+ *
+ * @author Yuansong Zhang
+ */
+class ObjectStore {
+
+    /**
+     * The directory of loose objects, such as `.gitlet/objects`.
+     */
+    final File dir;
+
+    /**
+     * The directory of pack files, such as `.gitlet/objects/pack`.
+     */
+    final File packDir;
+
+    /**
+     * Opened packs, loaded lazily and refreshed when an object is not found and the pack
+     * directory changed since they were listed.
+     */
+    private List<PackFile> packs;
+
+    /**
+     * The modification time of the pack directory, taken before PACKS were listed, or null
+     * if it did not exist.
+     */
+    private FileTime packDirModified;
+
+    ObjectStore(File dir) {
+        this.dir = dir;
+        this.packDir = join(dir, "pack");
+    }
+
+    /**
+     * Return the loose file of the object HASH, whether it exists or not.
+     */
+    File looseFile(String hash) {
+        return Repository.hashFilename(dir, hash, null);
+    }
+
+    /**
+     * Return whether the object HASH exists either loose or packed.
+     */
+    boolean contains(String hash) {
+        if (looseFile(hash).isFile()) {
+            return true;
+        }
+        return findPack(hash) != null;
+    }
+
+    /**
+     * Return the contents of the object HASH, reassembling it if it is saved in chunks.
+     * Throws IllegalArgumentException if the object does not exist.
+     */
+    byte[] read(String hash) {
+        byte[] content = readStored(hash);
+        if (ChunkedBlob.isManifest(content, hash)) {
+            try (InputStream in = ChunkedBlob.open(this, content)) {
+                return in.readAllBytes();
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Return the object HASH as it is saved, which is the manifest of a chunked blob
+     * rather than its contents. Throws IllegalArgumentException if the object does not exist.
+     */
+    byte[] readStored(String hash) {
+        File file = looseFile(hash);
+        if (file.isFile()) {
+            return LooseObject.read(file);
+        }
+        PackFile pack = findPack(hash);
+        if (pack == null) {
+            throw new IllegalArgumentException("object " + hash + " does not exist");
+        }
+        return pack.read(hash);
+    }
+
+    /**
+     * Save CONTENT as the loose object HASH unless the object exists already, compressed at
+     * the level Repository.LOOSE_COMPRESSION_LEVEL. The object is written to a temporary file
+     * and renamed, so that concurrent writers of the same object never expose a partial file.
+     */
+    void write(String hash, byte[] content) {
+        if (contains(hash)) {
+            return;
+        }
+        File file = looseFile(hash);
+        try {
+            dir.mkdirs();
+            File temp = File.createTempFile("object", ".tmp", dir);
+            LooseObject.write(temp, content, Repository.LOOSE_COMPRESSION_LEVEL);
+            file.getParentFile().mkdirs();
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Return the size in bytes of the object HASH as it is saved, before compression, or -1
+     * if it does not exist.
+     */
+    long storedSize(String hash) {
+        File file = looseFile(hash);
+        if (file.isFile()) {
+            return LooseObject.size(file);
+        }
+        PackFile pack = findPack(hash);
+        return pack == null ? -1 : pack.objectSize(hash);
+    }
+
+    String readAsString(String hash) {
+        return new String(read(hash), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Return a stream over the contents of the object HASH, which the caller must close.
+     * Loose objects and whole packed objects are streamed and inflated rather than loaded on
+     * the heap, and chunked blobs are streamed one chunk at a time.
+     * Throws IllegalArgumentException if the object does not exist.
+     */
+    InputStream open(String hash) {
+        File file = looseFile(hash);
+        InputStream in;
+        try {
+            if (file.isFile()) {
+                in = LooseObject.open(file);
+            } else {
+                PackFile pack = findPack(hash);
+                if (pack == null) {
+                    throw new IllegalArgumentException("object " + hash + " does not exist");
+                }
+                in = pack.open(hash);
+            }
+            BufferedInputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+            buffered.mark(4);
+            byte[] header = buffered.readNBytes(4);
+            buffered.reset();
+            if (!ChunkedBlob.hasMagic(header)) {
+                return buffered;
+            }
+            // only manifests and the rare files starting like one are read whole
+            byte[] content;
+            try (InputStream source = buffered) {
+                content = source.readAllBytes();
+            }
+            if (ChunkedBlob.isManifest(content, hash)) {
+                return ChunkedBlob.open(this, content);
+            }
+            return new ByteArrayInputStream(content);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Write the contents of the object HASH to the file TARGET without loading it on the heap.
+     */
+    void restore(String hash, File target) {
+        copyContents(open(hash), target);
+    }
+
+    /**
+     * Return the SHA1s of the chunks of the object HASH if it is a chunked blob, or an empty
+     * list otherwise. Only the objects starting like a manifest are read whole.
+     */
+    List<String> chunksOf(String hash) {
+        File file = looseFile(hash);
+        boolean magic;
+        if (file.isFile()) {
+            magic = startsWithMagic(file);
+        } else {
+            PackFile pack = findPack(hash);
+            if (pack == null) {
+                throw new IllegalArgumentException("object " + hash + " does not exist");
+            }
+            try (InputStream in = pack.open(hash)) {
+                magic = ChunkedBlob.hasMagic(in.readNBytes(4));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        if (!magic) {
+            return new ArrayList<>();
+        }
+        byte[] content = readStored(hash);
+        return ChunkedBlob.isManifest(content, hash) ? ChunkedBlob.chunks(content) : new ArrayList<>();
+    }
+
+    private static boolean startsWithMagic(File file) {
+        try (InputStream in = LooseObject.open(file)) {
+            return ChunkedBlob.hasMagic(in.readNBytes(4));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Forget the opened packs, e.g. after the repository was deleted.
+     */
+    void reload() {
+        packs = null;
+    }
+
+    private PackFile findPack(String hash) {
+        List<PackFile> current = packs();
+        for (PackFile pack : current) {
+            if (pack.contains(hash)) {
+                return pack;
+            }
+        }
+        // a pack may have been written since the packs were listed, but most objects looked
+        // up while writing are new, so the directory is only listed again if it changed
+        List<PackFile> refreshed = refresh(current);
+        if (refreshed == current) {
+            return null;
+        }
+        for (PackFile pack : refreshed) {
+            if (pack.contains(hash)) {
+                return pack;
+            }
+        }
+        return null;
+    }
+
+    List<PackFile> packs() {
+        // read the field once, since another thread may reload it meanwhile
+        List<PackFile> result = packs;
+        if (result == null) {
+            result = refresh(new ArrayList<>());
+        }
+        return result;
+    }
+
+    /**
+     * List the pack directory again if it changed since CURRENT, the packs opened last, were
+     * listed, and return the packs it holds, opening only those not in CURRENT. Returns
+     * CURRENT itself if the directory did not change.
+     */
+    private synchronized List<PackFile> refresh(List<PackFile> current) {
+        FileTime modified = modifiedTime(packDir);
+        if (current == packs && Objects.equals(modified, packDirModified)) {
+            return current;
+        }
+        HashMap<File, PackFile> opened = new HashMap<>();
+        for (PackFile pack : current) {
+            opened.put(pack.indexFile, pack);
+        }
+        List<PackFile> result = new ArrayList<>();
+        List<String> names = plainFilenamesIn(packDir);
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(".idx")) {
+                    File indexFile = join(packDir, name);
+                    PackFile pack = opened.get(indexFile);
+                    result.add(pack != null ? pack : new PackFile(indexFile));
+                }
+            }
+        }
+        packDirModified = modified;
+        packs = result;
+        return result;
+    }
+
+    /**
+     * Return the modification time of FILE at the full precision of the file system, or
+     * null if it does not exist.
+     */
+    private static FileTime modifiedTime(File file) {
+        try {
+            return Files.getLastModifiedTime(file.toPath());
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /**
+     * Return the SHA1s of all loose objects.
+     */
+    List<String> looseIds() {
+        List<String> result = new ArrayList<>();
+        String[] prefixes = dir.list();
+        if (prefixes == null) {
+            return result;
+        }
+        for (String prefix : prefixes) {
+            if (prefix.length() != 2) {
+                continue;
+            }
+            List<String> names = plainFilenamesIn(join(dir, prefix));
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                result.add(prefix + name);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fold all loose objects and existing packs into a single new pack, then delete
+     * the loose objects and old packs. Returns the number of objects in the new pack.
+     */
+    int repack() {
+        return repack(null);
+    }
+
+    /**
+     * Fold the loose and packed objects in KEEP, or all of them if KEEP is null, into a
+     * single new pack, then delete all the loose objects and old packs, dropping the objects
+     * not in KEEP. Returns the number of objects in the new pack.
+     */
+    int repack(Set<String> keep) {
+        HashMap<String, Long> sizes = new HashMap<>();
+        for (String hash : looseIds()) {
+            if (keep == null || keep.contains(hash)) {
+                sizes.put(hash, LooseObject.size(looseFile(hash)));
+            }
+        }
+        List<PackFile> oldPacks = packs();
+        for (PackFile pack : oldPacks) {
+            for (String hash : pack.ids()) {
+                if (!sizes.containsKey(hash) && (keep == null || keep.contains(hash))) {
+                    sizes.put(hash, pack.objectSize(hash));
+                }
+            }
+        }
+        if (sizes.isEmpty() && keep == null) {
+            return 0;
+        }
+        // larger objects first, so that the smaller ones are written as deltas against them
+        List<String> ids = new ArrayList<>(sizes.keySet());
+        ids.sort(Comparator.comparing((String hash) -> sizes.get(hash)).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+        // chunked blobs are packed as their manifests, so their chunks stay shared
+        PackFile pack = ids.isEmpty() ? null : PackFile.write(packDir, ids, this::readStored);
+
+        for (PackFile oldPack : oldPacks) {
+            if (pack == null || !oldPack.indexFile.equals(pack.indexFile)) {
+                oldPack.indexFile.delete();
+                oldPack.packFile.delete();
+            }
+        }
+        for (String hash : looseIds()) {
+            File file = looseFile(hash);
+            file.delete();
+            file.getParentFile().delete();
+        }
+        reload();
+        return pack == null ? 0 : pack.size();
+    }
+}
@@ -0,0 +1,435 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Function;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/**
+ * A pack file folding many objects into a single file, together with its sorted index.
+ * <p>
+ * The `.pack` file holds a header followed by one entry per object. Each entry is either
+ * the whole object (type, size, compressed size) or a delta against an earlier entry of the
+ * same pack (type, base offset, size, delta size, compressed size), and is zlib compressed.
+ * The `.idx` file holds a fanout table on the first byte of the SHA1, the sorted SHA1s and
+ * the offsets of their entries; it is memory-mapped so that a lookup is a binary search.
+ *
+ * @author Yuansong Zhang
+ */
+class PackFile {
+
+    private static final int PACK_MAGIC = 0x4750434b; // "GPCK"
+
+    private static final int INDEX_MAGIC = 0x47494458; // "GIDX"
+
+    private static final int VERSION = 1;
+
+    private static final int FULL = 0;
+
+    private static final int DELTA = 1;
+
+    /**
+     * Number of previously written objects tried as a delta base.
+     */
+    private static final int WINDOW = 10;
+
+    /**
+     * Longest delta chain allowed, bounding the cost of reading an object.
+     */
+    private static final int MAX_DEPTH = 10;
+
+    /**
+     * Length of a SHA1 in bytes.
+     */
+    private static final int ID_LENGTH = UID_LENGTH / 2;
+
+    private static final int FANOUT_OFFSET = 8;
+
+    private static final int IDS_OFFSET = FANOUT_OFFSET + 256 * 4;
+
+    final File packFile;
+
+    final File indexFile;
+
+    private final MappedByteBuffer index;
+
+    private final int count;
+
+    /**
+     * Open the pack whose index is INDEXFILE.
+     */
+    PackFile(File indexFile) {
+        this.indexFile = indexFile;
+        String name = indexFile.getName();
+        this.packFile = new File(indexFile.getParentFile(), name.substring(0, name.length() - 4) + ".pack");
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            this.index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("bad pack index " + indexFile);
+        }
+        this.count = index.getInt(FANOUT_OFFSET + 255 * 4);
+    }
+
+    /**
+     * Number of objects in this pack.
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Return the offset of the entry of the object HASH in the pack, or -1 if absent.
+     */
+    long find(String hash) {
+        byte[] id = toBytes(hash);
+        int first = id[0] & 0xff;
+        int low = first == 0 ? 0 : index.getInt(FANOUT_OFFSET + (first - 1) * 4);
+        int high = index.getInt(FANOUT_OFFSET + first * 4) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareId(mid, id);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return index.getLong(IDS_OFFSET + count * ID_LENGTH + mid * 8);
+            }
+        }
+        return -1;
+    }
+
+    boolean contains(String hash) {
+        return find(hash) >= 0;
+    }
+
+    /**
+     * Return the contents of the object HASH, or null if it is not in this pack.
+     */
+    byte[] read(String hash) {
+        long offset = find(hash);
+        if (offset < 0) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ)) {
+            return readAt(channel, offset);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Return a stream over the contents of the object HASH, which must be in this pack.
+     * An object stored whole is inflated while it is read, in constant memory. A delta is
+     * resolved in memory: reading it holds the inflated deltas of its chain, at most
+     * MAX_DEPTH of them, with two whole versions of the object at a time, its base and the
+     * result of applying the next delta.
+     */
+    InputStream open(String hash) {
+        long offset = find(hash);
+        if (offset < 0) {
+            throw new IllegalArgumentException("object " + hash + " is not in " + packFile);
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(1);
+            channel.read(header, offset);
+            if (header.get(0) != FULL) {
+                byte[] content = readAt(channel, offset);
+                channel.close();
+                return new ByteArrayInputStream(content);
+            }
+            channel.position(offset + 9);
+            Inflater inflater = new Inflater();
+            // a stream given its own inflater does not end it, so its native memory is
+            // released on close rather than when the inflater is garbage collected
+            return new InflaterInputStream(Channels.newInputStream(channel), inflater, BUFFER_SIZE) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        inflater.end();
+                    }
+                }
+            };
+        } catch (IOException excp) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // the original exception is more useful
+                }
+            }
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Return the uncompressed size of the object HASH, or -1 if it is not in this pack.
+     */
+    long objectSize(String hash) {
+        long offset = find(hash);
+        if (offset < 0) {
+            return -1;
+        }
+        try (FileChannel channel = FileChannel.open(packFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(13);
+            channel.read(header, offset);
+            return header.getInt(header.get(0) == DELTA ? 9 : 1);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Return the SHA1s of all objects in this pack in sorted order.
+     */
+    List<String> ids() {
+        List<String> result = new ArrayList<>(count);
+        byte[] id = new byte[ID_LENGTH];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < ID_LENGTH; j++) {
+                id[j] = index.get(IDS_OFFSET + i * ID_LENGTH + j);
+            }
+            result.add(toHex(id));
+        }
+        return result;
+    }
+
+    private byte[] readAt(FileChannel channel, long offset) throws IOException {
+        // resolve the delta chain iteratively, collecting deltas from the object down to its base
+        Deque<byte[]> deltas = new ArrayDeque<>();
+        while (true) {
+            ByteBuffer header = ByteBuffer.allocate(21);
+            channel.read(header, offset);
+            int type = header.get(0);
+            if (type == FULL) {
+                int size = header.getInt(1);
+                int compressedSize = header.getInt(5);
+                byte[] result = inflate(channel, offset + 9, compressedSize, size);
+                while (!deltas.isEmpty()) {
+                    result = Delta.apply(result, deltas.pop());
+                }
+                return result;
+            } else if (type == DELTA) {
+                long baseOffset = header.getLong(1);
+                int deltaSize = header.getInt(13);
+                int compressedSize = header.getInt(17);
+                deltas.push(inflate(channel, offset + 21, compressedSize, deltaSize));
+                offset = baseOffset;
+            } else {
+                throw new IllegalArgumentException("corrupt pack entry in " + packFile);
+            }
+        }
+    }
+
+    private static byte[] inflate(FileChannel channel, long position, int compressedSize, int size)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(compressedSize);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("truncated pack entry");
+            }
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(buffer.array());
+            byte[] result = new byte[size];
+            int n = 0;
+            while (n < size && !inflater.finished()) {
+                int inflated = inflater.inflate(result, n, size - n);
+                if (inflated == 0 && inflater.needsInput()) {
+                    throw new IOException("truncated pack entry");
+                }
+                n += inflated;
+            }
+            return result;
+        } catch (DataFormatException excp) {
+            throw new IOException("corrupt pack entry: " + excp.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write the objects IDS to a new pack in PACKDIR and return it. IDS should be ordered so that
+     * similar objects are close to each other, since each object is only tried as a delta against
+     * the few objects written just before it. READER returns the contents of an object.
+     */
+    static PackFile write(File packDir, List<String> ids, Function<String, byte[]> reader) {
+        packDir.mkdirs();
+        List<String> sortedIds = new ArrayList<>(ids);
+        sortedIds.sort(null);
+        String name = "pack-" + sha1(String.join("", sortedIds));
+        File packFile = join(packDir, name + ".pack");
+        File indexFile = join(packDir, name + ".idx");
+        if (indexFile.exists() && packFile.exists()) {
+            return new PackFile(indexFile);
+        }
+        File tempPack = join(packDir, name + ".pack.tmp");
+        File tempIndex = join(packDir, name + ".idx.tmp");
+        HashMap<String, Long> offsets = new HashMap<>();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempPack.toPath())))) {
+            out.writeInt(PACK_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ids.size());
+            long position = 12;
+            Deque<WindowEntry> window = new ArrayDeque<>();
+            for (String id : ids) {
+                byte[] content = reader.apply(id);
+                WindowEntry best = null;
+                byte[] bestDelta = null;
+                for (WindowEntry candidate : window) {
+                    if (candidate.depth >= MAX_DEPTH) {
+                        continue;
+                    }
+                    int limit = bestDelta == null ? content.length / 2 : bestDelta.length;
+                    byte[] delta = Delta.create(candidate.content, content, limit);
+                    if (delta != null) {
+                        best = candidate;
+                        bestDelta = delta;
+                    }
+                }
+                offsets.put(id, position);
+                int depth = 0;
+                if (bestDelta != null) {
+                    byte[] compressed = deflate(bestDelta);
+                    out.writeByte(DELTA);
+                    out.writeLong(best.offset);
+                    out.writeInt(content.length);
+                    out.writeInt(bestDelta.length);
+                    out.writeInt(compressed.length);
+                    out.write(compressed);
+                    position += 21 + compressed.length;
+                    depth = best.depth + 1;
+                } else {
+                    byte[] compressed = deflate(content);
+                    out.writeByte(FULL);
+                    out.writeInt(content.length);
+                    out.writeInt(compressed.length);
+                    out.write(compressed);
+                    position += 9 + compressed.length;
+                }
+                window.addFirst(new WindowEntry(content, offsets.get(id), depth));
+                if (window.size() > WINDOW) {
+                    window.removeLast();
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+
+        int[] fanout = new int[256];
+        for (String id : sortedIds) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)]++;
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempIndex.toPath())))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            int total = 0;
+            for (int n : fanout) {
+                total += n;
+                out.writeInt(total);
+            }
+            for (String id : sortedIds) {
+                out.write(toBytes(id));
+            }
+            for (String id : sortedIds) {
+                out.writeLong(offsets.get(id));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        // the index is renamed last, so a pack is only visible once it is complete
+        moveFile(tempPack, packFile);
+        moveFile(tempIndex, indexFile);
+        return new PackFile(indexFile);
+    }
+
+    private int compareId(int position, byte[] id) {
+        int base = IDS_OFFSET + position * ID_LENGTH;
+        for (int i = 0; i < ID_LENGTH; i++) {
+            int cmp = Integer.compare(index.get(base + i) & 0xff, id[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    static byte[] toBytes(String hash) {
+        byte[] result = new byte[hash.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(hash.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    static String toHex(byte[] id) {
+        StringBuilder builder = new StringBuilder(id.length * 2);
+        for (byte b : id) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A recently written object kept as a delta base candidate.
+     */
+    private static class WindowEntry {
+        final byte[] content;
+        final long offset;
+        final int depth;
+
+        WindowEntry(byte[] content, long offset, int depth) {
+            this.content = content;
+            this.offset = offset;
+            this.depth = depth;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/**
+ * Reachability bitmaps of selected commits, the anchors, kept in the file
+ * `.gitlet/commit-bitmaps`, so that ancestry queries combine the bitmaps of the anchors
+ * they reach with a short walk instead of walking the whole history.
+ * <p>
+ * The bitmap of an anchor has the bit of the commit graph position of every commit
+ * reachable from it, itself included, through both parents. The set of commits reachable
+ * from any commit is found by walking back from it and stopping at each anchor, whose
+ * bitmap is OR-ed in. Anchors are the branch heads when gc runs and every commit whose
+ * position is a multiple of the anchor interval, added as they are made, so a walk stays
+ * short.
+ * <p>
+ * The bitmaps are plain java.util.BitSet words rather than a compressed format, since
+ * the bitmap of a history of N commits takes N / 8 bytes. Positions are only meaningful
+ * for one commit graph, so the file holds the SHA1 of the commit ids at the positions it
+ * covers, and its bitmaps are dropped if the graph no longer matches.
+ * <p>
+ * The file holds a magic number and a format version, the number of positions covered
+ * and their digest, the number of anchors and, for each anchor, its position and the
+ * number and values of the 64-bit words of its bitmap.
+ *
+ * @author Yuansong Zhang
+ */
+class ReachabilityBitmaps {
+
+    private static final int MAGIC = 0x47424d50; // "GBMP"
+
+    private static final int VERSION = 1;
+
+    private final File file;
+
+    private final CommitGraph graph;
+
+    /**
+     * The bitmap of each anchor, by position.
+     */
+    private final TreeMap<Integer, BitSet> anchors = new TreeMap<>();
+
+    /**
+     * The number of commits visited by the walks, for tests and statistics.
+     */
+    private long walked;
+
+    private ReachabilityBitmaps(File file, CommitGraph graph) {
+        this.file = file;
+        this.graph = graph;
+    }
+
+    /**
+     * Load the bitmaps saved in FILE for the commits of GRAPH. No bitmap is loaded if FILE
+     * does not exist or was written for another commit graph.
+     */
+    static ReachabilityBitmaps load(File file, CommitGraph graph) {
+        ReachabilityBitmaps result = new ReachabilityBitmaps(file, graph);
+        if (!file.isFile()) {
+            return result;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IllegalArgumentException("bad commit bitmaps " + file);
+            }
+            int covered = in.readInt();
+            byte[] digest = new byte[UID_LENGTH / 2];
+            in.readFully(digest);
+            if (covered > graph.size() || !Arrays.equals(digest, digest(graph, covered))) {
+                return result;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int position = in.readInt();
+                long[] words = new long[in.readInt()];
+                for (int j = 0; j < words.length; j++) {
+                    words[j] = in.readLong();
+                }
+                result.anchors.put(position, BitSet.valueOf(words));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result;
+    }
+
+    int size() {
+        return anchors.size();
+    }
+
+    boolean isAnchor(int position) {
+        return anchors.containsKey(position);
+    }
+
+    long walked() {
+        return walked;
+    }
+
+    /**
+     * Return the positions of the commits reachable from the commit at POSITION.
+     */
+    BitSet reachable(int position) {
+        BitSet result = new BitSet(graph.size());
+        walk(position, result, -1);
+        return result;
+    }
+
+    /**
+     * Return whether the commit at ANCESTOR is reachable from the commit at DESCENDANT,
+     * which includes the commit itself. Commits whose generation is not above the one of
+     * ANCESTOR cannot reach it, so the walk does not go past them.
+     */
+    boolean isAncestor(int ancestor, int descendant) {
+        if (ancestor == descendant) {
+            return true;
+        }
+        if (graph.generation(ancestor) >= graph.generation(descendant)) {
+            return false;
+        }
+        BitSet result = new BitSet(graph.size());
+        return walk(descendant, result, ancestor);
+    }
+
+    /**
+     * Add the positions reachable from START to RESULT, stopping at the anchors and at the
+     * commits already in RESULT. If TARGET is not -1, the walk stops as soon as TARGET is
+     * reached, skipping the commits that are too old to reach it, and returns whether it was.
+     */
+    private boolean walk(int start, BitSet result, int target) {
+        int targetGeneration = target < 0 ? 0 : graph.generation(target);
+        Deque<Integer> pending = new ArrayDeque<>();
+        pending.push(start);
+        while (!pending.isEmpty()) {
+            int position = pending.pop();
+            if (result.get(position)) {
+                continue;
+            }
+            BitSet bitmap = anchors.get(position);
+            if (bitmap != null) {
+                result.or(bitmap);
+            } else {
+                walked++;
+                result.set(position);
+                for (int parent : new int[]{graph.parent(position), graph.mergedParent(position)}) {
+                    if (parent >= 0 && graph.generation(parent) >= targetGeneration) {
+                        pending.push(parent);
+                    }
+                }
+            }
+            if (target >= 0 && result.get(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Make anchors of the commits at POSITIONS that are not anchors yet, and save the bitmaps.
+     */
+    void add(int... positions) {
+        boolean changed = false;
+        // older commits first, so that the newer ones reuse their bitmaps
+        int[] sorted = positions.clone();
+        Arrays.sort(sorted);
+        for (int position : sorted) {
+            if (position >= 0 && !anchors.containsKey(position)) {
+                anchors.put(position, reachable(position));
+                changed = true;
+            }
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    private void save() {
+        int covered = anchors.isEmpty() ? 0 : anchors.lastKey() + 1;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(covered);
+            out.write(digest(graph, covered));
+            out.writeInt(anchors.size());
+            for (Map.Entry<Integer, BitSet> item : anchors.entrySet()) {
+                long[] words = item.getValue().toLongArray();
+                out.writeInt(item.getKey());
+                out.writeInt(words.length);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        writeContentsAtomically(file, bytes.toByteArray());
+    }
+
+    /**
+     * Return the SHA1 of the ids of the first COUNT commits of GRAPH, in order.
+     */
+    private static byte[] digest(CommitGraph graph, int count) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (int i = 0; i < count; i++) {
+                md.update(PackFile.toBytes(graph.hash(i)));
+            }
+            return md.digest();
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package gitlet;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import static gitlet.Utils.*;
+
+/**
+ * A repository reached through the path of its `.gitlet` directory, on the same host or a
+ * network file system, and the transfer of commits between two such repositories.
+ * <p>
+ * A transfer negotiates over commit ids: the commits wanted are those reachable from the
+ * sent branch head that the receiving repository does not have, found by walking back from
+ * the head and stopping at the commits it has. The objects wanted are the trees and blobs of
+ * those commits less the ones of the commits it has at the boundary of the walk, so a
+ * subtree unchanged since then is not even read. The wanted objects are written to the
+ * receiving repository as a single pack, then the commits, then the commit indexes, so an
+ * interrupted transfer only leaves objects that no commit uses, which gc removes.
+ *
+ * @author Yuansong Zhang
+ */
+class Remote {
+
+    /**
+     * The `.gitlet` directory of the repository.
+     */
+    final File gitletDir;
+
+    final File commitDir;
+
+    final File headsDir;
+
+    final ObjectStore store;
+
+    Remote(File gitletDir) {
+        this.gitletDir = gitletDir;
+        this.commitDir = join(gitletDir, Repository.COMMIT_DIR.getName());
+        this.headsDir = join(gitletDir, Repository.REFS_DIR.getName(), Repository.HEAEDS_DIR.getName());
+        this.store = new ObjectStore(join(gitletDir, Repository.OBJECTS_DIR.getName()));
+    }
+
+    /**
+     * Return the file of this repository named like FILE in the current repository.
+     */
+    private File file(File file) {
+        return join(gitletDir, file.getName());
+    }
+
+    /**
+     * Return the SHA1 of the head of BRANCH, or null if there is no such branch.
+     */
+    String readHead(String branch) {
+        File file = join(headsDir, branch);
+        return file.isFile() ? readContentsAsString(file) : null;
+    }
+
+    void writeHead(String branch, String hash) {
+        writeContentsAtomically(join(headsDir, branch), hash);
+    }
+
+    /**
+     * Return the name of the checked out branch.
+     */
+    String currentBranch() {
+        return readContentsAsString(file(Repository.HEAD_FILE));
+    }
+
+    boolean hasCommit(String hash) {
+        return join(commitDir, hash).isFile();
+    }
+
+    Commit readCommit(String hash) {
+        return Commit.read(join(commitDir, hash), store);
+    }
+
+    /**
+     * Take the writer lock of this repository, waiting for the process holding it.
+     */
+    RepositoryLock lock() {
+        return RepositoryLock.acquire(file(Repository.LOCK_FILE));
+    }
+
+    /**
+     * Copy the commits reachable from the commit TIP of FROM that TO does not have, with the
+     * objects they use, to TO, using PARALLELISM workers to list the objects and copy the
+     * commits. Returns the SHA1s of the commits copied.
+     */
+    static List<String> copy(Remote from, Remote to, String tip, int parallelism) {
+        Set<String> haves = new HashSet<>();
+        List<String> wants = Remote.wants(from, to, tip, haves);
+        if (wants.isEmpty()) {
+            return wants;
+        }
+
+        Set<String> trees = ConcurrentHashMap.newKeySet();
+        Set<String> haveBlobs = ConcurrentHashMap.newKeySet();
+        Set<String> wantBlobs = ConcurrentHashMap.newKeySet();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        CommitGraph graph;
+        MessageIndex messages;
+        CommitIdIndex ids;
+        try {
+            pool.submit(() -> haves.parallelStream().forEach(hash ->
+                    Tree.walk(from.store, from.readCommit(hash).getTreeHash(), trees, haveBlobs))).get();
+            Set<String> haveTrees = new HashSet<>(trees);
+            pool.submit(() -> wants.parallelStream().forEach(hash ->
+                    Tree.walk(from.store, from.readCommit(hash).getTreeHash(), trees, wantBlobs))).get();
+            trees.removeAll(haveTrees);
+            wantBlobs.removeAll(haveBlobs);
+            Set<String> objects = ConcurrentHashMap.newKeySet();
+            objects.addAll(trees);
+            pool.submit(() -> wantBlobs.parallelStream().forEach(hash -> {
+                objects.add(hash);
+                objects.addAll(from.store.chunksOf(hash));
+            })).get();
+            objects.removeIf(to.store::contains);
+            Remote.writePack(from, to, objects);
+
+            // the indexes are loaded before the commits are copied, so that they are extended
+            // rather than rebuilt, and the commits once the objects they use are in place
+            CommitList existing = new CommitList(to.commitDir);
+            graph = CommitGraph.load(to.file(Repository.COMMIT_GRAPH_FILE), existing);
+            messages = MessageIndex.load(to.file(Repository.MESSAGE_INDEX_FILE), existing);
+            ids = CommitIdIndex.load(to.file(Repository.COMMIT_IDS_FILE), existing);
+            List<String> commits = new ArrayList<>(wants);
+            pool.submit(() -> commits.parallelStream().forEach(hash ->
+                    writeContentsAtomically(join(to.commitDir, hash), readContents(join(from.commitDir, hash))))).get();
+        } catch (InterruptedException | ExecutionException excp) {
+            throw error("Internal error copying commits: %s", excp.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+        to.index(wants, graph, messages, ids);
+        return wants;
+    }
+
+    /**
+     * Return the commits reachable from TIP in FROM that TO does not have, parents first,
+     * and add the commits of TO where the walk stopped to HAVES.
+     */
+    private static List<String> wants(Remote from, Remote to, String tip, Set<String> haves) {
+        List<String> result = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        Set<String> done = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.push(tip);
+        while (!pending.isEmpty()) {
+            String hash = pending.peek();
+            if (to.hasCommit(hash)) {
+                pending.pop();
+                haves.add(hash);
+            } else if (visited.add(hash)) {
+                // the parents are listed before the commit, which is popped again after them
+                Commit commit = from.readCommit(hash);
+                for (String parent : new String[]{commit.parentHash, commit.mergedParentHash}) {
+                    if (parent != null && !visited.contains(parent)) {
+                        pending.push(parent);
+                    }
+                }
+            } else {
+                pending.pop();
+                if (done.add(hash)) {
+                    result.add(hash);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write the OBJECTS of FROM to a single new pack of TO. Larger objects come first, so
+     * that the smaller ones are written as deltas against them.
+     */
+    private static void writePack(Remote from, Remote to, Set<String> objects) {
+        if (objects.isEmpty()) {
+            return;
+        }
+        HashMap<String, Long> sizes = new HashMap<>();
+        for (String hash : objects) {
+            sizes.put(hash, from.store.storedSize(hash));
+        }
+        List<String> ids = new ArrayList<>(objects);
+        ids.sort(Comparator.comparing((String hash) -> sizes.get(hash)).reversed()
+                .thenComparing(Comparator.naturalOrder()));
+        PackFile.write(to.store.packDir, ids, from.store::readStored);
+        to.store.reload();
+    }
+
+    /**
+     * Add the copied COMMITS, parents first, to the commit GRAPH, the MESSAGES and commit
+     * IDS indexes, the changed path filters and the reachability bitmaps of this repository.
+     */
+    private void index(List<String> commits, CommitGraph graph, MessageIndex messages, CommitIdIndex ids) {
+        ChangedPathFilters filters = ChangedPathFilters.load(file(Repository.CHANGED_PATHS_FILE),
+                Repository.CHANGED_PATHS_FALSE_POSITIVE_RATE);
+        List<Integer> anchors = new ArrayList<>();
+        // the commit ids are merged into the index at once rather than inserted one by one
+        ids.addAll(commits);
+        for (String hash : commits) {
+            Commit commit = readCommit(hash);
+            graph.add(hash, commit.parentHash, commit.mergedParentHash, commit.timestamp);
+            messages.add(hash, commit.message);
+            String parentTree = commit.parentHash == null ? null : readCommit(commit.parentHash).getTreeHash();
+            List<String> changed = new ArrayList<>();
+            for (Tree.Change change : Tree.diff(store, parentTree, commit.getTreeHash())) {
+                changed.add(change.path);
+            }
+            filters.add(hash, changed);
+            int position = graph.position(hash);
+            if (position % Repository.BITMAP_INTERVAL == 0) {
+                anchors.add(position);
+            }
+        }
+        int[] positions = new int[anchors.size()];
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = anchors.get(i);
+        }
+        ReachabilityBitmaps.load(file(Repository.BITMAPS_FILE), graph).add(positions);
+    }
+}
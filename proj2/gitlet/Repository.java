@@ -1,7 +1,25 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 import static gitlet.Utils.*;
 
@@ -42,6 +60,21 @@ public class Repository {
      */
     public static final File OBJECTS_DIR = join(GITLET_DIR, "objects");
 
+    /**
+     * The object database reading files committed from either loose objects or packs.
+     */
+    static final ObjectStore OBJECT_STORE = new ObjectStore(OBJECTS_DIR);
+
+    /**
+     * The largest number of commits kept in COMMIT_CACHE.
+     */
+    static final int COMMIT_CACHE_SIZE = 4096;
+
+    /**
+     * The commits read by this process, so that each commit file is decoded at most once.
+     */
+    static final CommitCache COMMIT_CACHE = new CommitCache(COMMIT_DIR, OBJECT_STORE, COMMIT_CACHE_SIZE);
+
     /**
      * The .gitlet/refs directory commit references.
      */
@@ -62,19 +95,159 @@ public class Repository {
      */
     public static final File TAGS_DIR = join(REFS_DIR, "tags");
 
+    /**
+     * The .gitlet/remote-paths directory saving the path of each remote by its name.
+     */
+    public static final File REMOTE_PATHS_DIR = join(GITLET_DIR, "remote-paths");
+
+    /**
+     * The .gitlet/commit-graph file saving parents and generation numbers of all commits.
+     */
+    public static final File COMMIT_GRAPH_FILE = join(GITLET_DIR, "commit-graph");
+
+    /**
+     * The .gitlet/message-index file mapping commit messages to commits for `find`.
+     */
+    public static final File MESSAGE_INDEX_FILE = join(GITLET_DIR, "message-index");
+
+    /**
+     * The .gitlet/commit-bloom file saving the Bloom filters of the paths changed by each commit.
+     */
+    public static final File CHANGED_PATHS_FILE = join(GITLET_DIR, "commit-bloom");
+
+    /**
+     * The .gitlet/commit-ids file listing the sorted SHA1s of all commits.
+     */
+    public static final File COMMIT_IDS_FILE = join(GITLET_DIR, "commit-ids");
+
+    /**
+     * The .gitlet/commit-bitmaps file saving the reachability bitmaps of selected commits.
+     */
+    public static final File BITMAPS_FILE = join(GITLET_DIR, "commit-bitmaps");
+
+    /**
+     * The .gitlet/journal file holding the writes of a command until they are all applied.
+     */
+    public static final File JOURNAL_FILE = join(GITLET_DIR, "journal");
+
+    /**
+     * The .gitlet/index file saving tracked and staged files with their stat data.
+     */
+    public static final File INDEX_FILE = join(GITLET_DIR, "index");
+
+    /**
+     * The .gitlet/index.lock file locked by the commands modifying the repository.
+     */
+    public static final File LOCK_FILE = join(GITLET_DIR, "index.lock");
+
+    /**
+     * The .gitlet/daemon file saving the port and the token of a running daemon.
+     */
+    public static final File DAEMON_FILE = join(GITLET_DIR, "daemon");
+
+    /**
+     * The .gitlet/HEAD file saving the name of the current branch.
+     */
+    public static final File HEAD_FILE = join(GITLET_DIR, "HEAD");
+
+    /**
+     * The patterns of the working files that status does not list as untracked.
+     */
+    public static final File IGNORE_FILE = join(CWD, ".gitletignore");
+
     public static String author = "auto";
 
     public static String currentBranch;
 
     public static Commit currentHead;
 
+    /**
+     * The largest number of workers hashing and writing files in a single `add`, or
+     * writing files in a single `checkout` or `reset`.
+     */
+    public static int ADD_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Files of at least this many bytes are saved as chunks deduplicated across versions
+     * rather than as whole copies. Set it to Long.MAX_VALUE to disable chunking.
+     */
+    public static long CHUNK_THRESHOLD = 1024 * 1024;
+
+    /**
+     * The zlib level, from 0 (stored as is) to 9, at which loose objects and staged blobs are
+     * compressed. The fastest level gets most of the gain on source files.
+     */
+    public static int LOOSE_COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+    /**
+     * The false positive rate the changed path filters of new commits are sized for. A
+     * lower rate skips more commits in `log -- PATH` at the cost of larger filters.
+     */
+    public static double CHANGED_PATHS_FALSE_POSITIVE_RATE = 0.01;
+
+    /**
+     * Every commit whose commit graph position is a multiple of BITMAP_INTERVAL gets a
+     * reachability bitmap, so that an ancestry query walks about that many commits at most
+     * before reaching one.
+     */
+    public static int BITMAP_INTERVAL = 100;
+
+    /**
+     * The commits of COMMIT_DIR the commit indexes are checked against, listed at most once
+     * per command.
+     */
+    private static CommitList commitList;
+
+    /**
+     * The commit graph loaded lazily from COMMIT_GRAPH_FILE.
+     */
+    private static CommitGraph commitGraph;
+
+    /**
+     * The message index loaded lazily from MESSAGE_INDEX_FILE.
+     */
+    private static MessageIndex messageIndex;
+
+    /**
+     * The changed path filters loaded lazily from CHANGED_PATHS_FILE.
+     */
+    private static ChangedPathFilters changedPathFilters;
+
+    /**
+     * The reachability bitmaps loaded lazily from BITMAPS_FILE, for the loaded commit graph.
+     */
+    private static ReachabilityBitmaps reachabilityBitmaps;
+
+    /**
+     * The commit id index loaded lazily from COMMIT_IDS_FILE.
+     */
+    private static CommitIdIndex commitIdIndex;
+
+    /**
+     * The writer lock on LOCK_FILE, held by a command modifying the repository, or null.
+     */
+    private static RepositoryLock writerLock;
+
+    /**
+     * The stat data of the files backing the state kept in memory between the commands
+     * run by a daemon, when the last command finished.
+     */
+    private static long[][] warmState;
+
+    /**
+     * The index loaded lazily from INDEX_FILE.
+     */
+    private static Index index;
+
     /**
      * Staging blobs whose Key is a filename and Value is the SHA1 code of the file.
+     * It is loaded from and saved to the index.
      */
     public static HashMap<String, String> blobMap = new HashMap<>();
 
     /**
      * Committed blobs whose Key is a filename and Value is the SHA1 code of the file.
+     * It is loaded from and saved to the index.
      */
     public static HashMap<String, String> committedBlobMap = new HashMap<>();
 
@@ -85,6 +258,19 @@ public class Repository {
 
     public static void clear() {
         deleteDirectory(Repository.GITLET_DIR);
+        Repository.OBJECT_STORE.reload();
+        Repository.COMMIT_CACHE.clear();
+        Repository.blobMap = new HashMap<>();
+        Repository.committedBlobMap = new HashMap<>();
+        Repository.currentHead = null;
+        Repository.currentBranch = null;
+        Repository.commitList = null;
+        Repository.commitGraph = null;
+        Repository.messageIndex = null;
+        Repository.commitIdIndex = null;
+        Repository.changedPathFilters = null;
+        Repository.reachabilityBitmaps = null;
+        Repository.index = null;
     }
 
     /**
@@ -99,13 +285,328 @@ public class Repository {
         String message = "initial commit";
         String timeString = "1970-01-01 00:00:00 +0000";
         String hash = sha1(message, Repository.author, timeString);
-        Commit commit = new Commit(message, Repository.author, timeString, hash, null, null, null);
+        Commit commit = new Commit(message, Repository.author, timeString, hash, null, null, new HashMap<>());
         Repository.currentHead = commit;
         // write the head point of the branch
         Repository.writeHead();
-        File file = join(COMMIT_DIR, commit.hash);
+        writeContentsAtomically(Repository.HEAD_FILE, Repository.currentBranch);
         // write the commit instance
-        writeObject(file, commit);
+        commit.write(join(Repository.COMMIT_DIR, commit.hash));
+        Repository.COMMIT_CACHE.put(commit);
+        Repository.commitGraph().add(commit.hash, null, null, commit.timestamp);
+        Repository.messageIndex().add(commit.hash, commit.message);
+        Repository.commitIdIndex().add(commit.hash);
+        Repository.changedPathFilters().add(commit.hash, new ArrayList<>());
+        Repository.saveIndex();
+    }
+
+    /**
+     * Load the current branch, its head commit and the staged and committed blobs
+     * saved in the .gitlet directory by a previous command, after finishing the writes
+     * of a command that was interrupted.
+     */
+    public static void load() {
+        if (Repository.JOURNAL_FILE.exists()) {
+            Repository.recoverJournal();
+        }
+        Repository.commitList = null;
+        Repository.currentBranch = readContentsAsString(Repository.HEAD_FILE);
+        Repository.currentHead = Repository.readCommit(Repository.readHead(Repository.currentBranch));
+        // an index kept from a previous command is reused unless another process saved it since
+        if (Repository.index == null || !Repository.index.isCurrent()) {
+            Repository.index = Index.read(Repository.INDEX_FILE);
+        }
+        Repository.blobMap = new HashMap<>();
+        Repository.committedBlobMap = new HashMap<>();
+        for (Index.Entry entry : Repository.index.entries().values()) {
+            if (entry.committedHash != null) {
+                Repository.committedBlobMap.put(entry.path, entry.committedHash);
+            }
+            if (entry.stage != Index.NOT_STAGED) {
+                Repository.blobMap.put(entry.path, entry.stagedHash);
+            }
+        }
+    }
+
+    /**
+     * Prepare the state kept in memory by a daemon for its next command: the commit graph,
+     * the message and commit id indexes and the opened packs are dropped if another process
+     * changed their files since the last command, and kept warm otherwise. Commits never
+     * change, so the commit cache is always kept.
+     */
+    static void refresh() {
+        if (!Arrays.deepEquals(Repository.warmState, Repository.stateStamp())) {
+            Repository.commitGraph = null;
+            Repository.messageIndex = null;
+            Repository.commitIdIndex = null;
+            Repository.changedPathFilters = null;
+            Repository.reachabilityBitmaps = null;
+            Repository.OBJECT_STORE.reload();
+        }
+    }
+
+    /**
+     * Record the state kept in memory by a daemon after a command. If the command failed,
+     * the index is dropped since it may hold changes that were not saved.
+     */
+    static void keepWarm(boolean failed) {
+        if (failed) {
+            Repository.index = null;
+        }
+        Repository.warmState = Repository.stateStamp();
+    }
+
+    private static long[][] stateStamp() {
+        File[] files = {Repository.COMMIT_GRAPH_FILE, Repository.MESSAGE_INDEX_FILE,
+            Repository.COMMIT_IDS_FILE, Repository.CHANGED_PATHS_FILE, Repository.BITMAPS_FILE,
+            Repository.OBJECT_STORE.packDir};
+        long[][] result = new long[files.length][];
+        for (int i = 0; i < files.length; i++) {
+            result[i] = files[i].exists() ? Index.stat(files[i]) : null;
+        }
+        return result;
+    }
+
+    /**
+     * Apply the journal left by an interrupted command. Without the writer lock, this is
+     * only done if no other process holds it, since the journal may be the one of a
+     * command still running; a reader then sees the repository as before that command.
+     */
+    private static void recoverJournal() {
+        RepositoryLock lock = null;
+        if (Repository.writerLock == null) {
+            lock = RepositoryLock.tryAcquire(Repository.LOCK_FILE);
+            if (lock == null) {
+                return;
+            }
+        }
+        try {
+            Journal.recover(Repository.JOURNAL_FILE, Repository.CWD);
+        } finally {
+            if (lock != null) {
+                lock.close();
+            }
+        }
+    }
+
+    /**
+     * Return the index of the repository, loading it on first use.
+     */
+    static Index index() {
+        if (Repository.index == null) {
+            Repository.index = Index.read(Repository.INDEX_FILE);
+        }
+        return Repository.index;
+    }
+
+    /**
+     * Save the staged and committed blobs to the index file.
+     */
+    private static void saveIndex() {
+        Repository.updateIndex().write();
+    }
+
+    /**
+     * Save the stat data refreshed by a read-only command, which does not hold the writer
+     * lock. The index is only saved if no other process holds the lock or saved the index
+     * since it was read, and is otherwise left to be refreshed by a later command.
+     */
+    private static void saveRefreshedIndex() {
+        if (!Repository.index().isDirty()) {
+            return;
+        }
+        if (Repository.writerLock != null) {
+            Repository.saveIndex();
+            return;
+        }
+        try (RepositoryLock lock = RepositoryLock.tryAcquire(Repository.LOCK_FILE)) {
+            if (lock != null && Repository.index().isCurrent()) {
+                Repository.saveIndex();
+            }
+        }
+    }
+
+    /**
+     * Save with SAVE a commit index rebuilt in memory with SIZE commits. A command that does
+     * not hold the writer lock only saves it if no other process holds the lock and no commit
+     * was made since it was rebuilt, and otherwise leaves it to be rebuilt by a later command.
+     */
+    private static void saveRebuiltIndex(int size, Runnable save) {
+        if (Repository.writerLock != null) {
+            save.run();
+            return;
+        }
+        try (RepositoryLock lock = RepositoryLock.tryAcquire(Repository.LOCK_FILE)) {
+            List<String> hashes = plainFilenamesIn(Repository.COMMIT_DIR);
+            if (lock != null && hashes != null && hashes.size() == size) {
+                save.run();
+            }
+        }
+    }
+
+    /**
+     * Take the writer lock of the repository, waiting for any other process modifying
+     * it to finish. Every command modifying the repository holds it until unlock.
+     */
+    public static void lock() {
+        Repository.writerLock = RepositoryLock.acquire(Repository.LOCK_FILE);
+    }
+
+    /**
+     * Release the writer lock taken by lock.
+     */
+    public static void unlock() {
+        if (Repository.writerLock != null) {
+            Repository.writerLock.close();
+            Repository.writerLock = null;
+        }
+    }
+
+    /**
+     * Copy the staged and committed blobs to the index, without saving it, and return it.
+     */
+    private static Index updateIndex() {
+        Index index = Repository.index();
+        for (Index.Entry entry : index.entries().values()) {
+            entry.committedHash = null;
+            entry.stagedHash = null;
+            entry.stage = Index.NOT_STAGED;
+        }
+        for (Map.Entry<String, String> item : Repository.committedBlobMap.entrySet()) {
+            index.entry(item.getKey()).committedHash = item.getValue();
+        }
+        for (Map.Entry<String, String> item : Repository.blobMap.entrySet()) {
+            Index.Entry entry = index.entry(item.getKey());
+            entry.stagedHash = item.getValue();
+            if (hashFilename(STAGING_DIR, item.getValue(), "add").exists()) {
+                entry.stage = Index.STAGED_ADD;
+            } else {
+                entry.stage = Index.STAGED_REMOVE;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Return the commit whose SHA1 is HASH, or null if it does not exist.
+     * Commits are read through COMMIT_CACHE.
+     */
+    static Commit readCommit(String hash) {
+        return Repository.COMMIT_CACHE.get(hash);
+    }
+
+    /**
+     * Return the commits of the repository the commit indexes are checked against.
+     */
+    private static CommitList commitList() {
+        if (Repository.commitList == null) {
+            Repository.commitList = new CommitList(Repository.COMMIT_DIR);
+        }
+        return Repository.commitList;
+    }
+
+    /**
+     * Return the commit graph of the repository, loading it on first use.
+     */
+    static CommitGraph commitGraph() {
+        if (Repository.commitGraph == null) {
+            Repository.commitGraph = CommitGraph.load(Repository.COMMIT_GRAPH_FILE, Repository.commitList());
+            if (Repository.commitGraph.isDirty()) {
+                Repository.saveRebuiltIndex(Repository.commitGraph.size(), Repository.commitGraph::save);
+            }
+        }
+        return Repository.commitGraph;
+    }
+
+    /**
+     * Return the message index of the repository, loading it on first use.
+     */
+    static MessageIndex messageIndex() {
+        if (Repository.messageIndex == null) {
+            Repository.messageIndex = MessageIndex.load(Repository.MESSAGE_INDEX_FILE, Repository.commitList());
+            if (Repository.messageIndex.isDirty()) {
+                Repository.saveRebuiltIndex(Repository.messageIndex.size(), Repository.messageIndex::save);
+            }
+        }
+        return Repository.messageIndex;
+    }
+
+    /**
+     * Return the commit id index of the repository, loading it on first use.
+     */
+    static CommitIdIndex commitIdIndex() {
+        if (Repository.commitIdIndex == null) {
+            Repository.commitIdIndex = CommitIdIndex.load(Repository.COMMIT_IDS_FILE, Repository.commitList());
+            if (Repository.commitIdIndex.isDirty()) {
+                Repository.saveRebuiltIndex(Repository.commitIdIndex.size(), Repository.commitIdIndex::save);
+            }
+        }
+        return Repository.commitIdIndex;
+    }
+
+    /**
+     * Return the changed path filters of the repository, loading them on first use.
+     */
+    static ChangedPathFilters changedPathFilters() {
+        if (Repository.changedPathFilters == null) {
+            Repository.changedPathFilters = ChangedPathFilters.load(Repository.CHANGED_PATHS_FILE,
+                    Repository.CHANGED_PATHS_FALSE_POSITIVE_RATE);
+        }
+        return Repository.changedPathFilters;
+    }
+
+    /**
+     * Return the reachability bitmaps of the repository, loading them on first use.
+     */
+    static ReachabilityBitmaps reachabilityBitmaps() {
+        if (Repository.reachabilityBitmaps == null) {
+            Repository.reachabilityBitmaps = ReachabilityBitmaps.load(Repository.BITMAPS_FILE,
+                    Repository.commitGraph());
+        }
+        return Repository.reachabilityBitmaps;
+    }
+
+    /**
+     * Return whether the commit ANCESTOR is reachable from the commit DESCENDANT, which
+     * includes the commit itself, using the reachability bitmaps.
+     */
+    static boolean isAncestor(String ancestor, String descendant) {
+        CommitGraph graph = Repository.commitGraph();
+        return Repository.reachabilityBitmaps().isAncestor(graph.position(ancestor), graph.position(descendant));
+    }
+
+    /**
+     * Return the SHA1 of the head of the branch or remote-tracking branch NAME, or of the commit whose id is or
+     * starts with NAME. Prints an error and returns null if there is none.
+     */
+    static String resolveRevision(String name) {
+        if (join(Repository.HEAEDS_DIR, name).isFile()) {
+            return Repository.readHead(name);
+        }
+        if (join(Repository.REMOTE_DIR, name).isFile()) {
+            return readContentsAsString(join(Repository.REMOTE_DIR, name));
+        }
+        return Repository.resolveCommitId(name);
+    }
+
+    /**
+     * Return the SHA1 of the commit whose id is or starts with ID. Prints an error and
+     * returns null if no commit or more than one commit matches.
+     */
+    static String resolveCommitId(String id) {
+        if (id.length() == UID_LENGTH && join(Repository.COMMIT_DIR, id).isFile()) {
+            return id;
+        }
+        List<String> hashes = Repository.commitIdIndex().find(id, 2);
+        if (hashes.size() > 1) {
+            System.out.println("Ambiguous commit id " + id + ".");
+            return null;
+        }
+        if (hashes.isEmpty()) {
+            System.out.println("No commit with that id exists");
+            return null;
+        }
+        return hashes.get(0);
     }
 
     private static void writeHead() {
@@ -113,43 +614,119 @@ public class Repository {
     }
 
     private static void writeHead(String branch, String commitHash) {
-        writeContents(join(Repository.HEAEDS_DIR, branch), commitHash);
+        writeContentsAtomically(join(Repository.HEAEDS_DIR, branch), commitHash);
     }
 
     /**
      * `git add` command
      */
     public static void add(String filename) {
-        if (!join(Repository.CWD, filename).exists()) {
-            System.out.println("File does not exist.");
-            return;
-        }
-        byte[] content = readContents(join(Repository.CWD, filename));
-        String hash = sha1(content);
-        if (Repository.committedBlobMap.containsKey(filename) &&
-                Repository.committedBlobMap.get(filename).equals(hash)) {
-            if (Repository.blobMap.containsKey(filename)) {
-                Repository.hashFilename(Repository.STAGING_DIR, Repository.blobMap.get(filename), "add").delete();
-                Repository.hashFilename(Repository.STAGING_DIR, Repository.blobMap.get(filename), "remove").delete();
+        Repository.add(new String[]{filename});
+    }
+
+    /**
+     * Stage the files FILENAMEARRAY. The files are hashed and their blobs written by a bounded
+     * pool of workers, then the staging area and the index are updated once, in the order of
+     * FILENAMEARRAY, so that the result does not depend on the scheduling of the workers.
+     */
+    public static void add(String[] filenameArray) {
+        Index index = Repository.index();
+        Set<String> writtenHashes = ConcurrentHashMap.newKeySet();
+        List<StagedFile> stagedFiles;
+        if (filenameArray.length <= 1) {
+            stagedFiles = new ArrayList<>();
+            for (String filename : filenameArray) {
+                stagedFiles.add(Repository.hashAndWrite(index, filename, writtenHashes));
+            }
+        } else {
+            int parallelism = Math.min(Repository.ADD_PARALLELISM, filenameArray.length);
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                stagedFiles = pool.submit(() -> Arrays.stream(filenameArray).parallel()
+                        .map(filename -> Repository.hashAndWrite(index, filename, writtenHashes))
+                        .collect(Collectors.toList())).get();
+            } catch (InterruptedException | ExecutionException excp) {
+                throw error("Internal error adding files: %s", excp.getMessage());
+            } finally {
+                pool.shutdown();
             }
-            return;
         }
-        if (Repository.blobMap.containsKey(filename)) {
-            if (Repository.blobMap.get(filename).equals(hash)) {
-                return;
+
+        Set<String> replacedHashes = new HashSet<>();
+        for (StagedFile stagedFile : stagedFiles) {
+            String filename = stagedFile.filename;
+            String hash = stagedFile.hash;
+            if (hash == null) {
+                System.out.println("File does not exist.");
+                continue;
+            }
+            index.record(filename, hash, stagedFile.stat);
+            String stagedHash = Repository.blobMap.get(filename);
+            if (hash.equals(Repository.committedBlobMap.get(filename))) {
+                // the file is back to its committed version, so it is no longer staged
+                if (stagedHash != null) {
+                    replacedHashes.add(stagedHash);
+                    Repository.blobMap.remove(filename);
+                }
+                continue;
+            }
+            if (stagedHash != null) {
+                if (stagedHash.equals(hash)) {
+                    continue;
+                }
+                replacedHashes.add(stagedHash);
             }
-            Repository.hashFilename(Repository.STAGING_DIR, Repository.blobMap.get(filename), "add").delete();
-            Repository.hashFilename(Repository.STAGING_DIR, Repository.blobMap.get(filename), "remove").delete();
+            Repository.blobMap.put(filename, hash);
         }
-        File file = hashFilename(STAGING_DIR, hash, "add");
-        writeContents(file, content);
-        Repository.blobMap.put(filename, hash);
+        // a replaced blob may still be staged by another file with the same contents
+        replacedHashes.removeAll(Repository.blobMap.values());
+        for (String hash : replacedHashes) {
+            Repository.hashFilename(Repository.STAGING_DIR, hash, "add").delete();
+            Repository.hashFilename(Repository.STAGING_DIR, hash, "remove").delete();
+        }
+        Repository.saveIndex();
     }
 
-    public static void add(String[] filenameArray) {
-        for (String filename : filenameArray) {
-            Repository.add(filename);
+    /**
+     * A file hashed by `add`, whose HASH is null if the file does not exist.
+     */
+    private static class StagedFile {
+        final String filename;
+        final String hash;
+        final long[] stat;
+
+        StagedFile(String filename, String hash, long[] stat) {
+            this.filename = filename;
+            this.hash = hash;
+            this.stat = stat;
+        }
+    }
+
+    /**
+     * Hash the working file FILENAME, reusing the hash cached in INDEX if its stat data did not
+     * change, and write its blob to the staging area unless it is committed or staged already.
+     * WRITTENHASHES holds the blobs written so far, so identical files are written only once.
+     * This only reads the shared state, so it can run in parallel.
+     */
+    private static StagedFile hashAndWrite(Index index, String filename, Set<String> writtenHashes) {
+        File workingFile = join(Repository.CWD, filename);
+        if (!workingFile.isFile()) {
+            return new StagedFile(filename, null, null);
+        }
+        long[] stat = Index.stat(workingFile);
+        String hash = index.cachedHash(filename, stat);
+        if (hash == null) {
+            hash = sha1(workingFile);
+        }
+        if (hash.equals(Repository.committedBlobMap.get(filename))
+                || hash.equals(Repository.blobMap.get(filename))) {
+            return new StagedFile(filename, hash, stat);
+        }
+        File file = hashFilename(STAGING_DIR, hash, "add");
+        if (writtenHashes.add(hash) && !file.exists()) {
+            Repository.writeBlob(workingFile, file, hash);
         }
+        return new StagedFile(filename, hash, stat);
     }
 
     public static File hashFilename(File parentDir, String hash, String mode) {
@@ -186,38 +763,75 @@ public class Repository {
         String timeString = convertDateToString(new Date(), Repository.TIME_ZONE);
         String parentHash = Repository.currentHead.hash;
 
+        // only the trees along the staged paths are rebuilt, the others are shared with the parent
+        HashMap<String, String> changes = new HashMap<>();
         for (String key : Repository.blobMap.keySet()) {
             File file = hashFilename(STAGING_DIR, Repository.blobMap.get(key), "add");
             if (file.exists()) {
                 Repository.committedBlobMap.put(key, Repository.blobMap.get(key));
+                changes.put(key, Repository.blobMap.get(key));
             } else {
                 Repository.committedBlobMap.remove(key);
+                changes.put(key, null);
             }
         }
+        String treeHash = Tree.update(Repository.OBJECT_STORE, Repository.currentHead.getTreeHash(), changes);
 
         String hash = sha1(message, Repository.author, timeString, parentHash, mergedParentHash);
         Commit commit = new Commit(message, Repository.author, timeString, hash, parentHash,
-                mergedParentHash, Repository.committedBlobMap);
-        Repository.currentHead = commit;
-        Repository.writeHead();
-        File file = join(COMMIT_DIR, commit.hash);
-        writeObject(file, commit);
+                mergedParentHash, treeHash);
+
+        // the commit, the branch head, the staged blobs and the index are updated together
+        Journal journal = new Journal(Repository.JOURNAL_FILE, Repository.CWD);
+        journal.write(join(Repository.COMMIT_DIR, commit.hash), commit.encode());
+        journal.write(join(Repository.HEAEDS_DIR, Repository.currentBranch), commit.hash);
+        // staged blobs are renamed into the object store; markers of saved blobs are dropped
+        for (String blobHash : new HashSet<>(Repository.blobMap.values())) {
+            File file = hashFilename(STAGING_DIR, blobHash, "add");
+            if (file.exists() && !Repository.OBJECT_STORE.contains(blobHash)) {
+                journal.move(file, hashFilename(Repository.OBJECTS_DIR, blobHash, null));
+            }
+        }
+        journal.delete(join(Repository.STAGING_DIR, "add"));
+        journal.delete(join(Repository.STAGING_DIR, "remove"));
         Repository.blobMap.clear();
+        journal.write(Repository.INDEX_FILE, Repository.updateIndex().encode());
+        journal.commit();
+        Repository.index().saved();
 
-        moveDirectory(join(Repository.STAGING_DIR, "add"), Repository.OBJECTS_DIR);
-//        deleteFiles(join(Repository.STAGING_DIR, "remove"), Repository.OBJECTS_DIR);
-        deleteDirectory(join(Repository.STAGING_DIR, "remove"));
+        Repository.currentHead = commit;
+        Repository.COMMIT_CACHE.put(commit);
+        Repository.commitGraph().add(commit.hash, parentHash, mergedParentHash, timeString);
+        Repository.messageIndex().add(commit.hash, commit.message);
+        Repository.commitIdIndex().add(commit.hash);
+        Repository.changedPathFilters().add(commit.hash, changes.keySet());
+        int position = Repository.commitGraph().position(commit.hash);
+        if (position % Repository.BITMAP_INTERVAL == 0) {
+            Repository.reachabilityBitmaps().add(position);
+        }
     }
 
     /**
      * `git rm` command
      */
     public static void rm(String filename) {
-        if (!join(Repository.CWD, filename).exists()) {
+        Repository.rmFile(filename);
+        Repository.saveIndex();
+    }
+
+    public static void rm(String[] filenameArray) {
+        for (String filename : filenameArray) {
+            Repository.rmFile(filename);
+        }
+        Repository.saveIndex();
+    }
+
+    private static void rmFile(String filename) {
+        File workingFile = join(Repository.CWD, filename);
+        if (!workingFile.exists()) {
             return;
         }
-        byte[] content = readContents(join(Repository.CWD, filename));
-        String hash = sha1(content);
+        String hash = Repository.index().hashOf(workingFile, filename);
         // staged files
         if (Repository.blobMap.containsKey(filename)
                 && Repository.blobMap.get(filename).equals(hash)) {
@@ -229,9 +843,7 @@ public class Repository {
         // tracked files
         if (Repository.committedBlobMap.containsKey(filename)
                 && Repository.committedBlobMap.get(filename).equals(hash)) {
-            File oriFile = hashFilename(OBJECTS_DIR, hash, null);
-            File desFile = hashFilename(STAGING_DIR, hash, "remove");
-            copyFile(oriFile, desFile);
+            Repository.markStaged(hashFilename(STAGING_DIR, hash, "remove"));
             restrictedDelete(join(Repository.CWD, filename));
             Repository.blobMap.put(filename, hash);
             return;
@@ -239,81 +851,215 @@ public class Repository {
         System.out.println("No reason to remove the file");
     }
 
-    public static void rm(String[] filenameArray) {
-        for (String filename : filenameArray) {
-            Repository.rm(filename);
+    /**
+     * `git log` command
+     */
+    public static void log() {
+        Repository.log(Integer.MAX_VALUE, Long.MIN_VALUE);
+    }
+
+    /**
+     * `git log` command with the options `-n COUNT`, `--since DATE` and `--stats` given in
+     * ARGS, optionally followed by `-- PATH...` to only show the commits changing PATHs.
+     */
+    public static void log(String[] args) {
+        List<String> options = new ArrayList<>(Arrays.asList(args));
+        List<String> paths = new ArrayList<>();
+        int separator = options.indexOf("--");
+        if (separator >= 0) {
+            for (String path : options.subList(separator + 1, options.size())) {
+                // directories are given with or without a trailing slash
+                paths.add(path.endsWith("/") ? path.substring(0, path.length() - 1) : path);
+            }
+            options = new ArrayList<>(options.subList(0, separator));
+        }
+        boolean stats = options.remove("--stats");
+        long[] limits = Repository.parseLogLimits(options.toArray(new String[0]));
+        if (limits != null) {
+            Repository.log((int) limits[0], limits[1], paths, stats);
         }
     }
 
     /**
-     * `git log` command
+     * Print at most COUNT commits of the current branch changing any of PATHS relative to
+     * their first parent, as log does. The commits ruled out by their changed path filters
+     * are skipped without being read; the others are checked by comparing their trees with
+     * the trees of their parents. If STATS is true, the numbers of commits looked up,
+     * skipped and wrongly let through by the filters are printed after the entries.
      */
-    public static void log() {
-        String logInfo = generateCommitLog(Repository.currentHead);
-        System.out.println(logInfo);
+    public static void log(int count, long since, List<String> paths, boolean stats) {
+        if (paths.isEmpty() && !stats) {
+            Repository.log(count, since);
+            return;
+        }
+        CommitGraph graph = Repository.commitGraph();
+        ChangedPathFilters filters = Repository.changedPathFilters();
+        PrintWriter out = Repository.stdout();
+        int checked = filters.checked();
+        int skipped = filters.skipped();
+        int falsePositives = filters.falsePositives();
+        int position = graph.position(Repository.currentHead.hash);
+        int printed = 0;
+        while (printed < count && position >= 0 && graph.timestamp(position) >= since) {
+            String hash = graph.hash(position);
+            if (paths.isEmpty()
+                    || (filters.mightChange(hash, paths) && Repository.changesAny(hash, paths, filters))) {
+                Repository.printLogEntry(out, graph, position, true);
+                printed++;
+            }
+            position = graph.parent(position);
+        }
+        out.println();
+        if (stats) {
+            out.print("Checked " + (filters.checked() - checked) + " commits: " + (filters.skipped() - skipped)
+                    + " skipped by changed path filters, " + (filters.falsePositives() - falsePositives)
+                    + " false positives.\n");
+        }
+        out.flush();
     }
 
     /**
-     * generate commit log iteratively util commit is the commit with message "initial commit"
+     * Return whether the commit HASH changed any of PATHS relative to its first parent,
+     * counting a false positive of FILTERS otherwise.
      */
-    private static String generateCommitLog(Commit commit) {
-        StringBuilder builder = new StringBuilder();
-        while (commit != null) {
-            builder.append("===").append('\n');
-            builder.append("commit ").append(commit.hash).append('\n');
-            if (commit.mergedParentHash != null) {
-                Commit parentCommit = readObject(join(COMMIT_DIR, commit.parentHash), Commit.class);
-                Commit mergedCommit = readObject(join(COMMIT_DIR, commit.mergedParentHash), Commit.class);
-                builder.append("Merge ").append(parentCommit.hash, 0, 7)
-                        .append(mergedCommit.hash, 0, 7).append('\n');
-            }
-            String timeString = convertDateToString(convertStringToDate(commit.timestamp));
-            builder.append("Date: ").append(timeString).append('\n');
-            builder.append(commit.message).append('\n');
-            builder.append('\n');
-            if (commit.parentHash == null) {
-                commit = null;
-                continue;
+    private static boolean changesAny(String hash, List<String> paths, ChangedPathFilters filters) {
+        Commit commit = Repository.readCommit(hash);
+        String parentTree = commit.parentHash == null ? null : Repository.readCommit(commit.parentHash).getTreeHash();
+        for (Tree.Change change : Tree.diff(Repository.OBJECT_STORE, parentTree, commit.getTreeHash())) {
+            if (Repository.isUnder(change.path, paths)) {
+                return true;
             }
-            commit = readObject(join(COMMIT_DIR, commit.parentHash), Commit.class);
         }
-        return builder.toString();
+        filters.falsePositive(hash);
+        return false;
+    }
+
+    /**
+     * Print at most COUNT commits of the current branch, following first parents from the
+     * head, and stop at the first commit older than SINCE seconds. Each entry is written
+     * as soon as it is read, and dates come from the commit graph rather than being parsed.
+     */
+    public static void log(int count, long since) {
+        CommitGraph graph = Repository.commitGraph();
+        PrintWriter out = Repository.stdout();
+        int position = graph.position(Repository.currentHead.hash);
+        for (int i = 0; i < count && position >= 0 && graph.timestamp(position) >= since; i++) {
+            Repository.printLogEntry(out, graph, position, true);
+            position = graph.parent(position);
+        }
+        out.println();
+        out.flush();
     }
 
     /**
      * `git global-log` command
      */
     public static void globalLog() {
-        List<String> stringList = plainFilenamesIn(Repository.COMMIT_DIR);
-        StringBuilder builder = new StringBuilder();
-        for (String filename : stringList) {
-            Commit commit = readObject(join(COMMIT_DIR, filename), Commit.class);
-            builder.append("===").append('\n');
-            builder.append("commit ").append(commit.hash).append('\n');
-            String timeString = convertDateToString(convertStringToDate(commit.timestamp));
-            builder.append("Date: ").append(timeString).append('\n');
-            builder.append(commit.message).append('\n');
-            builder.append('\n');
+        Repository.globalLog(Integer.MAX_VALUE, Long.MIN_VALUE);
+    }
+
+    /**
+     * `git global-log` command with the options `-n COUNT` and `--since DATE` given in ARGS.
+     */
+    public static void globalLog(String[] args) {
+        long[] limits = Repository.parseLogLimits(args);
+        if (limits != null) {
+            Repository.globalLog((int) limits[0], limits[1]);
+        }
+    }
+
+    /**
+     * Print at most COUNT commits ever made that are not older than SINCE seconds, newest
+     * first. Commits filtered out by SINCE are skipped using the commit graph alone.
+     */
+    public static void globalLog(int count, long since) {
+        CommitGraph graph = Repository.commitGraph();
+        PrintWriter out = Repository.stdout();
+        int printed = 0;
+        for (int position = graph.size() - 1; position >= 0 && printed < count; position--) {
+            if (graph.timestamp(position) < since) {
+                continue;
+            }
+            Repository.printLogEntry(out, graph, position, false);
+            printed++;
+        }
+        out.println();
+        out.flush();
+    }
+
+    private static void printLogEntry(PrintWriter out, CommitGraph graph, int position, boolean showMerge) {
+        Commit commit = Repository.readCommit(graph.hash(position));
+        out.print("===\n");
+        out.print("commit " + commit.hash + "\n");
+        if (showMerge && commit.mergedParentHash != null) {
+            out.print("Merge " + commit.parentHash.substring(0, 7) + commit.mergedParentHash.substring(0, 7) + "\n");
+        }
+        out.print("Date: " + convertSecondsToString(graph.timestamp(position)) + "\n");
+        out.print(commit.message + "\n");
+        out.print("\n");
+    }
+
+    /**
+     * Return the COUNT and SINCE limits of `log` given by `-n COUNT` and `--since DATE` in
+     * ARGS, or print an error and return null if ARGS are not valid.
+     */
+    private static long[] parseLogLimits(String[] args) {
+        long[] limits = {Integer.MAX_VALUE, Long.MIN_VALUE};
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("missing value of " + args[i]);
+                }
+                if (args[i].equals("-n")) {
+                    limits[0] = Integer.parseInt(args[i + 1]);
+                } else if (args[i].equals("--since")) {
+                    limits[1] = convertStringToSeconds(args[i + 1]);
+                } else {
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException excp) {
+            System.out.println("Incorrect operands.");
+            return null;
         }
-        System.out.println(builder.toString());
+        return limits;
+    }
 
+    /**
+     * Return a buffered writer to the standard output, which the caller must flush.
+     */
+    private static PrintWriter stdout() {
+        return new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(System.out, StandardCharsets.UTF_8), BUFFER_SIZE));
     }
 
     /**
-     * `git find` command
+     * `git find` command, answered from the message index without reading any commit.
+     * ARGS is either MESSAGE, `--prefix PREFIX` or `--contains TEXT`.
      */
+    public static void find(String[] args) {
+        if (args.length == 2 && args[0].equals("--prefix")) {
+            Repository.printCommitIds(Repository.messageIndex().findPrefix(args[1]));
+        } else if (args.length == 2 && args[0].equals("--contains")) {
+            Repository.printCommitIds(Repository.messageIndex().findSubstring(args[1]));
+        } else if (args.length == 1) {
+            Repository.find(args[0]);
+        } else {
+            System.out.println("Incorrect operands.");
+        }
+    }
+
     public static void find(String message) {
         if (message == null || message.equals("")) {
             return;
         }
-        List<String> stringList = plainFilenamesIn(Repository.COMMIT_DIR);
+        Repository.printCommitIds(Repository.messageIndex().find(message));
+    }
+
+    private static void printCommitIds(List<String> hashes) {
         StringBuilder builder = new StringBuilder();
-        for (String filename : stringList) {
-            Commit commit = readObject(join(COMMIT_DIR, filename), Commit.class);
-            if (!message.equals(commit.message)) {
-                continue;
-            }
-            builder.append(commit.hash).append('\n');
+        for (String hash : hashes) {
+            builder.append(hash).append('\n');
         }
         String result = builder.toString();
         if (result.length() == 0) {
@@ -324,7 +1070,8 @@ public class Repository {
     }
 
     /**
-     * `git status` command
+     * `git status` command. The untracked files are those found anywhere under the working
+     * directory, by a parallel scan that skips the paths matched by `.gitletignore`.
      */
     public static void status() {
         StringBuilder builder = new StringBuilder();
@@ -357,15 +1104,244 @@ public class Repository {
         builder.append(removedBuilder);
         builder.append('\n');
 
-        builder.append("=== Modifications Not Staged for Commit ===").append('\n');
-        //todo
-        builder.append('\n');
+        // the working directory is scanned once, in parallel, and only the tracked files
+        // whose stat data changed since they were last hashed are read
+        NavigableMap<String, long[]> workingFiles = new WorkTree(Repository.CWD, Repository.OBJECT_STORE,
+                Repository.index()).scan(IgnoreRules.load(IGNORE_FILE), Repository.ADD_PARALLELISM);
+        TreeSet<String> filenames = new TreeSet<>(Repository.committedBlobMap.keySet());
+        filenames.addAll(Repository.blobMap.keySet());
+        Map<String, long[]> trackedStats = new HashMap<>();
+        for (String filename : filenames) {
+            String stagedHash = Repository.blobMap.get(filename);
+            if (stagedHash != null && !hashFilename(STAGING_DIR, stagedHash, "add").exists()) {
+                // a file staged for removal is never listed as modified
+                continue;
+            }
+            long[] stat = workingFiles.get(filename);
+            File workingFile = join(Repository.CWD, filename);
+            // a tracked file matching an ignore pattern is not scanned, but is still compared
+            if (stat == null && workingFile.isFile()) {
+                stat = Index.stat(workingFile);
+            }
+            if (stat != null) {
+                trackedStats.put(filename, stat);
+            }
+        }
+        Map<String, String> workingHashes = Repository.hashWorkingFiles(trackedStats);
+        StringBuilder modifiedBuilder = new StringBuilder();
+        for (String filename : filenames) {
+            String stagedHash = Repository.blobMap.get(filename);
+            boolean stagedForAddition = stagedHash != null && hashFilename(STAGING_DIR, stagedHash, "add").exists();
+            boolean stagedForRemoval = stagedHash != null && !stagedForAddition;
+            if (stagedForRemoval) {
+                continue;
+            }
+            String hash = workingHashes.get(filename);
+            if (hash == null) {
+                modifiedBuilder.append(filename).append(" (deleted)").append('\n');
+                continue;
+            }
+            String expectedHash = stagedForAddition ? stagedHash : Repository.committedBlobMap.get(filename);
+            if (!hash.equals(expectedHash)) {
+                modifiedBuilder.append(filename).append(" (modified)").append('\n');
+            }
+        }
+        builder.append("=== Modifications Not Staged for Commit ===").append('\n');
+        builder.append(modifiedBuilder);
+        builder.append('\n');
+
+        builder.append("=== Untracked Files ===").append('\n');
+        for (String filename : workingFiles.keySet()) {
+            String stagedHash = Repository.blobMap.get(filename);
+            boolean stagedForAddition = stagedHash != null && hashFilename(STAGING_DIR, stagedHash, "add").exists();
+            boolean tracked = Repository.committedBlobMap.containsKey(filename) && stagedHash == null;
+            if (!stagedForAddition && !tracked) {
+                builder.append(filename).append('\n');
+            }
+        }
+        builder.append('\n');
+
+        System.out.println(builder);
+        // keep the refreshed stat data so that the next status does not hash the files again
+        Repository.saveRefreshedIndex();
+    }
+
+    /**
+     * Return the SHA1 of each working file, by path, whose stat data is in STATS. The files
+     * whose stat data did not change since they were last hashed are not read, and the
+     * others are hashed by a bounded pool of workers, then recorded in the index.
+     */
+    private static Map<String, String> hashWorkingFiles(Map<String, long[]> stats) {
+        Index index = Repository.index();
+        Map<String, String> result = new HashMap<>();
+        List<String> stale = new ArrayList<>();
+        for (Map.Entry<String, long[]> item : stats.entrySet()) {
+            String hash = index.cachedHash(item.getKey(), item.getValue());
+            if (hash == null) {
+                stale.add(item.getKey());
+            } else {
+                result.put(item.getKey(), hash);
+            }
+        }
+        if (stale.isEmpty()) {
+            return result;
+        }
+        List<String> hashes;
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(Repository.ADD_PARALLELISM, stale.size())));
+        try {
+            hashes = pool.submit(() -> stale.parallelStream()
+                    .map(filename -> sha1(join(Repository.CWD, filename)))
+                    .collect(Collectors.toList())).get();
+        } catch (InterruptedException | ExecutionException excp) {
+            throw error("Internal error hashing files: %s", excp.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+        for (int i = 0; i < stale.size(); i++) {
+            index.record(stale.get(i), hashes.get(i), stats.get(stale.get(i)));
+            result.put(stale.get(i), hashes.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * `git diff` command. ARGS is `[COMMIT [COMMIT]] [-- PATH...]`: with no commit the
+     * working files are compared with the staging area, with one commit they are compared
+     * with that commit, and with two commits the commits are compared with each other. The
+     * comparison is limited to the files under the given PATHs, if any.
+     * <p>
+     * Files are compared by their SHA1s first, the working files through the stat data of
+     * the index, and the unchanged ones are never read. Two commits are compared through
+     * their trees, skipping the unchanged directories.
+     */
+    public static void diff(String[] args) {
+        List<String> operands = Arrays.asList(args);
+        int separator = operands.indexOf("--");
+        List<String> commitIds = separator < 0 ? operands : operands.subList(0, separator);
+        List<String> paths = separator < 0 ? new ArrayList<>() : operands.subList(separator + 1, args.length);
+        if (commitIds.size() > 2) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        List<Commit> commits = new ArrayList<>();
+        for (String commitId : commitIds) {
+            String hash = Repository.resolveCommitId(commitId);
+            if (hash == null) {
+                return;
+            }
+            commits.add(Repository.readCommit(hash));
+        }
+
+        List<Tree.Change> changes = new ArrayList<>();
+        if (commits.size() == 2) {
+            for (Tree.Change change : Tree.diff(Repository.OBJECT_STORE,
+                    commits.get(0).getTreeHash(), commits.get(1).getTreeHash())) {
+                if (Repository.isUnder(change.path, paths)) {
+                    changes.add(change);
+                }
+            }
+        } else {
+            Map<String, String> staged = Repository.stagedBlobMap();
+            Map<String, String> old = commits.isEmpty() ? staged : commits.get(0).getBlobMap();
+            TreeSet<String> filenames = new TreeSet<>(old.keySet());
+            filenames.addAll(staged.keySet());
+            for (String filename : filenames) {
+                if (!Repository.isUnder(filename, paths)) {
+                    continue;
+                }
+                File workingFile = join(Repository.CWD, filename);
+                String hash = workingFile.isFile() ? Repository.index().hashOf(workingFile, filename) : null;
+                if (!Objects.equals(old.get(filename), hash)) {
+                    changes.add(new Tree.Change(filename, old.get(filename), hash));
+                }
+            }
+        }
+
+        OutputStream out = new BufferedOutputStream(System.out, BUFFER_SIZE);
+        try {
+            for (Tree.Change change : changes) {
+                Repository.writeDiff(out, change, commits.size() < 2);
+            }
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Repository.saveRefreshedIndex();
+    }
+
+    /**
+     * Write the unified diff of CHANGE to OUT. The new version is read from the working
+     * file if WORKING is true, and from the object store otherwise.
+     */
+    private static void writeDiff(OutputStream out, Tree.Change change, boolean working) throws IOException {
+        String path = change.path;
+        File workingFile = working && change.newHash != null ? join(Repository.CWD, path) : null;
+        String oldName = change.oldHash == null ? "/dev/null" : "a/" + path;
+        String newName = change.newHash == null ? "/dev/null" : "b/" + path;
+        out.write(("diff --git a/" + path + " b/" + path + "\n").getBytes(StandardCharsets.UTF_8));
+        // binary files are told apart from the first bytes, without reading them whole
+        if (Repository.isBinary(change.oldHash, null) || Repository.isBinary(change.newHash, workingFile)) {
+            out.write(("Binary files " + oldName + " and " + newName + " differ\n").getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        // the working file is mapped rather than copied, and a blob, being compressed, is
+        // inflated once; the lines are views of these bytes
+        ByteBuffer oldContent = change.oldHash == null ? ByteBuffer.allocate(0)
+                : ByteBuffer.wrap(Repository.OBJECT_STORE.read(change.oldHash));
+        ByteBuffer newContent;
+        if (change.newHash == null) {
+            newContent = ByteBuffer.allocate(0);
+        } else if (workingFile != null) {
+            newContent = mapContents(workingFile);
+        } else {
+            newContent = ByteBuffer.wrap(Repository.OBJECT_STORE.read(change.newHash));
+        }
+        Diff.writeUnified(out, oldName, newName, Diff.lines(oldContent), Diff.lines(newContent));
+    }
+
+    /**
+     * Return whether the object HASH, or the working file FILE if it is not null, looks like
+     * a binary file from its first bytes. A null HASH stands for an absent file.
+     */
+    private static boolean isBinary(String hash, File file) throws IOException {
+        if (hash == null) {
+            return false;
+        }
+        try (InputStream in = file != null ? new FileInputStream(file) : Repository.OBJECT_STORE.open(hash)) {
+            return Diff.isBinary(in);
+        }
+    }
 
-        builder.append("=== Untracked Files ===").append('\n');
-        //todo
-        builder.append('\n');
+    /**
+     * Return whether the file PATH is one of PATHS or under one of them, or PATHS is empty.
+     */
+    private static boolean isUnder(String path, List<String> paths) {
+        if (paths.isEmpty()) {
+            return true;
+        }
+        for (String prefix : paths) {
+            String directory = prefix.endsWith("/") ? prefix : prefix + "/";
+            if (path.equals(prefix) || path.startsWith(directory)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-        System.out.println(builder);
+    /**
+     * Return the files of the next commit as staged so far: the files of the current
+     * commit with the staged additions and without the staged removals.
+     */
+    private static HashMap<String, String> stagedBlobMap() {
+        HashMap<String, String> result = new HashMap<>(Repository.committedBlobMap);
+        for (Map.Entry<String, String> item : Repository.blobMap.entrySet()) {
+            if (hashFilename(STAGING_DIR, item.getValue(), "add").exists()) {
+                result.put(item.getKey(), item.getValue());
+            } else {
+                result.remove(item.getKey());
+            }
+        }
+        return result;
     }
 
     /**
@@ -382,20 +1358,17 @@ public class Repository {
     }
 
     public static void checkout(String commitHash, String filename) {
-        Commit commit = readObject(join(Repository.COMMIT_DIR, commitHash), Commit.class);
-        if (commit == null) {
-            System.out.println("No commit with that id exists");
+        commitHash = Repository.resolveCommitId(commitHash);
+        if (commitHash == null) {
             return;
         }
-        if (!commit.blobMap.containsKey(filename)) {
+        Commit commit = Repository.readCommit(commitHash);
+        if (!commit.getBlobMap().containsKey(filename)) {
             System.out.println("File does not exist in that commit");
             return;
         }
 
-        String hash = commit.blobMap.get(filename);
-        File file = hashFilename(OBJECTS_DIR, hash, null);
-        byte[] content = readContents(file);
-        writeContents(join(Repository.CWD, filename), content);
+        Repository.restoreFile(filename, commit.getBlobMap().get(filename));
     }
 
     public static void checkout(String filename) {
@@ -415,26 +1388,11 @@ public class Repository {
             return;
         }
         String commitHash = Repository.readHead(branch);
-        Commit givenCommit = readObject(join(Repository.COMMIT_DIR, commitHash), Commit.class);
-        HashMap<String, String> currentBlobMap = (HashMap<String, String>) Repository.committedBlobMap.clone();
-        for (String filename : givenCommit.blobMap.keySet()) {
-            // The file exists in the current branch.
-            if (currentBlobMap.containsKey(filename)) {
-                if (givenCommit.blobMap.get(filename).equals(currentBlobMap.get(filename))) {
-                    currentBlobMap.remove(filename);
-                    continue;
-                }
-                currentBlobMap.remove(filename);
-            }
-            restoreFile(filename, givenCommit.blobMap.get(filename));
-        }
-        // The file exists in the current but not in the given branch.
-        for (String filename : currentBlobMap.keySet()) {
-            join(Repository.CWD, filename).delete();
-        }
+        Commit givenCommit = Repository.readCommit(commitHash);
+        Repository.switchTo(givenCommit);
         Repository.currentBranch = branch;
-        Repository.currentHead = givenCommit;
-        Repository.committedBlobMap = givenCommit.blobMap;
+        writeContentsAtomically(Repository.HEAD_FILE, Repository.currentBranch);
+        Repository.saveIndex();
     }
 
     /**
@@ -472,40 +1430,99 @@ public class Repository {
             System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
             return;
         }
-        if (!join(Repository.COMMIT_DIR, commitHash).exists()) {
-            System.out.println("No commit with that id exists");
+        commitHash = Repository.resolveCommitId(commitHash);
+        if (commitHash == null) {
             return;
         }
-        Commit commit = readObject(join(Repository.COMMIT_DIR, commitHash), Commit.class);
-        HashMap<String, String> tempBlobMap = (HashMap<String, String>) Repository.committedBlobMap.clone();
-        for (String filename : commit.blobMap.keySet()) {
-            if (tempBlobMap.containsKey(filename)) {
-                tempBlobMap.remove(filename);
-                if (commit.blobMap.get(filename).equals(tempBlobMap.get(filename))) {
-                    continue;
-                }
+        Commit commit = Repository.readCommit(commitHash);
+        Repository.switchTo(commit);
+        Repository.writeHead();
+        Repository.saveIndex();
+    }
+
+    /**
+     * Update the working directory and the tracked files from the current commit to COMMIT.
+     * Only the files that differ between the two trees are looked at, directories whose
+     * trees are identical are skipped as a whole, and the working files that already match
+     * COMMIT are left alone.
+     */
+    private static void switchTo(Commit commit) {
+        List<Tree.Change> changes = Tree.diff(Repository.OBJECT_STORE,
+                Repository.currentHead.getTreeHash(), commit.getTreeHash());
+        WorkTree workTree = new WorkTree(Repository.CWD, Repository.OBJECT_STORE, Repository.index());
+        workTree.apply(workTree.outdated(changes), Repository.ADD_PARALLELISM);
+        for (Tree.Change change : changes) {
+            if (change.newHash == null) {
+                Repository.committedBlobMap.remove(change.path);
+            } else {
+                Repository.committedBlobMap.put(change.path, change.newHash);
             }
-            File file = Repository.hashFilename(Repository.OBJECTS_DIR, commit.blobMap.get(filename), null);
-            byte[] content = readContents(file);
-            writeContents(join(Repository.CWD, filename), content);
-        }
-        for (String filename : tempBlobMap.keySet()) {
-            join(Repository.CWD, filename).delete();
         }
         Repository.currentHead = commit;
-        Repository.committedBlobMap = commit.blobMap;
+    }
+
+    /**
+     * `git merge-base --is-ancestor` command: print whether the commit or branch ARGS[0] is
+     * an ancestor of the commit or branch ARGS[1], or the same commit.
+     */
+    public static void isAncestor(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        String ancestor = Repository.resolveRevision(args[0]);
+        String descendant = ancestor == null ? null : Repository.resolveRevision(args[1]);
+        if (descendant == null) {
+            return;
+        }
+        System.out.println(Repository.isAncestor(ancestor, descendant));
+    }
+
+    /**
+     * `git rev-list` command: print the SHA1s of the commits reachable from the commit or
+     * branch A, or with ARGS `B..A` those reachable from A but not from B, newest first.
+     * The two sets are the reachability bitmaps of A and B, found from the bitmaps of the
+     * anchors they reach, and their difference is taken word by word.
+     */
+    public static void revList(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        int dots = args[0].indexOf("..");
+        String include = Repository.resolveRevision(dots < 0 ? args[0] : args[0].substring(dots + 2));
+        String exclude = dots < 0 || include == null ? null : Repository.resolveRevision(args[0].substring(0, dots));
+        if (include == null || (dots >= 0 && exclude == null)) {
+            return;
+        }
+        CommitGraph graph = Repository.commitGraph();
+        BitSet commits = Repository.reachabilityBitmaps().reachable(graph.position(include));
+        if (exclude != null) {
+            commits.andNot(Repository.reachabilityBitmaps().reachable(graph.position(exclude)));
+        }
+        // children come after their parents in the commit graph
+        StringBuilder out = new StringBuilder();
+        for (int position = commits.previousSetBit(graph.size() - 1); position >= 0;
+             position = commits.previousSetBit(position - 1)) {
+            out.append(graph.hash(position)).append('\n');
+        }
+        System.out.print(out);
     }
 
     /**
      * `git merge`
      */
     public static void merge(String branch) {
-        if (!join(Repository.HEAEDS_DIR, branch).exists()) {
+        // a remote-tracking branch such as origin/main is merged like a branch
+        boolean tracking = !join(Repository.HEAEDS_DIR, branch).isFile();
+        File head = join(tracking ? Repository.REMOTE_DIR : Repository.HEAEDS_DIR, branch);
+        if (!head.isFile()) {
             System.out.println("A branch with that name does not exist.");
             return;
         }
         if (branch.equals(Repository.currentBranch)) {
             System.out.println("Cannot merge a branch with itself.");
+            return;
         }
         if (!Repository.blobMap.isEmpty()) {
             System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
@@ -513,252 +1530,573 @@ public class Repository {
         }
 
         Commit currentCommit = Repository.currentHead;
-        Commit givenCommit = readObject(join(Repository.COMMIT_DIR, Repository.readHead(branch)), Commit.class);
-        Commit splitCommit = Repository.findSplitCommit(currentCommit, givenCommit);
-        if (splitCommit.hash.equals(givenCommit.hash)) {
+        Commit givenCommit = Repository.readCommit(readContentsAsString(head));
+        if (Repository.isAncestor(givenCommit.hash, currentCommit.hash)) {
             System.out.println("Given branch is an ancestor of the current branch.");
             return;
         }
-        if (splitCommit.hash.equals(currentCommit.hash)) {
-            Repository.checkoutBranch(branch);
+        if (Repository.isAncestor(currentCommit.hash, givenCommit.hash)) {
+            if (tracking) {
+                Repository.switchTo(givenCommit);
+                Repository.writeHead();
+                Repository.saveIndex();
+            } else {
+                Repository.checkoutBranch(branch);
+            }
             System.out.println("Given branch fast-forward.");
             return;
         }
+        Commit splitCommit = Repository.findSplitCommit(currentCommit, givenCommit);
 
-        HashMap<String, String> currentBlobMap = (HashMap<String, String>) currentCommit.blobMap.clone();
-        HashMap<String, String> givenBlobMap = (HashMap<String, String>) givenCommit.blobMap.clone();
+        // Only the files changed on either side since the split point need to be looked at,
+        // and the subtrees unchanged on a side are skipped by the tree diff.
+        TreeMap<String, String[]> versions = new TreeMap<>();
+        for (Tree.Change change : Tree.diff(Repository.OBJECT_STORE,
+                splitCommit.getTreeHash(), currentCommit.getTreeHash())) {
+            versions.put(change.path, new String[]{change.oldHash, change.newHash, change.oldHash});
+        }
+        for (Tree.Change change : Tree.diff(Repository.OBJECT_STORE,
+                splitCommit.getTreeHash(), givenCommit.getTreeHash())) {
+            versions.computeIfAbsent(change.path, path -> new String[]{change.oldHash, change.oldHash, null})[2]
+                    = change.newHash;
+        }
 
         boolean conflict = false;
 
-        for (String filename : splitCommit.blobMap.keySet()) {
-            // The file does not exist in both the current branch and given branch.
-            if (!currentBlobMap.containsKey(filename) && !givenBlobMap.containsKey(filename)) {
-                currentBlobMap.remove(filename);
-                givenBlobMap.remove(filename);
+        for (Map.Entry<String, String[]> item : versions.entrySet()) {
+            String filename = item.getKey();
+            String splitHash = item.getValue()[0];
+            String currentHash = item.getValue()[1];
+            String givenHash = item.getValue()[2];
+            // 3. Any files that have been modified (updated or removed) in both the current and given
+            // branch in the same way are left unchanged by the merge.
+            if (Objects.equals(currentHash, givenHash)) {
                 continue;
             }
-
-            // The file exists in the current branch but not in the given branch.
-            if (currentBlobMap.containsKey(filename) && !givenBlobMap.containsKey(filename)) {
-                if (splitCommit.blobMap.get(filename).equals(currentBlobMap.get(filename))) {
+            // 2, 4 and 7. Any files modified only in the current branch stay as they are.
+            if (Objects.equals(splitHash, givenHash)) {
+                continue;
+            }
+            if (Objects.equals(splitHash, currentHash)) {
+                if (givenHash == null) {
                     // 6. Any files present at the split point, unmodified in the current branch, and absent
                     // in the given branch should be removed (and untracked).
+                    Repository.markStaged(hashFilename(STAGING_DIR, currentHash, "remove"));
                     join(Repository.CWD, filename).delete();
-                    Repository.blobMap.remove(filename);
-                    Repository.stageFile(filename, currentBlobMap.get(filename), "remove");
-                    continue;
+                    Repository.blobMap.put(filename, currentHash);
+                } else {
+                    // 1 and 5. Any files modified or added only in the given branch should be checked out
+                    // and staged.
+                    Repository.restoreFile(filename, givenHash);
+                    Repository.stageFile(filename, givenHash, "add");
+                    Repository.blobMap.put(filename, givenHash);
                 }
-
-                // 8. Any files modified in different ways in the current branch and in the given branch
-                // are in conflict.
-                File currentFile = Repository.hashFilename(Repository.OBJECTS_DIR, currentBlobMap.get(filename), null);
-                String currentContent = readContentsAsString(currentFile);
-                String givenContent = "";
-                Repository.conflict(filename, currentContent, givenContent);
-                conflict = true;
-
-                currentBlobMap.remove(filename);
-                givenBlobMap.remove(filename);
                 continue;
             }
+            // 8. Any files modified in different ways in the current branch and in the given branch
+            // are merged line by line, and are in conflict where the same lines were changed.
+            if (!Repository.mergeFile(filename, splitHash, currentHash, givenHash)) {
+                conflict = true;
+            }
+            String fileHash = sha1(join(Repository.CWD, filename));
+            Repository.stageFile(filename, fileHash, "add");
+            Repository.blobMap.put(filename, fileHash);
+        }
 
-            // The file exists in the given branch but not in the current branch.
-            if (!currentBlobMap.containsKey(filename) && givenBlobMap.containsKey(filename)) {
-                // 7. Any files present at the split point, unmodified in the given branch, and absent
-                // in the current branch should remain absent.
-                if (splitCommit.blobMap.get(filename).equals(givenBlobMap.get(filename))) {
-                    givenBlobMap.remove(filename);
-                    continue;
-                }
+        String message = "Merged " + branch + " into " + Repository.currentBranch + ".";
+        Repository.commit(message, givenCommit.hash);
+        if (conflict) {
+            System.out.println("Encountered a merge conflict.");
+        }
+    }
 
-                // 8. Any files modified in different ways in the current branch and in the given branch
-                // are in conflict.
-                String currentContent = "";
-                File givenFile = Repository.hashFilename(Repository.OBJECTS_DIR, givenBlobMap.get(filename), null);
-                String givenContent = readContentsAsString(givenFile);
-                Repository.conflict(filename, currentContent, givenContent);
-                conflict = true;
+    /**
+     * Merge the versions CURRENTHASH and GIVENHASH of the file FILENAME, both changed since
+     * the version SPLITHASH, into the working file. Any of them is null if the file is
+     * absent from that side. Returns whether the file was merged without conflict.
+     * <p>
+     * Text files present on both sides are merged by Diff3, so that only the conflicting
+     * regions are written between markers. Otherwise the whole file is in conflict.
+     */
+    private static boolean mergeFile(String filename, String splitHash, String currentHash, String givenHash) {
+        if (currentHash == null || givenHash == null) {
+            Repository.conflict(filename, currentHash, givenHash);
+            return false;
+        }
+        byte[] current = Repository.OBJECT_STORE.read(currentHash);
+        byte[] given = Repository.OBJECT_STORE.read(givenHash);
+        byte[] split = splitHash == null ? new byte[0] : Repository.OBJECT_STORE.read(splitHash);
+        if (Diff.isBinary(current) || Diff.isBinary(given) || Diff.isBinary(split)) {
+            Repository.conflict(filename, currentHash, givenHash);
+            return false;
+        }
+        File file = join(Repository.CWD, filename);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()), BUFFER_SIZE)) {
+            return Diff3.merge(Diff.lines(split), Diff.lines(current), Diff.lines(given), out) == 0;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
 
-                currentBlobMap.remove(filename);
-                givenBlobMap.remove(filename);
-                continue;
+    /**
+     * Write the conflict content of the file in both current and given branch, whose
+     * versions are CURRENTHASH and GIVENHASH (null if absent). Both versions are streamed
+     * from the object store into the working file rather than loaded on the heap.
+     */
+    private static void conflict(String filename, String currentHash, String givenHash) {
+        File file = join(Repository.CWD, filename);
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file.toPath()), BUFFER_SIZE)) {
+            out.write("<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8));
+            if (currentHash != null) {
+                try (InputStream in = Repository.OBJECT_STORE.open(currentHash)) {
+                    copyStream(in, out);
+                }
             }
-
-            // The file exists in both the current branch and given branch.
-            if (currentBlobMap.containsKey(filename) && givenBlobMap.containsKey(filename)) {
-                // The file in the current branch is the same with that in the given branch.
-                if (currentBlobMap.get(filename).equals(givenBlobMap.get(filename))) {
-                    // 3. Any files that have been modified (updated or removed) in both the current and given
-                    // branch in the same way are left unchanged by the merge.
-                    currentBlobMap.remove(filename);
-                    givenBlobMap.remove(filename);
-                    continue;
+            out.write("=======\n".getBytes(StandardCharsets.UTF_8));
+            if (givenHash != null) {
+                try (InputStream in = Repository.OBJECT_STORE.open(givenHash)) {
+                    copyStream(in, out);
                 }
+            }
+            out.write(">>>>>>>\n".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
 
-                // The file in the current branch is different with that in the given branch.
-                if (!currentBlobMap.get(filename).equals(givenBlobMap.get(filename))) {
-                    // The file in the current branch is the same with that in the split point.
-                    if (splitCommit.blobMap.get(filename).equals(currentBlobMap.get(filename))) {
-                        // 1. Any files that have been modified in the given branch since the split point,
-                        // but not modified in the current branch since the split point,
-                        // should be changed to their versions in the given branch.
-                        String fileHash = currentBlobMap.get(filename);
-                        Repository.restoreFile(filename, fileHash);
-                        Repository.stageFile(filename, fileHash, "add");
-                        Repository.blobMap.put(filename, fileHash);
-
-                        currentBlobMap.remove(filename);
-                        givenBlobMap.remove(filename);
-                        continue;
-                    }
+    /**
+     * Return the split point that is the latest common ancestor of the current branch and given branch.
+     * The commit graph is walked by generation number through both parents of each commit,
+     * so only the split point itself is deserialized.
+     */
+    private static Commit findSplitCommit(Commit currentCommit, Commit givenCommit) {
+        String splitHash = Repository.commitGraph().mergeBase(currentCommit.hash, givenCommit.hash);
+        if (splitHash == null) {
+            return null;
+        }
+        return Repository.readCommit(splitHash);
+    }
 
-                    // The file in the given branch is the same with that in the split point.
-                    if (splitCommit.blobMap.get(filename).equals(givenBlobMap.get(filename))) {
-                        // 2. Any files that have been modified in the current branch but not in the given branch
-                        // since the spilt point should stay as they are.
-                        currentBlobMap.remove(filename);
-                        givenBlobMap.remove(filename);
-                        continue;
-                    }
+    /**
+     * Restore a file with a specific version from the directory '.gitlet/objects'
+     * to the current working directory, whether the version is a loose object or packed.
+     */
+    private static void restoreFile(String filename, String fileHash) {
+        Repository.OBJECT_STORE.restore(fileHash, join(Repository.CWD, filename));
+    }
 
-                    // The file in both the current and given branch is different with that in the given branch.
-                    if ((!currentBlobMap.get(filename).equals(currentBlobMap.get(filename)))
-                            && !currentBlobMap.get(filename).equals(givenBlobMap.get(filename))) {
-                        // 8. Any files modified in different ways in the current branch and in the given branch
-                        // are in conflict.
-                        File currentFile = Repository.hashFilename(Repository.OBJECTS_DIR, currentBlobMap.get(filename), null);
-                        String currentContent = readContentsAsString(currentFile);
-                        File givenFile = Repository.hashFilename(Repository.OBJECTS_DIR, givenBlobMap.get(filename), null);
-                        String givenContent = readContentsAsString(givenFile);
-                        Repository.conflict(filename, currentContent, givenContent);
-                        conflict = true;
-
-                        currentBlobMap.remove(filename);
-                        givenBlobMap.remove(filename);
-                        continue;
-                    }
-                }
-            }
+    /**
+     * Save a file with a specific version from the current working directory
+     * to the directory '.gitlet/stagingArea'.
+     */
+    private static void stageFile(String filename, String fileHash, String mode) {
+        File file = hashFilename(STAGING_DIR, fileHash, mode);
+        Repository.writeBlob(join(Repository.CWD, filename), file, fileHash);
+    }
+
+    /**
+     * Write the blob HASH of the working file WORKINGFILE to the staging file STAGEDFILE, as a
+     * compressed loose object that commit only has to rename. If the object store has the
+     * blob already, STAGEDFILE is only an empty marker and nothing is copied. Files of at
+     * least CHUNK_THRESHOLD bytes are staged as a manifest of chunks, whose chunks are saved
+     * in the object store right away, so that only the chunks not saved yet take up space.
+     */
+    private static void writeBlob(File workingFile, File stagedFile, String hash) {
+        if (Repository.OBJECT_STORE.contains(hash)) {
+            Repository.markStaged(stagedFile);
+        } else if (workingFile.length() >= Repository.CHUNK_THRESHOLD) {
+            ChunkedBlob.write(Repository.OBJECT_STORE, workingFile, stagedFile);
+        } else {
+            LooseObject.write(stagedFile, workingFile, Repository.LOOSE_COMPRESSION_LEVEL);
         }
+    }
 
-        for (String filename : currentBlobMap.keySet()) {
-            // 4. Any files that were not present at the split point and are present only in the current
-            // branch should remain as they are.
-            if (!givenBlobMap.containsKey(filename)) {
-//                currentBlobMap.remove(filename);
-                givenBlobMap.remove(filename);
-                continue;
-            }
-            // 3. Any files that have been modified (updated or removed) in both the current and given
-            // branch in the same way are left unchanged by the merge.
-            else if (currentBlobMap.get(filename).equals(givenBlobMap.get(filename))) {
-//                currentBlobMap.remove(filename);
-                givenBlobMap.remove(filename);
-                continue;
-            }
-            // 8. Any files modified in different ways in the current branch and in the given branch
-            // are in conflict.
-            else {
-                File currentFile = Repository.hashFilename(Repository.OBJECTS_DIR, currentBlobMap.get(filename), null);
-                String currentContent = readContentsAsString(currentFile);
-                File givenFile = Repository.hashFilename(Repository.OBJECTS_DIR, givenBlobMap.get(filename), null);
-                String givenContent = readContentsAsString(givenFile);
-                Repository.conflict(filename, currentContent, givenContent);
-                conflict = true;
+    /**
+     * Create the empty staging file MARKER, recording that a blob is staged for addition or
+     * removal without copying its contents.
+     */
+    private static void markStaged(File marker) {
+        writeContents(marker, new byte[0]);
+    }
 
-//                currentBlobMap.remove(filename);
-                givenBlobMap.remove(filename);
-                continue;
-            }
+    /**
+     * `git remote add` command: save the path ARGS[1] of another repository, or of its
+     * .gitlet directory, as the remote ARGS[0]. Slashes in the path stand for the separator
+     * of the system.
+     */
+    public static void addRemote(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        File file = join(Repository.REMOTE_PATHS_DIR, args[0]);
+        if (file.exists()) {
+            System.out.println("A remote with that name already exists.");
+            return;
         }
+        Repository.REMOTE_PATHS_DIR.mkdirs();
+        writeContentsAtomically(file, args[1].replace("/", File.separator));
+    }
 
-        // 5. Any files that were not present at the split point and are present only in the give branch
-        // should be checked out and staged.
-        for (String filename : givenBlobMap.keySet()) {
-            String fileHash = givenBlobMap.get(filename);
-            Repository.restoreFile(filename, fileHash);
-            Repository.stageFile(filename, fileHash, "add");
-            Repository.blobMap.put(filename, fileHash);
+    /**
+     * `git remote rm` command: forget the remote ARGS[0] and its remote-tracking branches.
+     */
+    public static void rmRemote(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        File file = join(Repository.REMOTE_PATHS_DIR, args[0]);
+        if (!file.isFile()) {
+            System.out.println("A remote with that name does not exist.");
+            return;
+        }
+        file.delete();
+        File refs = join(Repository.REMOTE_DIR, args[0]);
+        List<String> branches = plainFilenamesIn(refs);
+        for (String branch : branches == null ? new ArrayList<String>() : branches) {
+            join(refs, branch).delete();
         }
+        refs.delete();
+    }
 
-        String message = "Merged " + branch + "into " + Repository.currentBranch + ".";
-        Repository.commit(message, givenCommit.hash);
-        if (conflict) {
-            System.out.println("Encountered a merge conflict.");
+    /**
+     * Return the repository of the remote NAME. Prints an error and returns null if there
+     * is no such remote or its directory is not a repository.
+     */
+    private static Remote openRemote(String name) {
+        File file = join(Repository.REMOTE_PATHS_DIR, name);
+        if (!file.isFile()) {
+            System.out.println("A remote with that name does not exist.");
+            return null;
+        }
+        File dir = new File(readContentsAsString(file));
+        if (!dir.isAbsolute()) {
+            dir = join(Repository.CWD, dir.getPath());
+        }
+        if (join(dir, Repository.GITLET_DIR.getName()).isDirectory()) {
+            dir = join(dir, Repository.GITLET_DIR.getName());
+        }
+        if (!join(dir, Repository.COMMIT_DIR.getName()).isDirectory()) {
+            System.out.println("Remote directory not found.");
+            return null;
         }
+        return new Remote(dir);
     }
 
     /**
-     * Write the conflict content of the file in both current and given branch.
+     * `git fetch` command: copy the commits of the branch ARGS[1] of the remote ARGS[0] that
+     * this repository lacks, with their objects, and point the remote-tracking branch
+     * ARGS[0]/ARGS[1] at its head.
      */
-    private static void conflict(String filename, String currentContent, String givenContent) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("<<<<<<< HEAD").append('\n');
-        builder.append(currentContent);
+    public static void fetch(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        Repository.fetch(args[0], args[1]);
+    }
 
-        builder.append("=======").append('\n');
-        builder.append(givenContent);
-        builder.append(">>>>>>>").append('\n');
+    /**
+     * Fetch BRANCH from the remote NAME and return the SHA1 of its head. Prints an error and
+     * returns null if there is no such remote or branch.
+     */
+    private static String fetch(String name, String branch) {
+        Remote remote = Repository.openRemote(name);
+        if (remote == null) {
+            return null;
+        }
+        String head = remote.readHead(branch);
+        if (head == null) {
+            System.out.println("That remote does not have that branch.");
+            return null;
+        }
+        List<String> copied = Remote.copy(remote, new Remote(Repository.GITLET_DIR), head,
+                Repository.ADD_PARALLELISM);
+        if (!copied.isEmpty()) {
+            // the commit indexes were extended on disk and a pack was added
+            Repository.commitGraph = null;
+            Repository.messageIndex = null;
+            Repository.commitIdIndex = null;
+            Repository.changedPathFilters = null;
+            Repository.reachabilityBitmaps = null;
+            Repository.OBJECT_STORE.reload();
+        }
+        File ref = join(Repository.REMOTE_DIR, name, branch);
+        ref.getParentFile().mkdirs();
+        writeContentsAtomically(ref, head);
+        return head;
+    }
+
+    /**
+     * `git push` command: copy the commits of the current branch that the remote ARGS[0]
+     * lacks, with their objects, and point its branch ARGS[1] at the current head. The branch
+     * must be an ancestor of the current head, and must not be checked out by the remote,
+     * whose working files and index are left alone. Only the remote is modified, under its
+     * writer lock.
+     */
+    public static void push(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        Remote remote = Repository.openRemote(args[0]);
+        if (remote == null) {
+            return;
+        }
+        String branch = args[1];
+        String hash = Repository.currentHead.hash;
+        // the remote is modified under its own writer lock, held until the push is done
+        RepositoryLock lock = remote.lock();
+        try {
+            String head = remote.readHead(branch);
+            if (hash.equals(head)) {
+                return;
+            }
+            if (head != null && !(join(Repository.COMMIT_DIR, head).isFile() && Repository.isAncestor(head, hash))) {
+                System.out.println("Please pull down remote changes before pushing.");
+                return;
+            }
+            if (branch.equals(remote.currentBranch())) {
+                System.out.println("Cannot push to the checked out branch of the remote.");
+                return;
+            }
+            Remote.copy(new Remote(Repository.GITLET_DIR), remote, hash, Repository.ADD_PARALLELISM);
+            remote.writeHead(branch, hash);
+        } finally {
+            lock.close();
+        }
+    }
 
-        writeContents(join(Repository.CWD, filename), builder.toString());
+    /**
+     * `git pull` command: fetch the branch ARGS[1] of the remote ARGS[0], then merge its
+     * remote-tracking branch ARGS[0]/ARGS[1] into the current branch.
+     */
+    public static void pull(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Incorrect operands.");
+            return;
+        }
+        if (Repository.fetch(args[0], args[1]) != null) {
+            Repository.merge(args[0] + "/" + args[1]);
+        }
     }
 
     /**
-     * Return the split point that is the latest common ancestor of the current branch and given branch.
-     * When the timestamps of commits are the same, the set of commit has to be traversed.
+     * `git gc` command, deleting what is unreachable and folding the rest into a single pack.
+     * <p>
+     * The commits reachable from the refs through both parents are marked, with their trees,
+     * their blobs and the chunks of chunked blobs, as are the staged blobs. The other commits,
+     * the other loose objects and the staging files no longer staged are then deleted by a
+     * bounded pool of workers, and the marked objects are packed, dropping the unreachable
+     * packed ones. Prints the number of commits and objects removed and of bytes reclaimed.
      */
-    private static Commit findSplitCommit(Commit currentCommit, Commit givenCommit) {
-        Commit tempCommit;
-        while (currentCommit != null) {
-//            System.out.println("XXXXXXXXXXXXXXXXXXXXXXX");
-//            System.out.println("currentCommit" + currentCommit.hash);
-            tempCommit = givenCommit;
-            while (tempCommit != null) {
-//                System.out.println("\ttempCommit" + tempCommit.hash);
-                if (currentCommit.hash.equals(tempCommit.hash)) {
-                    return currentCommit;
+    public static void gc() {
+        long before = Repository.diskUsage(Repository.GITLET_DIR);
+        Set<String> commits = Repository.reachableCommits();
+        // commits saved by Java serialization are saved again with their trees, so that
+        // the trees are reachable below
+        for (String hash : commits) {
+            Commit commit = Repository.readCommit(hash);
+            if (commit.isLegacy()) {
+                writeContentsAtomically(join(Repository.COMMIT_DIR, hash), commit.encode());
+            }
+        }
+        Set<String> objects = Repository.reachableObjects(commits);
+
+        List<File> garbage = new ArrayList<>();
+        List<String> commitHashes = plainFilenamesIn(Repository.COMMIT_DIR);
+        int removedCommits = 0;
+        for (String hash : commitHashes == null ? new ArrayList<String>() : commitHashes) {
+            if (!commits.contains(hash)) {
+                garbage.add(join(Repository.COMMIT_DIR, hash));
+                removedCommits++;
+            }
+        }
+        Set<String> removedObjects = new HashSet<>();
+        for (String hash : Repository.OBJECT_STORE.looseIds()) {
+            if (!objects.contains(hash)) {
+                garbage.add(Repository.OBJECT_STORE.looseFile(hash));
+                removedObjects.add(hash);
+            }
+        }
+        for (PackFile pack : Repository.OBJECT_STORE.packs()) {
+            for (String hash : pack.ids()) {
+                if (!objects.contains(hash)) {
+                    removedObjects.add(hash);
                 }
-                if (tempCommit.parentHash != null && join(Repository.COMMIT_DIR, tempCommit.parentHash).exists()) {
-                    tempCommit = readObject(join(Repository.COMMIT_DIR, tempCommit.parentHash), Commit.class);
-                } else {
-                    tempCommit = null;
+            }
+        }
+        Set<String> staged = new HashSet<>(Repository.blobMap.values());
+        for (String mode : new String[]{"add", "remove"}) {
+            File modeDir = join(Repository.STAGING_DIR, mode);
+            String[] prefixes = modeDir.list();
+            for (String prefix : prefixes == null ? new String[0] : prefixes) {
+                List<String> names = plainFilenamesIn(join(modeDir, prefix));
+                for (String name : names == null ? new ArrayList<String>() : names) {
+                    if (!staged.contains(prefix + name)) {
+                        garbage.add(join(modeDir, prefix, name));
+                    }
+                }
+            }
+        }
+        Repository.deleteAll(garbage);
+
+        if (removedCommits > 0) {
+            // the commit indexes are rebuilt from the remaining commits under the writer
+            // lock, and each replaces its file at once, so a reader never finds one missing
+            CommitList remaining = new CommitList(Repository.COMMIT_DIR);
+            Repository.commitGraph = CommitGraph.build(Repository.COMMIT_GRAPH_FILE, remaining);
+            Repository.commitGraph.save();
+            Repository.messageIndex = MessageIndex.build(Repository.MESSAGE_INDEX_FILE, remaining);
+            Repository.messageIndex.save();
+            Repository.commitIdIndex = CommitIdIndex.build(Repository.COMMIT_IDS_FILE, remaining);
+            Repository.commitIdIndex.save();
+            // the positions of the commits change with the commit graph
+            Repository.BITMAPS_FILE.delete();
+            Repository.reachabilityBitmaps = null;
+            Repository.changedPathFilters().retain(commits);
+            Repository.COMMIT_CACHE.clear();
+        }
+        // commits made before the changed path filters existed get theirs
+        for (String hash : commits) {
+            if (!Repository.changedPathFilters().contains(hash)) {
+                Commit commit = Repository.readCommit(hash);
+                String parentTree = commit.parentHash == null ? null
+                        : Repository.readCommit(commit.parentHash).getTreeHash();
+                List<String> changed = new ArrayList<>();
+                for (Tree.Change change : Tree.diff(Repository.OBJECT_STORE, parentTree, commit.getTreeHash())) {
+                    changed.add(change.path);
                 }
+                Repository.changedPathFilters().add(hash, changed);
+            }
+        }
+        Repository.addBitmaps();
+        Repository.OBJECT_STORE.repack(objects);
+        long reclaimed = Math.max(0, before - Repository.diskUsage(Repository.GITLET_DIR));
+        System.out.println("Removed " + removedCommits + " commits and " + removedObjects.size()
+                + " objects, reclaimed " + reclaimed + " bytes.");
+    }
+
+    /**
+     * Give a reachability bitmap to the head of each branch and to every commit whose
+     * position is a multiple of BITMAP_INTERVAL that has none yet.
+     */
+    private static void addBitmaps() {
+        CommitGraph graph = Repository.commitGraph();
+        List<String> branches = plainFilenamesIn(Repository.HEAEDS_DIR);
+        List<Integer> positions = new ArrayList<>();
+        for (String branch : branches == null ? new ArrayList<String>() : branches) {
+            positions.add(graph.position(Repository.readHead(branch)));
+        }
+        for (int position = 0; position < graph.size(); position += Repository.BITMAP_INTERVAL) {
+            positions.add(position);
+        }
+        int[] anchors = new int[positions.size()];
+        for (int i = 0; i < anchors.length; i++) {
+            anchors[i] = positions.get(i);
+        }
+        Repository.reachabilityBitmaps().add(anchors);
+    }
 
+    /**
+     * Return the SHA1s of the commits reachable from the branches, tags and remote branches
+     * under REFS_DIR, through both the first and the merged parents.
+     */
+    private static Set<String> reachableCommits() {
+        Set<String> result = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        try (Stream<Path> refs = Files.walk(Repository.REFS_DIR.toPath())) {
+            for (Path ref : (Iterable<Path>) refs.filter(Files::isRegularFile)::iterator) {
+                pending.push(readContentsAsString(ref.toFile()).trim());
             }
-            if (currentCommit.parentHash != null && join(Repository.COMMIT_DIR, currentCommit.parentHash).exists()) {
-                currentCommit = readObject(join(Repository.COMMIT_DIR, currentCommit.parentHash), Commit.class);
-            } else {
-                currentCommit = null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        while (!pending.isEmpty()) {
+            String hash = pending.pop();
+            if (hash.isEmpty() || !result.add(hash)) {
+                continue;
+            }
+            Commit commit = Repository.readCommit(hash);
+            if (commit.parentHash != null) {
+                pending.push(commit.parentHash);
+            }
+            if (commit.mergedParentHash != null) {
+                pending.push(commit.mergedParentHash);
             }
         }
-        return null;
+        return result;
     }
 
     /**
-     * Restore a file with a specific version from the directory '.gitlet/objects'
-     * to the current working directory.
+     * Return the SHA1s of the objects reachable from COMMITS or from the staging area: the
+     * trees and blobs of the commits, the staged blobs saved in the object store, and the
+     * chunks of the chunked blobs among them or among the staged manifests.
      */
-    private static void restoreFile(String filename, String fileHash) {
-        File file = Repository.hashFilename(Repository.OBJECTS_DIR, fileHash, null);
-        byte[] content = readContents(file);
-        writeContents(join(Repository.CWD, filename), content);
+    private static Set<String> reachableObjects(Set<String> commits) {
+        Set<String> trees = new HashSet<>();
+        Set<String> blobs = new HashSet<>();
+        for (String hash : commits) {
+            Tree.walk(Repository.OBJECT_STORE, Repository.readCommit(hash).getTreeHash(), trees, blobs);
+        }
+        Set<String> result = new HashSet<>(trees);
+        for (String hash : blobs) {
+            result.add(hash);
+            result.addAll(Repository.OBJECT_STORE.chunksOf(hash));
+        }
+        for (String hash : Repository.blobMap.values()) {
+            if (Repository.OBJECT_STORE.contains(hash)) {
+                result.add(hash);
+                result.addAll(Repository.OBJECT_STORE.chunksOf(hash));
+                continue;
+            }
+            File stagedFile = hashFilename(STAGING_DIR, hash, "add");
+            if (stagedFile.isFile()) {
+                byte[] content = LooseObject.read(stagedFile);
+                if (ChunkedBlob.isManifest(content, hash)) {
+                    result.addAll(ChunkedBlob.chunks(content));
+                }
+            }
+        }
+        return result;
     }
 
     /**
-     * Save a file with a specific version from the current working directory
-     * to the directory '.gitlet/stagingArea'.
+     * Delete FILES with a bounded pool of workers, along with the directories they leave empty.
      */
-    private static void stageFile(String filename, String fileHash, String mode) {
-        byte[] content = readContents(join(Repository.CWD, filename));
-        File file = hashFilename(STAGING_DIR, fileHash, mode);
-        writeContents(file, content);
+    private static void deleteAll(List<File> files) {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Repository.ADD_PARALLELISM));
+        try {
+            pool.submit(() -> files.parallelStream().forEach(File::delete)).get();
+        } catch (InterruptedException | ExecutionException excp) {
+            throw error("Internal error deleting files: %s", excp.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+        for (File file : files) {
+            // only succeeds for the directories left empty
+            file.getParentFile().delete();
+        }
+    }
+
+    /**
+     * Return the total size in bytes of the files under DIR.
+     */
+    private static long diskUsage(File dir) {
+        try (Stream<Path> files = Files.walk(dir.toPath())) {
+            return files.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
     /**
      * Print helpful information on how to use gitlet.
      */
     public static void help() {
-        String info = "use args such as init, add, commit, rm, checkout, log, global-log, reset, merge.";
+        String info = "use args such as init, add, commit, rm, checkout, log, global-log, diff, reset, merge,"
+                + " is-ancestor, rev-list, add-remote, rm-remote, fetch, push, pull, gc, daemon.";
         System.out.println(info);
     }
 }
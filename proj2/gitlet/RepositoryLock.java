@@ -0,0 +1,92 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The exclusive lock held by a command modifying a repository, so that commands run by
+ * several processes at once modify it one at a time.
+ * <p>
+ * The lock is an operating system lock on the file `.gitlet/index.lock`, taken through
+ * FileChannel.lock, so it is released by the system even if the process dies. The file
+ * itself is never deleted, since a process could otherwise lock a file that another one
+ * has just replaced. Read-only commands do not take the lock: objects and commits are
+ * never modified once written, and the refs and the index are replaced atomically, so a
+ * reader always sees a complete version of each.
+ *
+ * @author Yuansong Zhang
+ */
+class RepositoryLock implements AutoCloseable {
+
+    private final FileChannel channel;
+
+    private final FileLock lock;
+
+    private RepositoryLock(FileChannel channel, FileLock lock) {
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Lock FILE, waiting for the process holding it to release it.
+     */
+    static RepositoryLock acquire(File file) {
+        FileChannel channel = open(file);
+        try {
+            return new RepositoryLock(channel, channel.lock());
+        } catch (IOException excp) {
+            closeQuietly(channel);
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Lock FILE if no process holds it, or return null otherwise.
+     */
+    static RepositoryLock tryAcquire(File file) {
+        FileChannel channel = open(file);
+        try {
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                channel.close();
+                return null;
+            }
+            return new RepositoryLock(channel, lock);
+        } catch (IOException excp) {
+            closeQuietly(channel);
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static FileChannel open(File file) {
+        try {
+            return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // the lock is released with the channel anyway
+        }
+    }
+
+    /**
+     * Release the lock.
+     */
+    @Override
+    public void close() {
+        try {
+            lock.release();
+            channel.close();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/**
+ * A tree object listing the files of one directory of a commit, saved in the object store
+ * under the SHA1 of its contents. An entry is either a file with the SHA1 of its blob or a
+ * subdirectory with the SHA1 of its own tree, so identical directories are stored once and
+ * shared by all commits, and two snapshots can be compared without looking into the
+ * directories whose tree SHA1s are equal.
+ * <p>
+ * A tree holds a magic number and a format version, followed by the number of entries and,
+ * for each entry sorted by name, its type, its name and its SHA1.
+ *
+ * @author Yuansong Zhang
+ */
+class Tree {
+
+    private static final int MAGIC = 0x474c5452; // "GLTR"
+
+    private static final int VERSION = 2;
+
+    private static final byte BLOB = 0;
+
+    private static final byte TREE = 1;
+
+    /**
+     * A difference between two snapshots: the file PATH went from OLDHASH to NEWHASH,
+     * either of which is null if the file is absent from that side.
+     */
+    static class Change {
+        final String path;
+        final String oldHash;
+        final String newHash;
+
+        Change(String path, String oldHash, String newHash) {
+            this.path = path;
+            this.oldHash = oldHash;
+            this.newHash = newHash;
+        }
+    }
+
+    /**
+     * An entry of a tree.
+     */
+    private static class Entry {
+        final byte type;
+        final String hash;
+
+        Entry(byte type, String hash) {
+            this.type = type;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Write the trees of BLOBMAP, whose keys are paths separated by '/', to STORE unless they
+     * exist already, and return the SHA1 of the root tree.
+     */
+    static String write(ObjectStore store, Map<String, String> blobMap) {
+        HashMap<String, String> changes = new HashMap<>(blobMap);
+        return update(store, null, changes);
+    }
+
+    /**
+     * Apply CHANGES, from paths to the SHA1s of their new blobs or to null for removed files,
+     * to the tree BASEHASH (null for an empty tree) and return the SHA1 of the new root tree.
+     * Only the trees along the changed paths are rebuilt and written to STORE; all the other
+     * subtrees are shared with BASEHASH.
+     */
+    static String update(ObjectStore store, String baseHash, Map<String, String> changes) {
+        return Tree.write(store, Tree.updateEntries(store, baseHash, changes));
+    }
+
+    /**
+     * Return the entries of the tree BASEHASH (null for an empty tree) with CHANGES applied,
+     * writing the changed subtrees to STORE. A subdirectory left empty is removed, but a
+     * file added in place of a removed directory is kept.
+     */
+    private static TreeMap<String, Entry> updateEntries(ObjectStore store, String baseHash,
+                                                        Map<String, String> changes) {
+        TreeMap<String, Entry> entries = baseHash == null ? new TreeMap<>() : readEntries(store, baseHash);
+        TreeMap<String, Map<String, String>> subChanges = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    entries.remove(path);
+                } else {
+                    entries.put(path, new Entry(BLOB, change.getValue()));
+                }
+            } else {
+                subChanges.computeIfAbsent(path.substring(0, slash), name -> new HashMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> subChange : subChanges.entrySet()) {
+            String name = subChange.getKey();
+            Entry entry = entries.get(name);
+            boolean directory = entry != null && entry.type == TREE;
+            TreeMap<String, Entry> subEntries = Tree.updateEntries(store, directory ? entry.hash : null,
+                    subChange.getValue());
+            if (!subEntries.isEmpty()) {
+                entries.put(name, new Entry(TREE, Tree.write(store, subEntries)));
+            } else if (directory) {
+                entries.remove(name);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Write the tree of ENTRIES to STORE unless it exists already, and return its SHA1.
+     */
+    private static String write(ObjectStore store, TreeMap<String, Entry> entries) {
+        byte[] content = encode(entries);
+        String hash = sha1(content);
+        store.write(hash, content);
+        return hash;
+    }
+
+    /**
+     * Return the blob map of the tree HASH saved in STORE, with paths separated by '/'.
+     */
+    static HashMap<String, String> read(ObjectStore store, String hash) {
+        HashMap<String, String> blobMap = new HashMap<>();
+        flatten(store, hash, "", blobMap);
+        return blobMap;
+    }
+
+    private static void flatten(ObjectStore store, String hash, String prefix, Map<String, String> blobMap) {
+        for (Map.Entry<String, Entry> item : readEntries(store, hash).entrySet()) {
+            Entry entry = item.getValue();
+            if (entry.type == TREE) {
+                flatten(store, entry.hash, prefix + item.getKey() + "/", blobMap);
+            } else {
+                blobMap.put(prefix + item.getKey(), entry.hash);
+            }
+        }
+    }
+
+    /**
+     * Add the tree HASH saved in STORE and its subtrees to TREES, and the blobs of their
+     * files to BLOBS. Subtrees already in TREES are not read again, so the trees shared by
+     * many commits are only read once.
+     */
+    static void walk(ObjectStore store, String hash, Set<String> trees, Set<String> blobs) {
+        if (!trees.add(hash)) {
+            return;
+        }
+        for (Entry entry : readEntries(store, hash).values()) {
+            if (entry.type == TREE) {
+                walk(store, entry.hash, trees, blobs);
+            } else {
+                blobs.add(entry.hash);
+            }
+        }
+    }
+
+    /**
+     * Return the files that differ between the trees OLDHASH and NEWHASH saved in STORE,
+     * sorted by path. Subtrees with the same SHA1 on both sides are skipped without being read.
+     */
+    static List<Change> diff(ObjectStore store, String oldHash, String newHash) {
+        List<Change> changes = new ArrayList<>();
+        diff(store, oldHash, newHash, "", changes);
+        return changes;
+    }
+
+    private static void diff(ObjectStore store, String oldHash, String newHash, String prefix,
+                             List<Change> changes) {
+        if (oldHash != null && oldHash.equals(newHash)) {
+            return;
+        }
+        TreeMap<String, Entry> oldEntries = oldHash == null ? new TreeMap<>() : readEntries(store, oldHash);
+        TreeMap<String, Entry> newEntries = newHash == null ? new TreeMap<>() : readEntries(store, newHash);
+        TreeSet<String> names = new TreeSet<>(oldEntries.keySet());
+        names.addAll(newEntries.keySet());
+        for (String name : names) {
+            Entry oldEntry = oldEntries.get(name);
+            Entry newEntry = newEntries.get(name);
+            String path = prefix + name;
+            String oldTree = oldEntry != null && oldEntry.type == TREE ? oldEntry.hash : null;
+            String newTree = newEntry != null && newEntry.type == TREE ? newEntry.hash : null;
+            String oldBlob = oldEntry != null && oldEntry.type == BLOB ? oldEntry.hash : null;
+            String newBlob = newEntry != null && newEntry.type == BLOB ? newEntry.hash : null;
+            if (oldTree != null || newTree != null) {
+                diff(store, oldTree, newTree, path + "/", changes);
+            }
+            if ((oldBlob != null || newBlob != null) && (oldBlob == null || !oldBlob.equals(newBlob))) {
+                changes.add(new Change(path, oldBlob, newBlob));
+            }
+        }
+    }
+
+    private static TreeMap<String, Entry> readEntries(ObjectStore store, String hash) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(store.read(hash)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IllegalArgumentException("not a tree object: " + hash);
+            }
+            int count = in.readInt();
+            TreeMap<String, Entry> entries = new TreeMap<>();
+            byte[] id = new byte[UID_LENGTH / 2];
+            for (int i = 0; i < count; i++) {
+                byte type = in.readByte();
+                String name = Commit.readString(in);
+                in.readFully(id);
+                entries.put(name, new Entry(type, PackFile.toHex(id)));
+            }
+            return entries;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static byte[] encode(TreeMap<String, Entry> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                out.writeByte(item.getValue().type);
+                Commit.writeString(out, item.getKey());
+                out.write(PackFile.toBytes(item.getValue().hash));
+            }
+        } catch (IOException excp) {
+            throw error("Internal error serializing tree.");
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -6,17 +6,29 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.stream.Stream;
 
@@ -37,8 +49,20 @@ class Utils {
      */
     static final int UID_LENGTH = 40;
 
+    /**
+     * The size of the buffers used to stream file contents.
+     */
+    static final int BUFFER_SIZE = 64 * 1024;
+
     static String TIME_FORMAT = "yyyy-MM-dd HH:mm:ss Z";
 
+    /**
+     * Formatter of TIME_FORMAT in the local time zone. Unlike SimpleDateFormat it is
+     * immutable, so it is created once rather than for every timestamp.
+     */
+    private static final DateTimeFormatter LOCAL_TIME_FORMATTER =
+            DateTimeFormatter.ofPattern(TIME_FORMAT).withZone(ZoneId.systemDefault());
+
     /* SHA-1 HASH VALUES. */
 
     /**
@@ -57,11 +81,7 @@ class Utils {
                     throw new IllegalArgumentException("improper type to sha1");
                 }
             }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
-            }
-            return result.toString();
+            return toHex(md.digest());
         } catch (NoSuchAlgorithmException excp) {
             throw new IllegalArgumentException("System does not support SHA-1");
         }
@@ -75,6 +95,36 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /**
+     * Returns the SHA-1 hash of the contents of FILE, which is read through
+     * a fixed buffer so that memory use does not depend on its size.  The
+     * result is the same as sha1(readContents(FILE)).
+     */
+    static String sha1(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                md.update(buffer);
+                buffer.clear();
+            }
+            return toHex(md.digest());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        Formatter result = new Formatter();
+        for (byte b : digest) {
+            result.format("%02x", b);
+        }
+        return result.toString();
+    }
+
     /* FILE DELETION */
 
     /**
@@ -122,6 +172,22 @@ class Utils {
         }
     }
 
+    /**
+     * Return the entire contents of FILE as a read-only buffer mapped
+     * in memory rather than copied onto the heap.  FILE must be a
+     * normal file.  Throws IllegalArgumentException in case of problems.
+     */
+    static ByteBuffer mapContents(File file) {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("must be a normal file");
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /**
      * Return the entire contents of FILE as a String.  FILE must
      * be a normal file.  Throws IllegalArgumentException
@@ -160,6 +226,78 @@ class Utils {
         }
     }
 
+    /**
+     * Like writeContents, but the contents are written to a temporary file renamed
+     * over FILE, so that a reader sees either the old or the new contents of FILE,
+     * never a partial write.  Throws IllegalArgumentException in case of problems.
+     */
+    static void writeContentsAtomically(File file, Object... contents) {
+        File temp = new File(file.getPath() + ".tmp");
+        writeContents(temp, contents);
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Copy the contents of the file SOURCE to FILE, creating or overwriting it
+     * as needed.  The bytes are transferred by the file system without being
+     * loaded on the heap.  Throws IllegalArgumentException in case of problems.
+     */
+    static void copyContents(File source, File file) {
+        if (file.isDirectory()) {
+            throw new IllegalArgumentException("cannot overwrite directory");
+        }
+        if (!file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        try (FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                     StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Write everything read from IN to FILE through a fixed buffer, creating or
+     * overwriting it as needed, then close IN.  Throws IllegalArgumentException
+     * in case of problems.
+     */
+    static void copyContents(InputStream in, File file) {
+        if (file.isDirectory()) {
+            throw new IllegalArgumentException("cannot overwrite directory");
+        }
+        if (!file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        try (InputStream source = in; OutputStream out = Files.newOutputStream(file.toPath())) {
+            copyStream(source, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Write everything read from IN to OUT through a fixed buffer.
+     */
+    static void copyStream(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+    }
+
     /**
      * Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
      * Throws IllegalArgumentException in case of problems.
@@ -326,6 +464,29 @@ class Utils {
 
     }
 
+    /**
+     * convert SECONDS since the epoch to timestamp String that is a local time
+     */
+    static String convertSecondsToString(long seconds) {
+        return LOCAL_TIME_FORMATTER.format(Instant.ofEpochSecond(seconds));
+    }
+
+    /**
+     * convert DATE given either as a timestamp String or as `yyyy-MM-dd` in the local time
+     * to seconds since the epoch. Throws IllegalArgumentException if DATE is neither.
+     */
+    static long convertStringToSeconds(String date) {
+        try {
+            return ZonedDateTime.parse(date, LOCAL_TIME_FORMATTER).toEpochSecond();
+        } catch (DateTimeParseException excp) {
+            try {
+                return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toEpochSecond();
+            } catch (DateTimeParseException excp2) {
+                throw new IllegalArgumentException("bad date " + date);
+            }
+        }
+    }
+
     /**
      * move the directory oriDir to the directory desDir
      */
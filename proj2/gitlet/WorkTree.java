@@ -0,0 +1,207 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static gitlet.Utils.*;
+
+/**
+ * The working directory of a repository, updated from one snapshot to another by
+ * touching only the files that differ.
+ * <p>
+ * The files to update are the differences between the two trees, less the working files
+ * that already have their target contents according to the stat data of the index. The
+ * remaining files are written or deleted by a pool of workers, and the stat data of the
+ * written files is recorded so that they are not hashed again by the next command.
+ * <p>
+ * The files of the working directory are listed by a recursive scan that gives each
+ * directory to a worker of a fork/join pool, and skips the repository directory and the
+ * directories ignored by `.gitletignore` without listing them.
+ *
+ * @author Yuansong Zhang
+ */
+class WorkTree {
+
+    private static final String BASIC_ATTRIBUTES = "size,lastModifiedTime,isDirectory,isRegularFile";
+
+    private static final String UNIX_ATTRIBUTES = "unix:" + BASIC_ATTRIBUTES + ",ino";
+
+    private final File root;
+
+    private final ObjectStore store;
+
+    private final Index index;
+
+    WorkTree(File root, ObjectStore store, Index index) {
+        this.root = root;
+        this.store = store;
+        this.index = index;
+    }
+
+    /**
+     * Return those of CHANGES between two trees, as returned by Tree.diff, whose working
+     * files do not match the new tree yet.
+     */
+    List<Tree.Change> outdated(List<Tree.Change> changes) {
+        List<Tree.Change> result = new ArrayList<>();
+        for (Tree.Change change : changes) {
+            File file = join(root, change.path);
+            if (change.newHash == null) {
+                if (file.exists()) {
+                    result.add(change);
+                }
+            } else if (!file.isFile() || !change.newHash.equals(index.cachedHash(change.path, Index.stat(file)))) {
+                result.add(change);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Apply CHANGES to the working directory with at most PARALLELISM workers, record the
+     * stat data of the written files in the index, and remove the directories left empty.
+     */
+    void apply(List<Tree.Change> changes, int parallelism) {
+        List<long[]> stats;
+        if (changes.size() <= 1 || parallelism <= 1) {
+            stats = new ArrayList<>();
+            for (Tree.Change change : changes) {
+                stats.add(apply(change));
+            }
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, changes.size()));
+            try {
+                stats = pool.submit(() -> changes.parallelStream()
+                        .map(this::apply)
+                        .collect(Collectors.toList())).get();
+            } catch (InterruptedException | ExecutionException excp) {
+                throw error("Internal error updating files: %s", excp.getMessage());
+            } finally {
+                pool.shutdown();
+            }
+        }
+        for (int i = 0; i < changes.size(); i++) {
+            Tree.Change change = changes.get(i);
+            if (change.newHash != null) {
+                index.record(change.path, change.newHash, stats.get(i));
+            } else {
+                removeEmptyParents(join(root, change.path));
+            }
+        }
+    }
+
+    /**
+     * Write or delete the working file of CHANGE, and return the stat data of the written file.
+     */
+    private long[] apply(Tree.Change change) {
+        File file = join(root, change.path);
+        if (change.newHash == null) {
+            file.delete();
+            return null;
+        }
+        store.restore(change.newHash, file);
+        return Index.stat(file);
+    }
+
+    /**
+     * Return the stat data of the regular files under the working directory that RULES do
+     * not ignore, by path relative to it with `/` separators, scanning the directories with
+     * at most PARALLELISM workers.
+     */
+    NavigableMap<String, long[]> scan(IgnoreRules rules, int parallelism) {
+        ConcurrentSkipListMap<String, long[]> result = new ConcurrentSkipListMap<>();
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try {
+            pool.invoke(new Scan(root.toPath(), "", rules, result));
+        } finally {
+            pool.shutdown();
+        }
+        return result;
+    }
+
+    /**
+     * The scan of the directory DIR, at PREFIX in the working directory, which forks a scan
+     * of each of its subdirectories.
+     */
+    private static class Scan extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final String prefix;
+        private final IgnoreRules rules;
+        private final ConcurrentSkipListMap<String, long[]> result;
+
+        Scan(Path dir, String prefix, IgnoreRules rules, ConcurrentSkipListMap<String, long[]> result) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.rules = rules;
+            this.result = result;
+        }
+
+        @Override
+        protected void compute() {
+            List<Scan> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry : entries) {
+                    String path = prefix + entry.getFileName();
+                    if (path.equals(Repository.GITLET_DIR.getName())) {
+                        continue;
+                    }
+                    Map<String, Object> attributes = WorkTree.readAttributes(entry);
+                    if ((Boolean) attributes.get("isDirectory")) {
+                        if (!rules.isIgnored(path, true)) {
+                            subdirectories.add(new Scan(entry, path + "/", rules, result));
+                        }
+                    } else if ((Boolean) attributes.get("isRegularFile") && !rules.isIgnored(path, false)) {
+                        long mtime = ((FileTime) attributes.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS);
+                        Object inode = attributes.get("ino");
+                        result.put(path, new long[]{(Long) attributes.get("size"), mtime,
+                                inode == null ? 0 : ((Number) inode).longValue()});
+                    }
+                }
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            invokeAll(subdirectories);
+        }
+    }
+
+    /**
+     * Return the attributes of ENTRY needed by a scan, the same as Index.stat and the type,
+     * read with a single system call where the unix view is available. Symbolic links are
+     * not followed, so that a link to a parent directory does not make a cycle.
+     */
+    private static Map<String, Object> readAttributes(Path entry) throws IOException {
+        try {
+            return Files.readAttributes(entry, UNIX_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+        } catch (UnsupportedOperationException | IllegalArgumentException excp) {
+            return Files.readAttributes(entry, BASIC_ATTRIBUTES, LinkOption.NOFOLLOW_LINKS);
+        }
+    }
+
+    private void removeEmptyParents(File file) {
+        File dir = file.getParentFile();
+        while (dir != null && !dir.equals(root)) {
+            String[] names = dir.list();
+            if (names == null || names.length > 0 || !dir.delete()) {
+                return;
+            }
+            dir = dir.getParentFile();
+        }
+    }
+}